@@ -0,0 +1,491 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs full VIISP logins through a local Keycloak the way a browser does, at increasing
+ * concurrency levels, to find the saturation point of a node.
+ *
+ * <p>Every login starts at the OIDC authorization endpoint with kc_idp_hint, which ends in
+ * performLogin and the auto-submit ticket page. The ticket is posted to the VIISP redirect page
+ * (normally a {@link ViispSimulator}), and the page it returns is posted to the broker endpoint,
+ * following redirects until Keycloak sends the browser to the client with an authorization code.
+ * Each worker is a virtual thread running logins back to back, every login with new cookies.
+ *
+ * <p>For every level it reports logins per second, p50/p95/p99 of each phase and of the whole
+ * login, and the failures by phase and cause. With --metrics-url it also reads the
+ * viisp_login_phase_seconds timers from the Keycloak metrics endpoint, to split the Keycloak side
+ * of the login into the provider phases.
+ */
+public final class ViispLoadHarness {
+
+    private static final Pattern FORM_ACTION =
+            Pattern.compile("<form[^>]*action=['\"]([^'\"]*)['\"]", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HIDDEN_INPUT =
+            Pattern.compile(
+                    "<input[^>]*name=['\"]([^'\"]*)['\"][^>]*value=['\"]([^'\"]*)['\"]",
+                    Pattern.CASE_INSENSITIVE);
+    private static final Pattern PHASE_METRIC =
+            Pattern.compile(
+                    "^viisp_login_phase_seconds_(sum|count)"
+                            + "\\{[^}]*phase=\"([^\"]+)\"[^}]*\\}\\s+(\\S+)");
+    private static final int MAX_REDIRECTS = 10;
+
+    /** Phases of a login as the browser sees them. */
+    enum Phase {
+        AUTHORIZE("authorize"),
+        VIISP_REDIRECT("viisp_redirect"),
+        CALLBACK("callback"),
+        TOTAL("total");
+
+        private final String value;
+
+        Phase(String value) {
+            this.value = value;
+        }
+
+        public String value() {
+            return value;
+        }
+    }
+
+    private final Options options;
+    private final HttpClient client;
+
+    private ViispLoadHarness(Options options) {
+        this.options = options;
+        // Cookies are kept per login, so one client and its connection pool serves all workers
+        this.client =
+                HttpClient.newBuilder()
+                        .followRedirects(HttpClient.Redirect.NEVER)
+                        .connectTimeout(options.timeout)
+                        .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        ViispSimulator simulator = null;
+        if (options.simulatorPort > 0) {
+            simulator =
+                    ViispSimulator.start(options.simulatorPort)
+                            .setFaults(options.faults)
+                            .setSourceParameters(options.sourceParameters);
+            System.out.println("Started VIISP simulator at " + simulator.getAuthServiceUrl());
+        }
+        try {
+            ViispLoadHarness harness = new ViispLoadHarness(options);
+            if (options.warmup.compareTo(Duration.ZERO) > 0) {
+                System.out.println("Warming up for " + options.warmup.toSeconds() + " s");
+                harness.run(options.concurrency[0], options.warmup);
+            }
+            for (int concurrency : options.concurrency) {
+                Map<String, double[]> before = harness.scrapePhaseMetrics();
+                Result result = harness.run(concurrency, options.duration);
+                Map<String, double[]> after = harness.scrapePhaseMetrics();
+                result.print(System.out);
+                printPhaseMetrics(before, after);
+            }
+            if (simulator != null) {
+                System.out.println(simulator.getStats());
+            }
+        } finally {
+            if (simulator != null) {
+                simulator.close();
+            }
+        }
+    }
+
+    /** Runs logins with the given number of workers for the given time. */
+    Result run(int concurrency, Duration duration) throws InterruptedException {
+        Result result = new Result(concurrency);
+        long deadline = System.nanoTime() + duration.toNanos();
+        long start = System.nanoTime();
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                workers.execute(
+                        () -> {
+                            while (System.nanoTime() < deadline) {
+                                login(result);
+                            }
+                        });
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void login(Result result) {
+        // A fresh browser for every login
+        Map<String, String> cookies = new HashMap<>();
+        long loginStart = System.nanoTime();
+        Phase phase = Phase.AUTHORIZE;
+        try {
+            long start = System.nanoTime();
+            HttpResponse<String> ticketPage = follow(get(authorizationUrl()), cookies);
+            expectForm(ticketPage, phase);
+            result.record(phase, System.nanoTime() - start);
+
+            phase = Phase.VIISP_REDIRECT;
+            start = System.nanoTime();
+            HttpResponse<String> postbackPage =
+                    send(postForm(ticketPage), new HashMap<>());
+            expectForm(postbackPage, phase);
+            result.record(phase, System.nanoTime() - start);
+
+            phase = Phase.CALLBACK;
+            start = System.nanoTime();
+            HttpResponse<String> done = follow(postForm(postbackPage), cookies);
+            String location = done.headers().firstValue("Location").orElse("");
+            if (!location.startsWith(options.redirectUri) || !location.contains("code=")) {
+                throw new LoginFailure(
+                        phase, "status " + done.statusCode() + " " + describePage(done));
+            }
+            result.record(phase, System.nanoTime() - start);
+            result.record(Phase.TOTAL, System.nanoTime() - loginStart);
+            result.successes.increment();
+        } catch (LoginFailure e) {
+            result.fail(e.phase, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.fail(phase, e.getClass().getSimpleName());
+        } catch (Exception e) {
+            result.fail(phase, e.getClass().getSimpleName());
+        }
+    }
+
+    /** Sends the request and follows redirects within Keycloak, stopping at the client. */
+    private HttpResponse<String> follow(HttpRequest.Builder request, Map<String, String> cookies)
+            throws IOException, InterruptedException {
+        HttpResponse<String> response = send(request, cookies);
+        for (int i = 0; i < MAX_REDIRECTS; i++) {
+            String location = response.headers().firstValue("Location").orElse(null);
+            if (response.statusCode() / 100 != 3
+                    || location == null
+                    || location.startsWith(options.redirectUri)) {
+                return response;
+            }
+            URI next = response.uri().resolve(location);
+            response = send(HttpRequest.newBuilder(next).timeout(options.timeout).GET(), cookies);
+        }
+        throw new IOException("Too many redirects");
+    }
+
+    /** Sends the request with the cookies of the login and keeps the cookies it sets. */
+    private HttpResponse<String> send(HttpRequest.Builder request, Map<String, String> cookies)
+            throws IOException, InterruptedException {
+        if (!cookies.isEmpty()) {
+            StringBuilder header = new StringBuilder();
+            cookies.forEach(
+                    (name, value) -> {
+                        if (header.length() > 0) {
+                            header.append("; ");
+                        }
+                        header.append(name).append('=').append(value);
+                    });
+            request.header("Cookie", header.toString());
+        }
+        HttpResponse<String> response =
+                client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        for (String setCookie : response.headers().allValues("Set-Cookie")) {
+            String pair = setCookie.split(";", 2)[0];
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                String name = pair.substring(0, separator).trim();
+                String value = pair.substring(separator + 1).trim();
+                if (value.isEmpty() || setCookie.toLowerCase().contains("max-age=0")) {
+                    cookies.remove(name);
+                } else {
+                    cookies.put(name, value);
+                }
+            }
+        }
+        return response;
+    }
+
+    private static void expectForm(HttpResponse<String> response, Phase phase) {
+        if (response.statusCode() != 200 || !FORM_ACTION.matcher(response.body()).find()) {
+            throw new LoginFailure(
+                    phase, "status " + response.statusCode() + " " + describePage(response));
+        }
+    }
+
+    /** Submits the first form of the page with its hidden inputs, like the auto-submit script. */
+    private HttpRequest.Builder postForm(HttpResponse<String> page) {
+        Matcher action = FORM_ACTION.matcher(page.body());
+        action.find();
+        StringBuilder form = new StringBuilder();
+        Matcher input = HIDDEN_INPUT.matcher(page.body());
+        while (input.find()) {
+            if (form.length() > 0) {
+                form.append('&');
+            }
+            form.append(URLEncoder.encode(unescape(input.group(1)), StandardCharsets.UTF_8))
+                    .append('=')
+                    .append(URLEncoder.encode(unescape(input.group(2)), StandardCharsets.UTF_8));
+        }
+        return HttpRequest.newBuilder(page.uri().resolve(unescape(action.group(1))))
+                .timeout(options.timeout)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form.toString()));
+    }
+
+    private HttpRequest.Builder get(String url) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(options.timeout).GET();
+    }
+
+    private String authorizationUrl() {
+        return options.keycloakUrl
+                + "/realms/"
+                + options.realm
+                + "/protocol/openid-connect/auth?response_type=code&scope=openid"
+                + "&client_id="
+                + URLEncoder.encode(options.clientId, StandardCharsets.UTF_8)
+                + "&redirect_uri="
+                + URLEncoder.encode(options.redirectUri, StandardCharsets.UTF_8)
+                + "&kc_idp_hint="
+                + URLEncoder.encode(options.idpAlias, StandardCharsets.UTF_8);
+    }
+
+    /** Sum and count of viisp.login.phase per phase, or an empty map without --metrics-url. */
+    private Map<String, double[]> scrapePhaseMetrics() {
+        Map<String, double[]> phases = new TreeMap<>();
+        if (options.metricsUrl == null) {
+            return phases;
+        }
+        try {
+            String body = send(get(options.metricsUrl), new HashMap<>()).body();
+            for (String line : body.split("\n")) {
+                Matcher metric = PHASE_METRIC.matcher(line);
+                if (metric.find()) {
+                    double[] sumAndCount =
+                            phases.computeIfAbsent(metric.group(2), p -> new double[2]);
+                    sumAndCount["sum".equals(metric.group(1)) ? 0 : 1] +=
+                            Double.parseDouble(metric.group(3));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read " + options.metricsUrl + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return phases;
+    }
+
+    private static void printPhaseMetrics(
+            Map<String, double[]> before, Map<String, double[]> after) {
+        if (after.isEmpty()) {
+            return;
+        }
+        System.out.println("  Keycloak side (viisp.login.phase, mean ms):");
+        after.forEach(
+                (phase, sumAndCount) -> {
+                    double[] previous = before.getOrDefault(phase, new double[2]);
+                    double count = sumAndCount[1] - previous[1];
+                    if (count > 0) {
+                        System.out.printf(
+                                "    %-20s %10.0f calls %10.2f%n",
+                                phase, count, (sumAndCount[0] - previous[0]) * 1000 / count);
+                    }
+                });
+    }
+
+    private static String describePage(HttpResponse<String> response) {
+        String body = response.body();
+        if (body == null || body.isEmpty()) {
+            return "";
+        }
+        Matcher title = Pattern.compile("<title>([^<]*)</title>").matcher(body);
+        return title.find() ? title.group(1).trim() : "";
+    }
+
+    private static String unescape(String value) {
+        return value.replace("&quot;", "\"")
+                .replace("&#39;", "'")
+                .replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&amp;", "&");
+    }
+
+    private static final class LoginFailure extends RuntimeException {
+
+        final Phase phase;
+
+        LoginFailure(Phase phase, String message) {
+            super(message, null, false, false);
+            this.phase = phase;
+        }
+    }
+
+    /** Latencies and failures of one concurrency level. */
+    static final class Result {
+
+        final int concurrency;
+        final LongAdder successes = new LongAdder();
+        final Map<Phase, LatencyRecorder> latencies = new EnumMap<>(Phase.class);
+        final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+        long elapsedNanos;
+
+        Result(int concurrency) {
+            this.concurrency = concurrency;
+            for (Phase phase : Phase.values()) {
+                latencies.put(phase, new LatencyRecorder());
+            }
+        }
+
+        void record(Phase phase, long nanos) {
+            latencies.get(phase).record(nanos);
+        }
+
+        void fail(Phase phase, String cause) {
+            failures.computeIfAbsent(phase.value() + ": " + cause, c -> new LongAdder())
+                    .increment();
+        }
+
+        void print(PrintStream out) {
+            long failed = failures.values().stream().mapToLong(LongAdder::sum).sum();
+            double seconds = elapsedNanos / 1e9;
+            out.printf(
+                    "%nConcurrency %d: %.1f logins/s, %d ok, %d failed in %.1f s%n",
+                    concurrency, successes.sum() / seconds, successes.sum(), failed, seconds);
+            out.printf("  %-16s %10s %10s %10s %10s%n", "phase (ms)", "count", "p50", "p95", "p99");
+            for (Phase phase : Phase.values()) {
+                long[] samples = latencies.get(phase).sorted();
+                if (samples.length > 0) {
+                    out.printf(
+                            "  %-16s %10d %10.1f %10.1f %10.1f%n",
+                            phase.value(),
+                            samples.length,
+                            percentile(samples, 50),
+                            percentile(samples, 95),
+                            percentile(samples, 99));
+                }
+            }
+            new TreeMap<>(failures)
+                    .forEach(
+                            (cause, count) ->
+                                    out.printf("  failed %-40s %d%n", cause, count.sum()));
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+            return sorted[Math.max(index, 0)] / 1e6;
+        }
+    }
+
+    /** Keeps every sample of a run; runs are minutes long, so this stays small. */
+    static final class LatencyRecorder {
+
+        private long[] samples = new long[1024];
+        private int size;
+
+        synchronized void record(long nanos) {
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, size * 2);
+            }
+            samples[size++] = nanos;
+        }
+
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(samples, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    static final class Options {
+
+        String keycloakUrl = "http://localhost:8080";
+        String realm = "waldur";
+        String clientId = "viisp-load";
+        String redirectUri = "http://localhost:8081/callback";
+        String idpAlias = "viisp";
+        String metricsUrl;
+        int[] concurrency = {1, 4, 16, 64};
+        Duration duration = Duration.ofSeconds(30);
+        Duration warmup = Duration.ofSeconds(10);
+        Duration timeout = Duration.ofSeconds(30);
+        int simulatorPort;
+        int sourceParameters;
+        ViispSimulator.Faults faults = ViispSimulator.Faults.none();
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--keycloak":
+                        options.keycloakUrl = value.replaceAll("/+$", "");
+                        break;
+                    case "--realm":
+                        options.realm = value;
+                        break;
+                    case "--client":
+                        options.clientId = value;
+                        break;
+                    case "--redirect-uri":
+                        options.redirectUri = value;
+                        break;
+                    case "--idp":
+                        options.idpAlias = value;
+                        break;
+                    case "--metrics-url":
+                        options.metricsUrl = value;
+                        break;
+                    case "--concurrency":
+                        List<Integer> levels = new ArrayList<>();
+                        for (String level : value.split(",")) {
+                            levels.add(Integer.parseInt(level.trim()));
+                        }
+                        options.concurrency =
+                                levels.stream().mapToInt(Integer::intValue).toArray();
+                        break;
+                    case "--duration":
+                        options.duration = Duration.ofSeconds(Long.parseLong(value));
+                        break;
+                    case "--warmup":
+                        options.warmup = Duration.ofSeconds(Long.parseLong(value));
+                        break;
+                    case "--timeout":
+                        options.timeout = Duration.ofSeconds(Long.parseLong(value));
+                        break;
+                    case "--simulator-port":
+                        options.simulatorPort = Integer.parseInt(value);
+                        break;
+                    case "--source-parameters":
+                        options.sourceParameters = Integer.parseInt(value);
+                        break;
+                    case "--faults":
+                        options.faults = ViispSimulator.Faults.parse(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            return options;
+        }
+    }
+}
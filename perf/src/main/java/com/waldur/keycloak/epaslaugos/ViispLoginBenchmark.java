@@ -0,0 +1,73 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Client side of a whole VIISP login without a network: ticket request, authentication data
+ * request and parsing, through the client with its breaker, bulkhead and retry handling.
+ *
+ * <p>Responses come from the corpus by default. With {@code -p exchanges=<file>} the exchanges
+ * recorded by the record transport are replayed instead, without their latency, so the
+ * benchmark runs on the response shapes of real traffic.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ViispLoginBenchmark {
+
+    private static final String AUTH_SERVICE_URL = "https://viisp.invalid/services/services/auth";
+    private static final String CALLBACK_URL =
+            "https://keycloak.example.org/realms/waldur/broker/viisp/endpoint";
+    private static final String CORPUS = "corpus";
+
+    @Param({ViispResponseCorpus.SMALL, ViispResponseCorpus.COMPANY, ViispResponseCorpus.LARGE})
+    public String response;
+
+    /** "corpus", or a file of recorded exchanges to replay. */
+    @Param({CORPUS})
+    public String exchanges;
+
+    private ViispXMLClient client;
+    private List<String> authServiceUrls;
+
+    @Setup
+    public void setUp() throws Exception {
+        ViispTransport transport =
+                CORPUS.equals(exchanges)
+                        ? ViispInMemoryTransport.fixed(
+                                ViispResponseCorpus.get(ViispResponseCorpus.TICKET),
+                                ViispResponseCorpus.get(response))
+                        : ViispReplayTransport.forFile(Path.of(exchanges), false);
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setAlias("viisp");
+        client =
+                new ViispXMLClient(config, ViispMetrics.noop(), ViispTracing.noop(), transport);
+        authServiceUrls = List.of(AUTH_SERVICE_URL);
+        // Load the key pair outside of the measurement
+        login();
+    }
+
+    @Benchmark
+    public ViispUserInfo login() throws Exception {
+        String ticket =
+                client.requestAuthenticationTicket(
+                        CALLBACK_URL, ViispXMLClient.TEST_PID, authServiceUrls, "custom-data");
+        return client.getUserInfo(ticket, authServiceUrls);
+    }
+}
@@ -0,0 +1,51 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Response side of a VIISP login: extracting the user data with either parser. */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ViispParsingBenchmark {
+
+    @Param({
+        ViispResponseCorpus.SMALL,
+        ViispResponseCorpus.COMPANY,
+        ViispResponseCorpus.MEDIUM,
+        ViispResponseCorpus.LARGE
+    })
+    public String response;
+
+    @Param({"streaming", "dom"})
+    public String parser;
+
+    private ViispXMLClient client;
+    private String userDataResponse;
+
+    @Setup
+    public void setUp() {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setResponseParser(ViispResponseParser.fromValue(parser));
+        client = new ViispXMLClient(config);
+        userDataResponse = ViispResponseCorpus.get(response);
+    }
+
+    @Benchmark
+    public ViispUserInfo parseUserDataFromXml() throws Exception {
+        return client.parseUserDataFromXml(userDataResponse);
+    }
+}
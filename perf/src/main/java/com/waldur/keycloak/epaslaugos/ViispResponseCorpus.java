@@ -0,0 +1,74 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * VIISP SOAP responses used by the benchmarks.
+ *
+ * <p>small, company, edge, empty, fault and ticket are stored under /corpus. medium and large are
+ * the company response with 500 and 5000 source data parameters, the way bank logins return the
+ * raw bank link data, giving responses of about 60 KB and 600 KB.
+ */
+public final class ViispResponseCorpus {
+
+    public static final String SMALL = "small";
+    public static final String COMPANY = "company";
+    public static final String MEDIUM = "medium";
+    public static final String LARGE = "large";
+    public static final String EDGE = "edge";
+    public static final String EMPTY = "empty";
+    public static final String FAULT = "fault";
+    public static final String TICKET = "ticket";
+
+    private static final String SOURCE_DATA_START = "<authentication:sourceData>";
+    private static final String SOURCE_DATA_END = "</authentication:sourceData>";
+
+    private ViispResponseCorpus() {}
+
+    public static String get(String name) {
+        switch (name) {
+            case MEDIUM:
+                return withSourceParameters(resource(COMPANY), 500);
+            case LARGE:
+                return withSourceParameters(resource(COMPANY), 5000);
+            default:
+                return resource(name);
+        }
+    }
+
+    /** Replaces the source data of the response by the given number of bank link parameters. */
+    public static String withSourceParameters(String response, int parameters) {
+        int start = response.indexOf(SOURCE_DATA_START);
+        int end = response.indexOf(SOURCE_DATA_END);
+        if (start < 0 || end < 0) {
+            throw new IllegalArgumentException("The response has no source data");
+        }
+
+        StringBuilder sourceData = new StringBuilder(SOURCE_DATA_START);
+        sourceData.append("<authentication:type>BANKLINK</authentication:type>");
+        for (int i = 0; i < parameters; i++) {
+            sourceData
+                    .append("<authentication:parameter name=\"VK_")
+                    .append(i)
+                    .append("\">value-")
+                    .append(i)
+                    .append("-xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx</authentication:parameter>");
+        }
+        return response.substring(0, start) + sourceData + response.substring(end);
+    }
+
+    private static String resource(String name) {
+        String path = "/corpus/" + name + ".xml";
+        try (InputStream input = ViispResponseCorpus.class.getResourceAsStream(path)) {
+            if (input == null) {
+                throw new IllegalArgumentException("Unknown corpus response " + name);
+            }
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * Request side of a VIISP login: building, marshalling and signing the authentication and
+ * authentication data requests with the bundled test keystore.
+ *
+ * <p>{@code signer} selects how authentication requests are signed: from the canonical template
+ * or through the DOM. The other benchmarks do not depend on it. {@code algorithms} is the
+ * signature and digest algorithm pair; ECDSA signs with the EC key of keystore-ec-test.jks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ViispSigningBenchmark {
+
+    private static final String CALLBACK_URL =
+            "https://keycloak.example.org/realms/waldur/broker/viisp/endpoint";
+    private static final String CUSTOM_DATA =
+            "Y2FsbGJhY2stc3RhdGUtdmFsdWU.tab-id.client-id.0b6e6d9c-4a8b-4a3e-9c1d-2f6a1b7c8d9e";
+
+    private static final String EC_KEYSTORE_PATH = "/keystore-ec-test.jks";
+
+    @Param({"template", "generic"})
+    public String signer;
+
+    @Param({"rsa-sha1/sha1", "rsa-sha256/sha256", "rsa-sha512/sha512", "ecdsa-sha256/sha256"})
+    public String algorithms;
+
+    private ViispXMLClient client;
+    private ViispAuthenticationDataRequest dataRequest;
+    private Document unsignedDocument;
+
+    @Setup
+    public void setUp() throws Exception {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setRequestSigner(ViispRequestSigner.fromValue(signer));
+        String[] pair = algorithms.split("/");
+        ViispSignatureAlgorithm signatureAlgorithm = ViispSignatureAlgorithm.fromValue(pair[0]);
+        config.setSignatureAlgorithm(signatureAlgorithm);
+        config.setDigestAlgorithm(ViispDigestAlgorithm.fromValue(pair[1]));
+        if (signatureAlgorithm == ViispSignatureAlgorithm.ECDSA_SHA256) {
+            config.setKeystorePath(EC_KEYSTORE_PATH);
+            config.setKeystorePassword("viisp-test");
+        }
+        client = new ViispXMLClient(config);
+        dataRequest = new ViispAuthenticationDataRequest();
+        dataRequest.setId(ViispXMLClient.SIGNED_NODE_ID);
+        dataRequest.setPid(ViispXMLClient.TEST_PID);
+        dataRequest.setIncludeSourceData(true);
+        dataRequest.setTicket("a8c5e1d4-2f8b-4c3e-9d71-5b6f0e2a9c13");
+        // Load the key pair outside of the measurement
+        client.buildAuthDataRequest("warm-up");
+        client.buildAuthRequest(ViispXMLClient.TEST_PID, CALLBACK_URL, CUSTOM_DATA);
+    }
+
+    @Setup(Level.Invocation)
+    public void newUnsignedDocument() {
+        unsignedDocument = ViispXmlMarshaller.marshal(dataRequest);
+        client.setIdAttribute(unsignedDocument.getDocumentElement());
+    }
+
+    @Benchmark
+    public String buildAuthRequest() throws Exception {
+        return client.buildAuthRequest(ViispXMLClient.TEST_PID, CALLBACK_URL, CUSTOM_DATA);
+    }
+
+    @Benchmark
+    public String buildAuthDataRequest() throws Exception {
+        return client.buildAuthDataRequest("a8c5e1d4-2f8b-4c3e-9d71-5b6f0e2a9c13");
+    }
+
+    @Benchmark
+    public Document marshalAuthRequest() {
+        return ViispAuthenticationRequestTemplate.forService(
+                        ViispXMLClient.TEST_PID, ViispServiceTarget.CITIZEN)
+                .newDocument(CALLBACK_URL, CUSTOM_DATA);
+    }
+
+    @Benchmark
+    public Document marshalAuthDataRequest() {
+        return ViispXmlMarshaller.marshal(dataRequest);
+    }
+
+    /** Signature and serialization only; the document is marshalled outside of the measurement. */
+    @Benchmark
+    public String getSignedXml() throws Exception {
+        return client.getSignedXml(
+                unsignedDocument.getDocumentElement(), "#" + ViispXMLClient.SIGNED_NODE_ID);
+    }
+}
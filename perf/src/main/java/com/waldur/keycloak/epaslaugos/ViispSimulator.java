@@ -0,0 +1,599 @@
+package com.waldur.keycloak.epaslaugos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Local stand-in for the VIISP authentication service.
+ *
+ * <p>Implements the authenticationRequest and authenticationDataRequest SOAP operations the way
+ * {@link ViispXMLClient} uses them: a ticket is issued for every authentication request and can be
+ * redeemed once for user data. The redirect service page takes the ticket like the VIISP portal
+ * does and posts it back to the postbackUrl of the request, as if the user had logged in.
+ *
+ * <p>Latency, SOAP faults, connection resets and slowly written bodies are injected per operation
+ * according to {@link Faults}, which can be changed while the simulator is running to reproduce a
+ * degradation. Requests are handled on virtual threads, so injected latency doesn't limit the
+ * number of concurrent requests.
+ */
+public final class ViispSimulator implements AutoCloseable {
+
+    public static final String AUTH_PATH = "/services/services/auth";
+    public static final String REDIRECT_PATH = "/portal/external/services/authentication/v2";
+
+    private static final String NAMESPACE = ViispXmlMarshaller.NAMESPACE;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final AtomicLong personalCodes = new AtomicLong(39001010000L);
+
+    private volatile Faults ticketFaults = Faults.none();
+    private volatile Faults dataFaults = Faults.none();
+    private volatile Duration ticketLifetime = Duration.ofMinutes(30);
+    private volatile int sourceParameters;
+
+    private final LongAdder ticketRequests = new LongAdder();
+    private final LongAdder dataRequests = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+    private final LongAdder injectedResets = new LongAdder();
+    private final LongAdder slowBodies = new LongAdder();
+    private final LongAdder rejectedTickets = new LongAdder();
+
+    private ViispSimulator(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /** Starts a simulator on the loopback interface; port 0 picks a free port. */
+    public static ViispSimulator start(int port) throws IOException {
+        return start(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    public static ViispSimulator start(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 1024);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        ViispSimulator simulator = new ViispSimulator(server, executor);
+        server.createContext(AUTH_PATH, simulator::handleSoap);
+        server.createContext(REDIRECT_PATH, simulator::handleRedirect);
+        server.setExecutor(executor);
+        server.start();
+        return simulator;
+    }
+
+    public String getAuthServiceUrl() {
+        return baseUrl() + AUTH_PATH;
+    }
+
+    public String getRedirectServiceUrl() {
+        return baseUrl() + REDIRECT_PATH;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /** Applies the faults to both SOAP operations. */
+    public ViispSimulator setFaults(Faults faults) {
+        this.ticketFaults = faults;
+        this.dataFaults = faults;
+        return this;
+    }
+
+    public ViispSimulator setTicketFaults(Faults faults) {
+        this.ticketFaults = faults;
+        return this;
+    }
+
+    public ViispSimulator setDataFaults(Faults faults) {
+        this.dataFaults = faults;
+        return this;
+    }
+
+    public ViispSimulator setTicketLifetime(Duration ticketLifetime) {
+        this.ticketLifetime = ticketLifetime;
+        return this;
+    }
+
+    /** Number of bank link parameters in the source data of user data responses. */
+    public ViispSimulator setSourceParameters(int sourceParameters) {
+        this.sourceParameters = sourceParameters;
+        return this;
+    }
+
+    /**
+     * The form the VIISP portal posts back to the service after the user logged in, without going
+     * through the redirect page. Returns null for unknown tickets.
+     */
+    public Postback postback(String ticket) {
+        Ticket issued = tickets.get(ticket);
+        return issued != null ? new Postback(issued.postbackUrl, ticket, issued.customData) : null;
+    }
+
+    public Stats getStats() {
+        return new Stats(
+                ticketRequests.sum(),
+                dataRequests.sum(),
+                redirects.sum(),
+                injectedErrors.sum(),
+                injectedResets.sum(),
+                slowBodies.sum(),
+                rejectedTickets.sum(),
+                tickets.size());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private String baseUrl() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort();
+    }
+
+    private void handleSoap(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "text/plain", "Only POST is supported", Duration.ZERO);
+                return;
+            }
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            Document request;
+            try {
+                request = ViispXmlSupport.parse(body);
+            } catch (Exception e) {
+                sendFault(exchange, "soap:Client", "Malformed request: " + e.getMessage());
+                return;
+            }
+
+            if (hasElement(request, "authenticationRequest")) {
+                ticketRequests.increment();
+                if (injectFaults(exchange, ticketFaults)) {
+                    return;
+                }
+                send(exchange, 200, "text/xml; charset=utf-8", issueTicket(request), slow(ticketFaults));
+            } else if (hasElement(request, "authenticationDataRequest")) {
+                dataRequests.increment();
+                if (injectFaults(exchange, dataFaults)) {
+                    return;
+                }
+                String ticket = text(request, "ticket");
+                Ticket issued = ticket != null ? redeem(ticket) : null;
+                if (issued == null) {
+                    rejectedTickets.increment();
+                    sendFault(exchange, "soap:Server", "Ticket not found or already used");
+                    return;
+                }
+                send(
+                        exchange,
+                        200,
+                        "text/xml; charset=utf-8",
+                        userDataResponse(issued),
+                        slow(dataFaults));
+            } else {
+                sendFault(exchange, "soap:Client", "Unknown operation");
+            }
+        }
+    }
+
+    private void handleRedirect(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            redirects.increment();
+            Map<String, String> parameters = new HashMap<>();
+            parseForm(exchange.getRequestURI().getRawQuery(), parameters);
+            if ("POST".equals(exchange.getRequestMethod())) {
+                parseForm(
+                        new String(
+                                exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8),
+                        parameters);
+            }
+
+            Postback postback = postback(parameters.get("ticket"));
+            if (postback == null) {
+                send(exchange, 404, "text/html; charset=utf-8", "<p>Unknown ticket</p>", Duration.ZERO);
+                return;
+            }
+            // The user "logged in", send the browser back to the service
+            String page =
+                    "<!DOCTYPE html><html><body onload='document.forms[0].submit()'>"
+                            + "<form method='post' action='"
+                            + escape(postback.url())
+                            + "'><input type='hidden' name='ticket' value='"
+                            + escape(postback.ticket())
+                            + "'/><input type='hidden' name='customData' value='"
+                            + escape(postback.customData() != null ? postback.customData() : "")
+                            + "'/></form></body></html>";
+            send(exchange, 200, "text/html; charset=utf-8", page, Duration.ZERO);
+        }
+    }
+
+    /** Applies latency, resets and errors; returns true if the exchange was already answered. */
+    private boolean injectFaults(HttpExchange exchange, Faults faults) throws IOException {
+        Duration latency = faults.latency().sample(ThreadLocalRandom.current());
+        if (!latency.isZero()) {
+            sleep(latency.toMillis());
+        }
+        if (roll(faults.resetRate())) {
+            injectedResets.increment();
+            // Closing the exchange without a response drops the connection
+            exchange.getResponseBody().close();
+            return true;
+        }
+        if (roll(faults.errorRate())) {
+            injectedErrors.increment();
+            sendFault(exchange, "soap:Server", "Injected failure");
+            return true;
+        }
+        return false;
+    }
+
+    private Duration slow(Faults faults) {
+        if (roll(faults.slowBodyRate())) {
+            slowBodies.increment();
+            return faults.slowBodyDuration();
+        }
+        return Duration.ZERO;
+    }
+
+    private String issueTicket(Document request) {
+        String ticket = UUID.randomUUID().toString();
+        tickets.put(
+                ticket,
+                new Ticket(
+                        text(request, "postbackUrl"),
+                        text(request, "customData"),
+                        System.nanoTime() + ticketLifetime.toNanos()));
+        return envelope(
+                "<authentication:authenticationResponse xmlns:authentication=\""
+                        + NAMESPACE
+                        + "\" id=\"uniqueNodeId\"><authentication:ticket>"
+                        + ticket
+                        + "</authentication:ticket></authentication:authenticationResponse>");
+    }
+
+    private Ticket redeem(String ticket) {
+        Ticket issued = tickets.remove(ticket);
+        if (issued == null || System.nanoTime() - issued.expiresAtNanos > 0) {
+            return null;
+        }
+        return issued;
+    }
+
+    private String userDataResponse(Ticket ticket) {
+        long personalCode = personalCodes.getAndIncrement();
+        StringBuilder body = new StringBuilder(1024 + sourceParameters * 96);
+        body.append("<authentication:authenticationDataResponse xmlns:authentication=\"")
+                .append(NAMESPACE)
+                .append("\" id=\"uniqueNodeId\">")
+                .append("<authentication:authenticationProvider>auth.lt.bank")
+                .append("</authentication:authenticationProvider>")
+                .append("<authentication:authenticationAttribute>")
+                .append("<authentication:attribute>lt-personal-code</authentication:attribute>")
+                .append("<authentication:value>")
+                .append(personalCode)
+                .append("</authentication:value></authentication:authenticationAttribute>");
+        appendInformation(body, "firstName", "JONAS");
+        appendInformation(body, "lastName", "JONAITIS");
+        appendInformation(body, "email", "user" + personalCode + "@example.lt");
+        appendInformation(body, "birthday", "1990-01-01");
+        appendInformation(body, "nationality", "LT");
+        body.append("<authentication:sourceData>")
+                .append("<authentication:type>BANKLINK</authentication:type>");
+        for (int i = 0; i < sourceParameters; i++) {
+            body.append("<authentication:parameter name=\"VK_")
+                    .append(i)
+                    .append("\">value-")
+                    .append(i)
+                    .append("</authentication:parameter>");
+        }
+        body.append("</authentication:sourceData>");
+        if (ticket.customData != null) {
+            body.append("<authentication:customData>")
+                    .append(escape(ticket.customData))
+                    .append("</authentication:customData>");
+        }
+        body.append("</authentication:authenticationDataResponse>");
+        return envelope(body.toString());
+    }
+
+    private static void appendInformation(StringBuilder body, String information, String value) {
+        body.append("<authentication:userInformation><authentication:information>")
+                .append(information)
+                .append("</authentication:information><authentication:value>")
+                .append("<authentication:stringValue>")
+                .append(escape(value))
+                .append("</authentication:stringValue></authentication:value>")
+                .append("</authentication:userInformation>");
+    }
+
+    private static void sendFault(HttpExchange exchange, String code, String message)
+            throws IOException {
+        send(
+                exchange,
+                500,
+                "text/xml; charset=utf-8",
+                envelope(
+                        "<soap:Fault><faultcode>"
+                                + code
+                                + "</faultcode><faultstring>"
+                                + escape(message)
+                                + "</faultstring></soap:Fault>"),
+                Duration.ZERO);
+    }
+
+    private static void send(
+            HttpExchange exchange, int status, String contentType, String body, Duration slow)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            if (slow.isZero()) {
+                output.write(bytes);
+                return;
+            }
+            // Dribble the body out in ten parts over the slow body duration
+            int chunk = Math.max(bytes.length / 10, 1);
+            for (int offset = 0; offset < bytes.length; offset += chunk) {
+                output.write(bytes, offset, Math.min(chunk, bytes.length - offset));
+                output.flush();
+                sleep(slow.toMillis() / 10);
+            }
+        }
+    }
+
+    private static String envelope(String payload) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<soap:Body>"
+                + payload
+                + "</soap:Body></soap:Envelope>";
+    }
+
+    private static boolean hasElement(Document document, String localName) {
+        return document.getElementsByTagNameNS(NAMESPACE, localName).getLength() > 0;
+    }
+
+    private static String text(Document document, String localName) {
+        NodeList nodes = document.getElementsByTagNameNS(NAMESPACE, localName);
+        if (nodes.getLength() == 0) {
+            return null;
+        }
+        String text = nodes.item(0).getTextContent().trim();
+        return text.isEmpty() ? null : text;
+    }
+
+    private static void parseForm(String form, Map<String, String> parameters) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                parameters.put(
+                        URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /** Encodes the postback form the way a browser would submit it. */
+    public static String formBody(Postback postback) {
+        return "ticket="
+                + URLEncoder.encode(postback.ticket(), StandardCharsets.UTF_8)
+                + "&customData="
+                + URLEncoder.encode(
+                        postback.customData() != null ? postback.customData() : "",
+                        StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;")
+                .replace("'", "&#39;");
+    }
+
+    private static boolean roll(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Starts a simulator from the command line, see {@link Faults#parse} for the options. */
+    public static void main(String[] args) throws Exception {
+        int port = 8089;
+        Faults faults = Faults.none();
+        int parameters = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--faults":
+                    faults = Faults.parse(args[i + 1]);
+                    break;
+                case "--source-parameters":
+                    parameters = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        ViispSimulator simulator =
+                start(new InetSocketAddress(port)).setFaults(faults).setSourceParameters(parameters);
+        System.out.println("VIISP simulator with " + faults);
+        System.out.println("Auth service URL:     " + simulator.getAuthServiceUrl());
+        System.out.println("Redirect service URL: " + simulator.getRedirectServiceUrl());
+    }
+
+    private static final class Ticket {
+
+        final String postbackUrl;
+        final String customData;
+        final long expiresAtNanos;
+
+        Ticket(String postbackUrl, String customData, long expiresAtNanos) {
+            this.postbackUrl = postbackUrl;
+            this.customData = customData;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    /** The form VIISP posts to the postbackUrl of the service. */
+    public record Postback(String url, String ticket, String customData) {}
+
+    /** Counters of a running simulator. */
+    public record Stats(
+            long ticketRequests,
+            long dataRequests,
+            long redirects,
+            long injectedErrors,
+            long injectedResets,
+            long slowBodies,
+            long rejectedTickets,
+            int openTickets) {}
+
+    /** Random response latency. */
+    @FunctionalInterface
+    public interface LatencyDistribution {
+
+        Duration sample(Random random);
+
+        static LatencyDistribution none() {
+            return random -> Duration.ZERO;
+        }
+
+        static LatencyDistribution fixed(Duration latency) {
+            return random -> latency;
+        }
+
+        static LatencyDistribution uniform(Duration min, Duration max) {
+            long minNanos = min.toNanos();
+            long range = max.toNanos() - minNanos;
+            return random -> Duration.ofNanos(minNanos + (long) (random.nextDouble() * range));
+        }
+
+        /** Log-normal latency: most calls close to the median, with a long tail. */
+        static LatencyDistribution logNormal(Duration median, double sigma) {
+            double mu = Math.log(median.toNanos());
+            return random -> Duration.ofNanos((long) Math.exp(mu + sigma * random.nextGaussian()));
+        }
+
+        /**
+         * Parses fixed:MS, uniform:MIN_MS:MAX_MS or lognormal:MEDIAN_MS:SIGMA, e.g.
+         * lognormal:80:0.5.
+         */
+        static LatencyDistribution parse(String spec) {
+            String[] parts = spec.split(":");
+            switch (parts[0]) {
+                case "none":
+                    return none();
+                case "fixed":
+                    return fixed(Duration.ofMillis(Long.parseLong(parts[1])));
+                case "uniform":
+                    return uniform(
+                            Duration.ofMillis(Long.parseLong(parts[1])),
+                            Duration.ofMillis(Long.parseLong(parts[2])));
+                case "lognormal":
+                    return logNormal(
+                            Duration.ofMillis(Long.parseLong(parts[1])),
+                            Double.parseDouble(parts[2]));
+                default:
+                    throw new IllegalArgumentException("Unknown latency distribution " + spec);
+            }
+        }
+    }
+
+    /** Faults injected into one SOAP operation; rates are probabilities between 0 and 1. */
+    public record Faults(
+            LatencyDistribution latency,
+            double errorRate,
+            double resetRate,
+            double slowBodyRate,
+            Duration slowBodyDuration) {
+
+        public static Faults none() {
+            return new Faults(LatencyDistribution.none(), 0, 0, 0, Duration.ZERO);
+        }
+
+        public Faults withLatency(LatencyDistribution latency) {
+            return new Faults(latency, errorRate, resetRate, slowBodyRate, slowBodyDuration);
+        }
+
+        public Faults withErrorRate(double errorRate) {
+            return new Faults(latency, errorRate, resetRate, slowBodyRate, slowBodyDuration);
+        }
+
+        public Faults withResetRate(double resetRate) {
+            return new Faults(latency, errorRate, resetRate, slowBodyRate, slowBodyDuration);
+        }
+
+        public Faults withSlowBody(double slowBodyRate, Duration slowBodyDuration) {
+            return new Faults(latency, errorRate, resetRate, slowBodyRate, slowBodyDuration);
+        }
+
+        /**
+         * Parses a comma-separated list of latency=SPEC, errors=RATE, resets=RATE and
+         * slow=RATE:MS, e.g. latency=lognormal:80:0.5,errors=0.01,slow=0.05:2000.
+         */
+        public static Faults parse(String spec) {
+            Faults faults = none();
+            for (String option : spec.split(",")) {
+                String[] keyValue = option.split("=", 2);
+                switch (keyValue[0].trim()) {
+                    case "latency":
+                        faults = faults.withLatency(LatencyDistribution.parse(keyValue[1]));
+                        break;
+                    case "errors":
+                        faults = faults.withErrorRate(Double.parseDouble(keyValue[1]));
+                        break;
+                    case "resets":
+                        faults = faults.withResetRate(Double.parseDouble(keyValue[1]));
+                        break;
+                    case "slow":
+                        String[] slow = keyValue[1].split(":");
+                        faults =
+                                faults.withSlowBody(
+                                        Double.parseDouble(slow[0]),
+                                        Duration.ofMillis(Long.parseLong(slow[1])));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown fault option " + option);
+                }
+            }
+            return faults;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Extracting the ticket from an authenticationResponse. */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ViispTicketParsingBenchmark {
+
+    private String ticketResponse;
+
+    @Setup
+    public void setUp() {
+        ticketResponse = ViispResponseCorpus.get(ViispResponseCorpus.TICKET);
+    }
+
+    @Benchmark
+    public String parseTicketFromXml() throws Exception {
+        return ViispXMLClient.parseTicketFromXml(ticketResponse);
+    }
+}
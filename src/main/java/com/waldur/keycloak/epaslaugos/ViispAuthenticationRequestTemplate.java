@@ -0,0 +1,237 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Precompiled authentication request for a service ID and service target.
+ *
+ * <p>Everything except the postback URL and custom data is the same for every login, so the request
+ * is built and marshalled once per service and each login only gets a copy of the marshalled
+ * document with the variable elements filled in, or is signed directly from the canonical form of
+ * the template by a {@link ViispTemplateSigner}.
+ */
+public final class ViispAuthenticationRequestTemplate {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(ViispAuthenticationRequestTemplate.class);
+
+    private static final ConcurrentMap<TemplateKey, ViispAuthenticationRequestTemplate> TEMPLATES =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Most template signers kept per request; more are only needed by many identity providers
+     * sharing a service ID or by reloaded keystores. The least recently used signers are evicted
+     * and created again when they are used.
+     */
+    static final int MAX_SIGNERS = 8;
+
+    private static final LongAdder LOOKUPS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    private final Document document;
+
+    /** Template signers by key and algorithms. */
+    private final ConcurrentMap<SignerKey, CachedSigner> signers = new ConcurrentHashMap<>();
+
+    private ViispAuthenticationRequestTemplate(Document document) {
+        this.document = document;
+    }
+
+    public static ViispAuthenticationRequestTemplate forService(
+            String pid, ViispServiceTarget serviceTarget) {
+        LOOKUPS.increment();
+        return TEMPLATES.computeIfAbsent(
+                new TemplateKey(pid, serviceTarget),
+                key -> {
+                    MISSES.increment();
+                    return new ViispAuthenticationRequestTemplate(
+                            ViispXmlMarshaller.marshal(createRequest(pid, serviceTarget)));
+                });
+    }
+
+    public static ViispCacheStats getStats() {
+        long misses = MISSES.sum();
+        return new ViispCacheStats(Math.max(LOOKUPS.sum() - misses, 0), misses, TEMPLATES.size());
+    }
+
+    /** Returns a new document of this request with the variable fields filled in. */
+    public Document newDocument(String postbackUrl, String customData) {
+        Document copy;
+        // DOM implementations lazily initialize internal state even on reads
+        synchronized (document) {
+            copy = (Document) document.cloneNode(true);
+        }
+        Element root = copy.getDocumentElement();
+        setText(root, "postbackUrl", postbackUrl);
+        setText(root, "customData", customData);
+        return copy;
+    }
+
+    /**
+     * Returns the template signer of this request for the key and algorithms, or null if requests
+     * have to be signed through the DOM. Its values are the postback URL and the custom data.
+     */
+    public ViispTemplateSigner signer(
+            ViispKeyMaterial keyMaterial, ViispXmlSigner.Algorithms algorithms) {
+        SignerKey key = new SignerKey(keyMaterial, algorithms);
+        CachedSigner cached = signers.get(key);
+        if (cached == null) {
+            cached =
+                    signers.computeIfAbsent(
+                            key,
+                            k ->
+                                    new CachedSigner(
+                                            Optional.ofNullable(
+                                                    createSigner(keyMaterial, algorithms))));
+            evictLeastRecentlyUsed();
+        }
+        cached.lastUsedNanos = System.nanoTime();
+        return cached.signer.orElse(null);
+    }
+
+    /** Removes the least recently used signers until at most {@link #MAX_SIGNERS} are left. */
+    private void evictLeastRecentlyUsed() {
+        while (signers.size() > MAX_SIGNERS) {
+            Map.Entry<SignerKey, CachedSigner> oldest = null;
+            for (Map.Entry<SignerKey, CachedSigner> entry : signers.entrySet()) {
+                if (oldest == null
+                        || entry.getValue().lastUsedNanos - oldest.getValue().lastUsedNanos < 0) {
+                    oldest = entry;
+                }
+            }
+            if (oldest != null) {
+                signers.remove(oldest.getKey(), oldest.getValue());
+            }
+        }
+    }
+
+    private ViispTemplateSigner createSigner(
+            ViispKeyMaterial keyMaterial, ViispXmlSigner.Algorithms algorithms) {
+        try {
+            return ViispTemplateSigner.create(
+                    values -> {
+                        Document copy = newDocument(values[0], values[1]);
+                        copy.getDocumentElement().setIdAttribute("id", true);
+                        return copy;
+                    },
+                    2,
+                    "#" + ViispXMLClient.SIGNED_NODE_ID,
+                    keyMaterial,
+                    algorithms);
+        } catch (Exception e) {
+            LOG.warn(
+                    "Authentication requests of key {} are signed through the DOM, the template"
+                            + " signer is not usable: {}",
+                    keyMaterial.getAlias(),
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /** Builds the request model without the per-login postback URL and custom data. */
+    public static ViispAuthenticationRequest createRequest(
+            String pid, ViispServiceTarget serviceTarget) {
+        ViispAuthenticationRequest request = new ViispAuthenticationRequest();
+        request.setId(ViispXMLClient.SIGNED_NODE_ID);
+        request.setPid(pid);
+
+        // Set service target
+        request.setServiceTarget(serviceTarget);
+
+        // Add authentication providers
+        request.getAuthenticationProvider().add(ViispAuthenticationProvider.AUTH_LOGIN_PASS);
+        request.getAuthenticationProvider().add(ViispAuthenticationProvider.AUTH_LT_IDENTITY_CARD);
+        request.getAuthenticationProvider()
+                .add(ViispAuthenticationProvider.AUTH_LT_GOVERNMENT_EMPLOYEE_CARD);
+        request.getAuthenticationProvider().add(ViispAuthenticationProvider.AUTH_LT_BANK);
+        request.getAuthenticationProvider().add(ViispAuthenticationProvider.AUTH_EIDAS);
+        request.getAuthenticationProvider()
+                .add(ViispAuthenticationProvider.AUTH_SIGNATURE_PROVIDER);
+        request.getAuthenticationProvider()
+                .add(ViispAuthenticationProvider.AUTH_ILTU_IDENTITY_CARD);
+
+        // Add authentication attributes
+        request.getAuthenticationAttribute().add(ViispAuthenticationAttribute.LT_PERSONAL_CODE);
+        request.getAuthenticationAttribute().add(ViispAuthenticationAttribute.LT_COMPANY_CODE);
+        request.getAuthenticationAttribute()
+                .add(ViispAuthenticationAttribute.LT_GOVERNMENT_EMPLOYEE_CODE);
+        request.getAuthenticationAttribute().add(ViispAuthenticationAttribute.EIDAS_EID);
+        request.getAuthenticationAttribute().add(ViispAuthenticationAttribute.LOGIN);
+        request.getAuthenticationAttribute().add(ViispAuthenticationAttribute.ILTU_PERSONAL_CODE);
+
+        // Add user information requests
+        request.getUserInformation().add(ViispUserInformation.ID);
+        request.getUserInformation().add(ViispUserInformation.FIRST_NAME);
+        request.getUserInformation().add(ViispUserInformation.LAST_NAME);
+        request.getUserInformation().add(ViispUserInformation.COMPANY_NAME);
+        request.getUserInformation().add(ViispUserInformation.ADDRESS);
+        request.getUserInformation().add(ViispUserInformation.EMAIL);
+        request.getUserInformation().add(ViispUserInformation.PHONE_NUMBER);
+        request.getUserInformation().add(ViispUserInformation.BIRTHDAY);
+        request.getUserInformation().add(ViispUserInformation.COMPANY_NAME);
+        request.getUserInformation().add(ViispUserInformation.NATIONALITY);
+        request.getUserInformation().add(ViispUserInformation.PROXY_TYPE);
+        request.getUserInformation().add(ViispUserInformation.PROXY_SOURCE);
+
+        // Add proxy authentication attributes
+        request.getProxyAuthenticationAttribute()
+                .add(ViispAuthenticationAttribute.LT_PERSONAL_CODE);
+        request.getProxyAuthenticationAttribute().add(ViispAuthenticationAttribute.LT_COMPANY_CODE);
+        request.getProxyAuthenticationAttribute()
+                .add(ViispAuthenticationAttribute.LT_GOVERNMENT_EMPLOYEE_CODE);
+        request.getProxyAuthenticationAttribute().add(ViispAuthenticationAttribute.EIDAS_EID);
+        request.getProxyAuthenticationAttribute().add(ViispAuthenticationAttribute.LOGIN);
+        request.getProxyAuthenticationAttribute()
+                .add(ViispAuthenticationAttribute.ILTU_PERSONAL_CODE);
+
+        request.getProxyUserInformation().add(ViispUserInformation.ID);
+        request.getUserInformation().add(ViispUserInformation.FIRST_NAME);
+        request.getUserInformation().add(ViispUserInformation.LAST_NAME);
+        request.getUserInformation().add(ViispUserInformation.ADDRESS);
+        request.getUserInformation().add(ViispUserInformation.EMAIL);
+        request.getUserInformation().add(ViispUserInformation.PHONE_NUMBER);
+        request.getUserInformation().add(ViispUserInformation.BIRTHDAY);
+        request.getUserInformation().add(ViispUserInformation.NATIONALITY);
+
+        return request;
+    }
+
+    private static void setText(Element root, String localName, String value) {
+        if (value == null) {
+            return;
+        }
+        for (Node child = root.getLastChild(); child != null; child = child.getPreviousSibling()) {
+            if (localName.equals(child.getLocalName())
+                    && ViispXmlMarshaller.NAMESPACE.equals(child.getNamespaceURI())) {
+                child.setTextContent(value);
+                return;
+            }
+        }
+        throw new IllegalStateException("Request template has no " + localName + " element");
+    }
+
+    private record TemplateKey(String pid, ViispServiceTarget serviceTarget) {}
+
+    /** Key material is compared by identity, a reloaded keystore gets a new signer. */
+    private record SignerKey(ViispKeyMaterial keyMaterial, ViispXmlSigner.Algorithms algorithms) {}
+
+    /** Template signer, empty if it cannot be used, and when it was last used. */
+    private static final class CachedSigner {
+
+        private final Optional<ViispTemplateSigner> signer;
+        private volatile long lastUsedNanos = System.nanoTime();
+
+        private CachedSigner(Optional<ViispTemplateSigner> signer) {
+            this.signer = signer;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of concurrent VIISP calls made for one identity provider, so that a slow VIISP
+ * service can only tie up a bounded number of Keycloak worker threads per realm.
+ */
+public final class ViispBulkhead {
+
+    private static final ConcurrentMap<String, ViispBulkhead> BULKHEADS = new ConcurrentHashMap<>();
+
+    private final String alias;
+    private final int maxConcurrentCalls;
+    private final Semaphore permits;
+    private final LongAdder rejectedCalls = new LongAdder();
+
+    private ViispBulkhead(String alias, int maxConcurrentCalls) {
+        this.alias = alias;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.permits = new Semaphore(maxConcurrentCalls);
+    }
+
+    /** Returns the bulkhead of the identity provider, or null if concurrency is not limited. */
+    public static ViispBulkhead forProvider(ViispIdentityProviderConfig config) {
+        int maxConcurrentCalls = config.getMaxConcurrentRequests();
+        String key = key(config);
+        if (maxConcurrentCalls <= 0 || key == null) {
+            return null;
+        }
+
+        ViispBulkhead bulkhead =
+                BULKHEADS.computeIfAbsent(
+                        key, k -> new ViispBulkhead(config.getAlias(), maxConcurrentCalls));
+        if (bulkhead.maxConcurrentCalls != maxConcurrentCalls) {
+            ViispBulkhead replacement = new ViispBulkhead(config.getAlias(), maxConcurrentCalls);
+            bulkhead = BULKHEADS.merge(key, replacement, (old, added) -> added);
+        }
+        return bulkhead;
+    }
+
+    /** Returns the bulkhead of the identity provider, or null if no call was limited by one yet. */
+    public static ViispBulkhead find(ViispIdentityProviderConfig config) {
+        String key = key(config);
+        return key != null ? BULKHEADS.get(key) : null;
+    }
+
+    public static Collection<ViispBulkhead> all() {
+        return Collections.unmodifiableCollection(BULKHEADS.values());
+    }
+
+    private static String key(ViispIdentityProviderConfig config) {
+        return config.getInternalId() != null ? config.getInternalId() : config.getAlias();
+    }
+
+    /** Takes a permit without waiting; returns false if the limit is reached. */
+    public boolean tryAcquire() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        rejectedCalls.increment();
+        return false;
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public int getActiveCalls() {
+        return maxConcurrentCalls - permits.availablePermits();
+    }
+
+    public long getRejectedCalls() {
+        return rejectedCalls.sum();
+    }
+}
@@ -0,0 +1,11 @@
+package com.waldur.keycloak.epaslaugos;
+
+/** Point-in-time hit and miss counts of one of the process-wide VIISP caches. */
+public record ViispCacheStats(long hits, long misses, int size) {
+
+    /** Share of lookups served from the cache, between 0 and 1; 0 before the first lookup. */
+    public double hitRate() {
+        long lookups = hits + misses;
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+}
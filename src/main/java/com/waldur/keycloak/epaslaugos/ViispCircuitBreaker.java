@@ -0,0 +1,215 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker around the calls to one VIISP auth service URL.
+ *
+ * <p>Breakers are kept per URL and settings: identity providers that call the same URL with the
+ * same settings share the outcomes of their calls, while a provider with other settings gets its
+ * own breaker instead of resetting the shared one.
+ *
+ * <p>The outcome of the last {@link #WINDOW_SIZE} calls is kept in a ring buffer; a call counts as
+ * failed if it threw, returned a server error or took longer than the slow call threshold. Once the
+ * failure rate of at least the minimum number of calls reaches the threshold the breaker opens and
+ * rejects calls for the open duration, after which a single trial call is let through (half-open)
+ * to decide whether to close again. A failure rate threshold of 0 disables the breaker.
+ */
+public final class ViispCircuitBreaker {
+
+    public static final int WINDOW_SIZE = 100;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispCircuitBreaker.class);
+
+    private static final ConcurrentMap<BreakerKey, ViispCircuitBreaker> BREAKERS =
+            new ConcurrentHashMap<>();
+
+    private static final int EMPTY = 0;
+    private static final int SUCCESS = 1;
+    private static final int FAILURE = 2;
+
+    /** State of a circuit breaker. */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String url;
+    private final Settings settings;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicIntegerArray window = new AtomicIntegerArray(WINDOW_SIZE);
+    private final AtomicInteger windowPosition = new AtomicInteger();
+    private final AtomicInteger recordedCalls = new AtomicInteger();
+    private final AtomicInteger failedCalls = new AtomicInteger();
+    private final AtomicInteger halfOpenPermits = new AtomicInteger();
+    private final LongAdder rejectedCalls = new LongAdder();
+    private final LongAdder openTransitions = new LongAdder();
+    private volatile long openedAtNanos;
+
+    private ViispCircuitBreaker(String url, Settings settings) {
+        this.url = url;
+        this.settings = settings;
+    }
+
+    public static ViispCircuitBreaker forUrl(String url, Settings settings) {
+        return BREAKERS.computeIfAbsent(
+                new BreakerKey(url, settings), key -> new ViispCircuitBreaker(url, settings));
+    }
+
+    /** Returns the breaker of the URL and settings, or null if no call was made to it yet. */
+    public static ViispCircuitBreaker find(String url, Settings settings) {
+        return BREAKERS.get(new BreakerKey(url, settings));
+    }
+
+    public static Collection<ViispCircuitBreaker> all() {
+        return Collections.unmodifiableCollection(BREAKERS.values());
+    }
+
+    /** Returns true if a call may be made now; every permitted call must be recorded. */
+    public boolean tryAcquirePermission() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAtNanos >= settings.openDuration().toNanos()
+                        && state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                    LOG.info("VIISP circuit breaker for {} is half-open", url);
+                    halfOpenPermits.set(1);
+                }
+                return tryAcquireHalfOpenPermit();
+            case HALF_OPEN:
+            default:
+                return tryAcquireHalfOpenPermit();
+        }
+    }
+
+    public void onSuccess(long durationNanos) {
+        if (durationNanos > settings.slowCallThreshold().toNanos()) {
+            onFailure();
+        } else if (state.get() == State.HALF_OPEN) {
+            close();
+        } else {
+            record(SUCCESS);
+        }
+    }
+
+    public void onFailure() {
+        if (state.get() == State.HALF_OPEN) {
+            open();
+        } else {
+            record(FAILURE);
+        }
+    }
+
+    /** Returns true while the breaker is open and would reject a call. */
+    public boolean isOpen() {
+        return state.get() == State.OPEN
+                && System.nanoTime() - openedAtNanos < settings.openDuration().toNanos();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public Stats getStats() {
+        int recorded = recordedCalls.get();
+        return new Stats(
+                state.get(),
+                recorded > 0 ? failedCalls.get() * 100.0 / recorded : 0,
+                recorded,
+                rejectedCalls.sum(),
+                openTransitions.sum());
+    }
+
+    private boolean tryAcquireHalfOpenPermit() {
+        if (state.get() == State.HALF_OPEN
+                && halfOpenPermits.getAndUpdate(permits -> Math.max(permits - 1, 0)) > 0) {
+            return true;
+        }
+        rejectedCalls.increment();
+        return false;
+    }
+
+    private void record(int outcome) {
+        int slot = Math.floorMod(windowPosition.getAndIncrement(), WINDOW_SIZE);
+        int previous = window.getAndSet(slot, outcome);
+        if (previous == EMPTY) {
+            recordedCalls.incrementAndGet();
+        } else if (previous == FAILURE) {
+            failedCalls.decrementAndGet();
+        }
+        int failed = outcome == FAILURE ? failedCalls.incrementAndGet() : failedCalls.get();
+        int recorded = recordedCalls.get();
+
+        if (settings.failureRateThreshold() > 0
+                && state.get() == State.CLOSED
+                && recorded >= settings.minimumCalls()
+                && failed * 100.0 / recorded >= settings.failureRateThreshold()) {
+            open();
+        }
+    }
+
+    private void open() {
+        openedAtNanos = System.nanoTime();
+        State previous = state.getAndSet(State.OPEN);
+        if (previous != State.OPEN) {
+            openTransitions.increment();
+            LOG.warn(
+                    "VIISP circuit breaker for {} is open, rejecting calls for {}",
+                    url,
+                    settings.openDuration());
+        }
+    }
+
+    private void close() {
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            window.set(i, EMPTY);
+        }
+        recordedCalls.set(0);
+        failedCalls.set(0);
+        if (state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+            LOG.info("VIISP circuit breaker for {} is closed", url);
+        }
+    }
+
+    /** Thresholds of a circuit breaker, taken from the identity provider configuration. */
+    public record Settings(
+            int failureRateThreshold,
+            Duration slowCallThreshold,
+            Duration openDuration,
+            int minimumCalls) {
+
+        public static Settings fromConfig(ViispIdentityProviderConfig config) {
+            return new Settings(
+                    config.getCircuitBreakerFailureRateThreshold(),
+                    Duration.ofMillis(config.getCircuitBreakerSlowCallMs()),
+                    Duration.ofMillis(config.getCircuitBreakerOpenMs()),
+                    config.getCircuitBreakerMinimumCalls());
+        }
+    }
+
+    private record BreakerKey(String url, Settings settings) {}
+
+    /** Point-in-time state of a circuit breaker. */
+    public record Stats(
+            State state,
+            double failureRate,
+            int recordedCalls,
+            long rejectedCalls,
+            long openTransitions) {}
+}
@@ -0,0 +1,168 @@
+package com.waldur.keycloak.epaslaugos;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.opentelemetry.context.Context;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the CPU-bound stages of VIISP logins, signing requests and parsing responses, on a pool of
+ * one thread per core instead of the Keycloak request threads, so a burst of logins cannot take
+ * every core from the rest of Keycloak.
+ *
+ * <p>The queue of the pool is bounded. A stage that finds it full fails at once with a {@link
+ * ViispServiceUnavailableException} rather than waiting, and is counted by {@value
+ * #REJECTED_COUNTER}. The time stages wait in the queue is recorded by {@value #QUEUE_TIMER} per
+ * phase. One pool is shared by all identity providers with the same queue capacity; the trace
+ * context of the caller is carried over to the pool thread.
+ */
+public final class ViispCryptoExecutor {
+
+    public static final String QUEUE_TIMER = "viisp.crypto.queue";
+    public static final String REJECTED_COUNTER = "viisp.crypto.rejected";
+    public static final String QUEUED_GAUGE = "viisp.crypto.queued";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispCryptoExecutor.class);
+
+    private static final ConcurrentMap<Integer, ViispCryptoExecutor> EXECUTORS =
+            new ConcurrentHashMap<>();
+
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    private final Map<ViispPhase, Timer> queueTimers = new ConcurrentHashMap<>();
+    private final Counter rejectedCounter;
+    private final LongAdder rejected = new LongAdder();
+
+    private ViispCryptoExecutor(int queueCapacity) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        this.queueCapacity = queueCapacity;
+        this.executor =
+                new ThreadPoolExecutor(
+                        threads,
+                        threads,
+                        60,
+                        TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(queueCapacity),
+                        threadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+        String capacity = String.valueOf(queueCapacity);
+        this.rejectedCounter =
+                Counter.builder(REJECTED_COUNTER)
+                        .description("VIISP signing and parsing stages rejected by a full queue")
+                        .tag("capacity", capacity)
+                        .register(Metrics.globalRegistry);
+        Gauge.builder(QUEUED_GAUGE, executor, pool -> pool.getQueue().size())
+                .description("VIISP signing and parsing stages waiting for a thread")
+                .tag("capacity", capacity)
+                .register(Metrics.globalRegistry);
+        LOG.info(
+                "Created VIISP crypto executor with {} threads and a queue of {}",
+                threads,
+                queueCapacity);
+    }
+
+    /** Returns the shared executor of the provider, or null if its stages run on the caller. */
+    public static ViispCryptoExecutor forConfig(ViispIdentityProviderConfig config) {
+        if (config.getCryptoMode() != ViispCryptoMode.DEDICATED) {
+            return null;
+        }
+        return EXECUTORS.computeIfAbsent(
+                Math.max(1, config.getCryptoQueueCapacity()), ViispCryptoExecutor::new);
+    }
+
+    /** All executors created so far. */
+    public static Iterable<ViispCryptoExecutor> all() {
+        return EXECUTORS.values();
+    }
+
+    /**
+     * Runs the stage on the pool. The returned future fails with a {@link
+     * ViispServiceUnavailableException} if the queue is full.
+     */
+    public <T> CompletableFuture<T> submit(ViispPhase phase, Callable<T> stage) {
+        Callable<T> traced = Context.current().wrap(stage);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long enqueued = System.nanoTime();
+        try {
+            executor.execute(
+                    () -> {
+                        queueTimer(phase)
+                                .record(System.nanoTime() - enqueued, TimeUnit.NANOSECONDS);
+                        // The caller gave up while the stage was queued
+                        if (result.isDone()) {
+                            return;
+                        }
+                        try {
+                            result.complete(traced.call());
+                        } catch (Throwable e) {
+                            result.completeExceptionally(e);
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            rejectedCounter.increment();
+            return CompletableFuture.failedFuture(
+                    new ViispServiceUnavailableException(
+                            String.format(
+                                    "Too many concurrent VIISP logins, the %s queue of %d is full",
+                                    phase.value(), queueCapacity)));
+        }
+        return result;
+    }
+
+    public Stats getStats() {
+        return new Stats(
+                executor.getMaximumPoolSize(),
+                executor.getActiveCount(),
+                executor.getQueue().size(),
+                queueCapacity,
+                executor.getCompletedTaskCount(),
+                rejected.sum());
+    }
+
+    private Timer queueTimer(ViispPhase phase) {
+        return queueTimers.computeIfAbsent(
+                phase,
+                key ->
+                        Timer.builder(QUEUE_TIMER)
+                                .description(
+                                        "Time VIISP signing and parsing stages wait for a thread")
+                                .tag("phase", key.value())
+                                .tag("capacity", String.valueOf(queueCapacity))
+                                .publishPercentileHistogram(
+                                        ViispServerOptions.get().isMetricsHistogramsEnabled())
+                                .register(Metrics.globalRegistry));
+    }
+
+    private static ThreadFactory threadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "viisp-crypto-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public record Stats(
+            int threads,
+            int activeThreads,
+            int queued,
+            int queueCapacity,
+            long completed,
+            long rejected) {}
+}
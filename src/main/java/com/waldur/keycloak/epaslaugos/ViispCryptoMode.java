@@ -0,0 +1,28 @@
+package com.waldur.keycloak.epaslaugos;
+
+/** Where the CPU-bound stages of VIISP logins, signing and parsing, run. */
+public enum ViispCryptoMode {
+    /** On the thread calling the client, usually a Keycloak request thread. */
+    CALLER("caller"),
+    /** On the shared {@link ViispCryptoExecutor}. */
+    DEDICATED("dedicated");
+
+    private final String value;
+
+    ViispCryptoMode(String v) {
+        value = v;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public static ViispCryptoMode fromValue(String v) {
+        for (ViispCryptoMode c : ViispCryptoMode.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+}
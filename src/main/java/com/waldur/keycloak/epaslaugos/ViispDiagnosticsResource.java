@@ -0,0 +1,253 @@
+package com.waldur.keycloak.epaslaugos;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+/**
+ * Runtime state of the VIISP identity providers of a realm, served at {@code GET
+ * /admin/realms/{realm}/viisp-diagnostics}.
+ *
+ * <p>Everything reported is read from the counters and caches the client keeps anyway: lock-free
+ * adders and atomics of the transports, breakers and bulkheads, the latency ring buffers and the
+ * key material registry. Nothing is created or loaded on the way, so an endpoint that was not
+ * called yet is reported with null state, and polling the resource doesn't change what it reports.
+ * Transports, breakers and latencies are shared by all realms calling the same URL.
+ */
+public class ViispDiagnosticsResource {
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+
+    public ViispDiagnosticsResource(
+            KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Diagnostics getDiagnostics() {
+        auth.realm().requireViewIdentityProviders();
+
+        List<ViispIdentityProviderConfig> providers =
+                session.identityProviders()
+                        .getAllStream()
+                        .filter(
+                                model ->
+                                        ViispIdentityProviderFactory.PROVIDER_ID.equals(
+                                                model.getProviderId()))
+                        .map(ViispIdentityProviderConfig::new)
+                        .toList();
+        return snapshot(realm.getName(), providers);
+    }
+
+    /** Collects the runtime state of the given identity providers. */
+    public static Diagnostics snapshot(String realm, List<ViispIdentityProviderConfig> providers) {
+        Instant now = Instant.now();
+        List<ProviderDiagnostics> providerDiagnostics = new ArrayList<>();
+        for (ViispIdentityProviderConfig config : providers) {
+            providerDiagnostics.add(provider(config, now));
+        }
+
+        Map<String, CacheDiagnostics> caches = new LinkedHashMap<>();
+        caches.put("keyMaterial", cache(ViispKeyMaterialRegistry.getStats()));
+        caches.put("requestTemplates", cache(ViispAuthenticationRequestTemplate.getStats()));
+
+        List<ViispCryptoExecutor.Stats> cryptoExecutors = new ArrayList<>();
+        for (ViispCryptoExecutor executor : ViispCryptoExecutor.all()) {
+            cryptoExecutors.add(executor.getStats());
+        }
+        return new Diagnostics(realm, now.toString(), providerDiagnostics, caches, cryptoExecutors);
+    }
+
+    private static ProviderDiagnostics provider(ViispIdentityProviderConfig config, Instant now) {
+        ViispHttpTransport.Settings settings = ViispHttpTransport.Settings.fromConfig(config);
+        ViispCircuitBreaker.Settings breakerSettings =
+                ViispCircuitBreaker.Settings.fromConfig(config);
+        List<EndpointDiagnostics> endpoints = new ArrayList<>();
+        for (String url : config.getAuthServiceUrls()) {
+            ViispHttpTransport transport = ViispHttpTransport.find(url, settings);
+            ViispCircuitBreaker breaker = ViispCircuitBreaker.find(url, breakerSettings);
+            endpoints.add(
+                    new EndpointDiagnostics(
+                            url,
+                            transport != null ? transport.getStats() : null,
+                            breaker != null ? breaker.getStats() : null,
+                            latency(ViispLatencyTracker.find(url)),
+                            ViispEndpointSelector.find(url),
+                            probe(ViispEndpointProber.find(config, url))));
+        }
+
+        ViispBulkhead bulkhead = ViispBulkhead.find(config);
+        ViispKeyMaterialRegistry.Rotation rotation;
+        try {
+            rotation = ViispKeyMaterialRegistry.Rotation.fromConfig(config);
+        } catch (IllegalArgumentException e) {
+            rotation = null;
+        }
+        return new ProviderDiagnostics(
+                config.getAlias(),
+                config.isEnabled(),
+                key(
+                        config,
+                        ViispKeyMaterialRegistry.find(
+                                config.getKeystorePath(), config.getKeystorePassword(), rotation),
+                        key(
+                                config,
+                                ViispKeyMaterialRegistry.findNext(
+                                        config.getKeystorePath(),
+                                        config.getKeystorePassword(),
+                                        rotation),
+                                null,
+                                now),
+                        now),
+                bulkhead != null
+                        ? new BulkheadDiagnostics(
+                                bulkhead.getMaxConcurrentCalls(),
+                                bulkhead.getActiveCalls(),
+                                bulkhead.getRejectedCalls())
+                        : null,
+                endpoints);
+    }
+
+    private static KeyDiagnostics key(
+            ViispIdentityProviderConfig config,
+            ViispKeyMaterial material,
+            KeyDiagnostics next,
+            Instant now) {
+        if (material == null) {
+            return null;
+        }
+        String signatureAlgorithm;
+        try {
+            signatureAlgorithm =
+                    config.getSignatureAlgorithm().forKey(material.getPrivateKey()).value();
+        } catch (IllegalArgumentException e) {
+            signatureAlgorithm = null;
+        }
+        X509Certificate certificate = material.getCertificate();
+        Instant notAfter = certificate != null ? certificate.getNotAfter().toInstant() : null;
+        return new KeyDiagnostics(
+                material.getAlias(),
+                certificate != null ? certificate.getSubjectX500Principal().getName() : null,
+                certificate != null ? certificate.getNotBefore().toInstant().toString() : null,
+                notAfter != null ? notAfter.toString() : null,
+                notAfter != null ? Duration.between(now, notAfter).toDays() : null,
+                material.getLoadedAt().toString(),
+                material.getPrivateKey().getAlgorithm(),
+                signatureAlgorithm,
+                config.getDigestAlgorithm().value(),
+                next);
+    }
+
+    private static LatencyDiagnostics latency(ViispLatencyTracker tracker) {
+        if (tracker == null) {
+            return null;
+        }
+        Duration p50 = tracker.percentile(50);
+        if (p50 == null) {
+            // Too few samples, the others would be null as well
+            return null;
+        }
+        return new LatencyDiagnostics(
+                millis(p50), millis(tracker.percentile(90)), millis(tracker.percentile(99)));
+    }
+
+    private static ProbeDiagnostics probe(ViispEndpointProber prober) {
+        if (prober == null) {
+            return null;
+        }
+        ViispEndpointProber.Stats stats = prober.getStats();
+        return new ProbeDiagnostics(
+                prober.getSettings().mode().value(),
+                stats.healthy(),
+                stats.probes(),
+                stats.failures(),
+                stats.consecutiveFailures(),
+                stats.lastProbeAt() != null ? stats.lastProbeAt().toString() : null,
+                stats.lastLatencyMs(),
+                stats.lastError(),
+                latency(prober.getLatencies()));
+    }
+
+    private static double millis(Duration duration) {
+        return duration.toNanos() / 1_000_000.0;
+    }
+
+    private static CacheDiagnostics cache(ViispCacheStats stats) {
+        return new CacheDiagnostics(stats.hits(), stats.misses(), stats.size(), stats.hitRate());
+    }
+
+    public record Diagnostics(
+            String realm,
+            String timestamp,
+            List<ProviderDiagnostics> identityProviders,
+            Map<String, CacheDiagnostics> caches,
+            List<ViispCryptoExecutor.Stats> cryptoExecutors) {}
+
+    public record ProviderDiagnostics(
+            String alias,
+            boolean enabled,
+            KeyDiagnostics keyMaterial,
+            BulkheadDiagnostics bulkhead,
+            List<EndpointDiagnostics> endpoints) {}
+
+    /**
+     * The decoded signing key; null until the first request of the provider was signed. The
+     * signature algorithm is null if the configured one cannot sign with the key. The next key of a
+     * configured rotation is shown until its activation time, null if there is none.
+     */
+    public record KeyDiagnostics(
+            String alias,
+            String subject,
+            String notBefore,
+            String notAfter,
+            Long daysUntilExpiry,
+            String loadedAt,
+            String keyAlgorithm,
+            String signatureAlgorithm,
+            String digestAlgorithm,
+            KeyDiagnostics next) {}
+
+    public record BulkheadDiagnostics(
+            int maxConcurrentCalls, int activeCalls, long rejectedCalls) {}
+
+    /** State kept for one auth service URL; each part is null until it was first used. */
+    public record EndpointDiagnostics(
+            String url,
+            ViispHttpTransport.Stats transport,
+            ViispCircuitBreaker.Stats circuitBreaker,
+            LatencyDiagnostics latency,
+            ViispEndpointSelector.Stats movingAverages,
+            ProbeDiagnostics probe) {}
+
+    /** State of the background prober; the latency is that of the recent successful probes. */
+    public record ProbeDiagnostics(
+            String mode,
+            boolean healthy,
+            long probes,
+            long failures,
+            int consecutiveFailures,
+            String lastProbeAt,
+            double lastLatencyMs,
+            String lastError,
+            LatencyDiagnostics latency) {}
+
+    /** Percentiles of the most recent {@value ViispLatencyTracker#WINDOW_SIZE} calls. */
+    public record LatencyDiagnostics(double p50Ms, double p90Ms, double p99Ms) {}
+
+    public record CacheDiagnostics(long hits, long misses, int size, double hitRate) {}
+}
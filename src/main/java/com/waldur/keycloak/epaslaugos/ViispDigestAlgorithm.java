@@ -0,0 +1,43 @@
+package com.waldur.keycloak.epaslaugos;
+
+import javax.xml.crypto.dsig.DigestMethod;
+
+/** Digest algorithm of the reference of VIISP request signatures. */
+public enum ViispDigestAlgorithm {
+    SHA1("sha1", DigestMethod.SHA1, "SHA-1"),
+    SHA256("sha256", DigestMethod.SHA256, "SHA-256"),
+    SHA512("sha512", DigestMethod.SHA512, "SHA-512");
+
+    private final String value;
+    private final String uri;
+    private final String jcaName;
+
+    ViispDigestAlgorithm(String v, String uri, String jcaName) {
+        value = v;
+        this.uri = uri;
+        this.jcaName = jcaName;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    /** The XML signature digest method URI. */
+    public String uri() {
+        return uri;
+    }
+
+    /** The {@link java.security.MessageDigest} algorithm. */
+    public String jcaName() {
+        return jcaName;
+    }
+
+    public static ViispDigestAlgorithm fromValue(String v) {
+        for (ViispDigestAlgorithm c : ViispDigestAlgorithm.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+}
@@ -0,0 +1,436 @@
+package com.waldur.keycloak.epaslaugos;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background health check of one VIISP auth service URL.
+ *
+ * <p>Probers are scheduled when an identity provider with a probe mode is created and keep running
+ * while providers using them are created, i.e. while there is login traffic or admin activity for
+ * them; a prober that was not refreshed for {@value #IDLE_INTERVALS} intervals stops. Probers are
+ * kept per URL and settings, and ticket probers also per postback URL, so they sign with the
+ * keystore of their own provider. Identity providers with the same connect probe of a URL share it.
+ * A provider whose probe settings change releases only the probers it used, which stop once no
+ * provider uses them any more.
+ *
+ * <p>After {@link Settings#failureThreshold()} consecutive failed probes the URL is down: the
+ * endpoint selector avoids it and ticket requests to it fail fast with {@link
+ * ViispServiceUnavailableException}, before the user is sent to VIISP. Authentication data requests
+ * are still made, as the user has already authenticated. One successful probe brings the URL back.
+ * Probes are timed by {@value #PROBE_TIMER} and the state is published as the gauge {@value
+ * #UP_GAUGE}, both tagged with the URL.
+ */
+public final class ViispEndpointProber {
+
+    public static final String PROBE_TIMER = "viisp.probe";
+    public static final String UP_GAUGE = "viisp.probe.up";
+    public static final int IDLE_INTERVALS = 20;
+
+    private static final int MAX_ERROR_LENGTH = 200;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispEndpointProber.class);
+
+    private static final ConcurrentMap<ProberKey, ViispEndpointProber> PROBERS =
+            new ConcurrentHashMap<>();
+
+    /** Probers used by each identity provider, by internal ID or alias. */
+    private static final ConcurrentMap<String, Set<ProberKey>> PROVIDER_PROBERS =
+            new ConcurrentHashMap<>();
+
+    /** Gauge values by URL, kept when a prober is replaced so the gauge stays registered. */
+    private static final ConcurrentMap<String, AtomicInteger> UP = new ConcurrentHashMap<>();
+
+    /** Probers that are down by URL, only changed in {@link #updateDown}. */
+    private static final ConcurrentMap<String, Set<ViispEndpointProber>> DOWN =
+            new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService SCHEDULER = newScheduler();
+
+    private final ProberKey key;
+    private final String url;
+    private final Settings settings;
+    private final Set<String> providers = ConcurrentHashMap.newKeySet();
+    private final ViispLatencyTracker latencies = new ViispLatencyTracker();
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    private volatile ViispIdentityProviderConfig config;
+    private volatile long lastUsedNanos;
+    private volatile boolean healthy = true;
+    private volatile Instant lastProbeAt;
+    private volatile long lastLatencyNanos;
+    private volatile String lastError;
+    private ScheduledFuture<?> task;
+
+    private ViispEndpointProber(ProberKey key) {
+        this.key = key;
+        this.url = key.url();
+        this.settings = key.settings();
+    }
+
+    /**
+     * Starts or refreshes the probers of the auth service URLs of the identity provider, and
+     * releases the probers it used with other settings or URLs, or all of them if probing is
+     * disabled.
+     *
+     * @param callbackUrl postback URL of the probe ticket requests, the broker endpoint of the
+     *     provider; if null, ticket probers already running with the same settings keep their
+     *     postback URL and no other ticket probers are started
+     */
+    public static void schedule(ViispIdentityProviderConfig config, String callbackUrl) {
+        Settings settings = Settings.fromConfig(config);
+        String provider = providerKey(config);
+        Set<ProberKey> keys = new HashSet<>();
+        if (settings.mode() != ViispProbeMode.NONE) {
+            Set<ProberKey> running = PROVIDER_PROBERS.getOrDefault(provider, Set.of());
+            for (String url : config.getAuthServiceUrls()) {
+                if (settings.mode() != ViispProbeMode.TICKET) {
+                    keys.add(new ProberKey(url, settings, null));
+                } else if (callbackUrl != null) {
+                    keys.add(new ProberKey(url, settings, callbackUrl));
+                } else {
+                    // Created outside of an HTTP request, the broker endpoint is not known
+                    for (ProberKey key : running) {
+                        if (key.url().equals(url) && key.settings().equals(settings)) {
+                            keys.add(key);
+                        }
+                    }
+                }
+            }
+        }
+
+        Set<ProberKey> previous = PROVIDER_PROBERS.put(provider, keys);
+        if (previous != null) {
+            for (ProberKey key : previous) {
+                if (!keys.contains(key)) {
+                    release(key, provider);
+                }
+            }
+        }
+        for (ProberKey key : keys) {
+            PROBERS.compute(
+                    key,
+                    (k, existing) -> {
+                        ViispEndpointProber prober =
+                                existing != null ? existing : new ViispEndpointProber(k);
+                        prober.providers.add(provider);
+                        prober.refresh(config);
+                        if (existing == null) {
+                            prober.start();
+                        }
+                        return prober;
+                    });
+        }
+    }
+
+    private static void release(ProberKey key, String provider) {
+        PROBERS.computeIfPresent(
+                key,
+                (k, prober) -> {
+                    prober.providers.remove(provider);
+                    if (!prober.providers.isEmpty()) {
+                        return prober;
+                    }
+                    prober.stop();
+                    return null;
+                });
+    }
+
+    private static String providerKey(ViispIdentityProviderConfig config) {
+        return config.getInternalId() != null ? config.getInternalId() : config.getAlias();
+    }
+
+    /** Returns the prober of the URL used by the identity provider, or null if it is not probed. */
+    public static ViispEndpointProber find(ViispIdentityProviderConfig config, String url) {
+        Set<ProberKey> keys = PROVIDER_PROBERS.get(providerKey(config));
+        if (keys == null) {
+            return null;
+        }
+        for (ProberKey key : keys) {
+            if (key.url().equals(url)) {
+                return PROBERS.get(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the URL is probed and a prober of it failed its last {@link
+     * Settings#failureThreshold()} probes.
+     */
+    public static boolean isDown(String url) {
+        return DOWN.containsKey(url);
+    }
+
+    public static Collection<ViispEndpointProber> all() {
+        return Collections.unmodifiableCollection(PROBERS.values());
+    }
+
+    private void refresh(ViispIdentityProviderConfig config) {
+        this.config = config;
+        this.lastUsedNanos = System.nanoTime();
+    }
+
+    private synchronized void start() {
+        AtomicInteger up = UP.computeIfAbsent(url, ViispEndpointProber::registerGauge);
+        up.set(isDown(url) ? 0 : 1);
+        LOG.info("Probing VIISP auth service {} with {}", url, settings);
+        long interval = settings.interval().toMillis();
+        // Spread the first probes of probers started together, e.g. after a restart
+        task =
+                SCHEDULER.scheduleWithFixedDelay(
+                        this::run,
+                        ThreadLocalRandom.current().nextLong(interval),
+                        interval,
+                        TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+        }
+        updateDown(false);
+        LOG.info("Stopped probing VIISP auth service {}", url);
+    }
+
+    private void run() {
+        if (System.nanoTime() - lastUsedNanos > settings.interval().toNanos() * IDLE_INTERVALS) {
+            // No identity provider uses this prober any more
+            if (PROBERS.remove(key, this)) {
+                stop();
+            }
+            return;
+        }
+        if (!probing.compareAndSet(false, true)) {
+            // The previous ticket probe is still waiting for its response
+            return;
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<?> probe;
+        try {
+            if (settings.mode() == ViispProbeMode.TICKET) {
+                probe =
+                        new ViispXMLClient(config, ViispMetrics.noop())
+                                .probeAsync(key.callbackUrl(), url)
+                                .thenAccept(ViispEndpointProber::requireTicket);
+            } else {
+                connect();
+                probe = CompletableFuture.completedFuture(null);
+            }
+        } catch (Exception e) {
+            probe = CompletableFuture.failedFuture(e);
+        }
+        probe.whenComplete(
+                (result, error) -> {
+                    try {
+                        record(System.nanoTime() - start, ViispRetryPolicy.unwrap(error));
+                    } finally {
+                        probing.set(false);
+                    }
+                });
+    }
+
+    private static void requireTicket(String ticket) {
+        if (ticket == null || ticket.isEmpty()) {
+            throw new IllegalStateException("No ticket in the VIISP auth response");
+        }
+    }
+
+    /** Opens a TCP connection to the URL and, for https, completes a TLS handshake on it. */
+    private void connect() throws IOException, NoSuchAlgorithmException {
+        URI uri = URI.create(url);
+        boolean https = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() != -1 ? uri.getPort() : https ? 443 : 80;
+        int timeout = (int) settings.connectTimeout().toMillis();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(uri.getHost(), port), timeout);
+            socket.setSoTimeout(timeout);
+            if (https) {
+                try (SSLSocket tls =
+                        (SSLSocket)
+                                SSLContext.getDefault()
+                                        .getSocketFactory()
+                                        .createSocket(socket, uri.getHost(), port, true)) {
+                    SSLParameters parameters = tls.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    tls.setSSLParameters(parameters);
+                    tls.startHandshake();
+                }
+            }
+        }
+    }
+
+    private void record(long durationNanos, Throwable error) {
+        probes.increment();
+        lastProbeAt = Instant.now();
+        lastLatencyNanos = durationNanos;
+        Timer.builder(PROBE_TIMER)
+                .description("Duration of the background probes of VIISP auth service URLs")
+                .tag("url", url)
+                .tag(
+                        "outcome",
+                        error == null ? ViispMetrics.OUTCOME_SUCCESS : ViispMetrics.OUTCOME_FAILURE)
+                .register(Metrics.globalRegistry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+
+        if (error == null) {
+            latencies.record(durationNanos);
+            consecutiveFailures.set(0);
+            lastError = null;
+            if (!healthy) {
+                LOG.info("VIISP auth service {} is up again", url);
+            }
+            healthy = true;
+            updateDown(false);
+        } else {
+            failures.increment();
+            lastError = describe(error);
+            int failed = consecutiveFailures.incrementAndGet();
+            if (healthy && failed >= settings.failureThreshold()) {
+                LOG.warn(
+                        "VIISP auth service {} is down after {} failed probes: {}",
+                        url,
+                        failed,
+                        lastError);
+                healthy = false;
+                updateDown(true);
+            }
+        }
+    }
+
+    /** Adds this prober to or removes it from the probers of its URL that are down. */
+    private void updateDown(boolean down) {
+        Set<ViispEndpointProber> probers =
+                DOWN.compute(
+                        url,
+                        (k, existing) -> {
+                            Set<ViispEndpointProber> updated =
+                                    existing != null ? existing : new HashSet<>();
+                            if (down) {
+                                updated.add(this);
+                            } else {
+                                updated.remove(this);
+                            }
+                            return updated.isEmpty() ? null : updated;
+                        });
+        UP.get(url).set(probers == null ? 1 : 0);
+    }
+
+    private static String describe(Throwable error) {
+        String description = error.getClass().getSimpleName() + ": " + error.getMessage();
+        // Failed ticket requests carry the whole response
+        return description.length() > MAX_ERROR_LENGTH
+                ? description.substring(0, MAX_ERROR_LENGTH) + "..."
+                : description;
+    }
+
+    private static AtomicInteger registerGauge(String url) {
+        AtomicInteger up = new AtomicInteger(1);
+        Gauge.builder(UP_GAUGE, up, AtomicInteger::get)
+                .description("Whether the last probes of a VIISP auth service URL succeeded")
+                .tag("url", url)
+                .register(Metrics.globalRegistry);
+        return up;
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory =
+                runnable -> {
+                    Thread thread =
+                            new Thread(runnable, "viisp-prober-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                };
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(2, threadFactory);
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /** Latencies of the recent successful probes. */
+    public ViispLatencyTracker getLatencies() {
+        return latencies;
+    }
+
+    public Stats getStats() {
+        return new Stats(
+                healthy,
+                probes.sum(),
+                failures.sum(),
+                consecutiveFailures.get(),
+                lastProbeAt,
+                lastLatencyNanos / 1_000_000.0,
+                lastError);
+    }
+
+    /** Probe settings, taken from the identity provider configuration. */
+    public record Settings(
+            ViispProbeMode mode, Duration interval, int failureThreshold, Duration connectTimeout) {
+
+        public static Settings fromConfig(ViispIdentityProviderConfig config) {
+            return new Settings(
+                    config.getProbeMode(),
+                    Duration.ofMillis(Math.max(config.getProbeIntervalMs(), 1000)),
+                    Math.max(config.getProbeFailureThreshold(), 1),
+                    Duration.ofMillis(config.getHttpConnectTimeoutMs()));
+        }
+    }
+
+    /** Probers of connect probes are shared; ticket probers post back to one provider. */
+    private record ProberKey(String url, Settings settings, String callbackUrl) {}
+
+    /** Point-in-time state of a prober. */
+    public record Stats(
+            boolean healthy,
+            long probes,
+            long failures,
+            int consecutiveFailures,
+            Instant lastProbeAt,
+            double lastLatencyMs,
+            String lastError) {}
+}
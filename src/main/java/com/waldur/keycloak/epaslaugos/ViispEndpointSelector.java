@@ -0,0 +1,161 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Picks one of several equivalent VIISP auth service URLs.
+ *
+ * <p>An exponentially weighted moving average (EWMA) of latency and error rate is kept for every
+ * URL. Of two randomly chosen candidates the one with the lower score is used, which sends most
+ * calls to the best endpoint while still spreading load and keeping the averages of the others
+ * current. The score of an endpoint that is not being called decays over time, so an endpoint that
+ * had a bad spell (or a slow first call while connecting) is tried again eventually. Endpoints with
+ * an open circuit breaker, that are down according to the {@link ViispEndpointProber} or that
+ * already failed for the current call are skipped unless nothing else is left.
+ */
+public final class ViispEndpointSelector {
+
+    /** Weight of the newest sample in the moving averages. */
+    static final double ALPHA = 0.2;
+
+    /** How much a 100% error rate multiplies the latency score. */
+    private static final double ERROR_PENALTY = 50;
+
+    /** Time after which the score of an endpoint without calls is halved. */
+    private static final long DECAY_HALF_LIFE_NANOS = 5_000_000_000L;
+
+    private static final ConcurrentMap<String, EndpointStats> STATS = new ConcurrentHashMap<>();
+
+    private ViispEndpointSelector() {}
+
+    /**
+     * Selects the URL for the next call, avoiding the excluded ones and those whose breaker of the
+     * given settings is open if possible.
+     */
+    public static String select(
+            List<String> urls, Set<String> excluded, ViispCircuitBreaker.Settings breakerSettings) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No VIISP auth service URL configured");
+        }
+        if (urls.size() == 1) {
+            return urls.get(0);
+        }
+
+        List<String> candidates = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            ViispCircuitBreaker breaker = ViispCircuitBreaker.find(url, breakerSettings);
+            if (!excluded.contains(url)
+                    && (breaker == null || !breaker.isOpen())
+                    && !ViispEndpointProber.isDown(url)) {
+                candidates.add(url);
+            }
+        }
+        if (candidates.isEmpty()) {
+            // Everything failed, let the endpoint with the best record decide
+            return best(urls);
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        String a = candidates.get(first);
+        String b = candidates.get(second);
+        return score(a) <= score(b) ? a : b;
+    }
+
+    /** Records the outcome of a call; failed calls still count towards the latency. */
+    public static void record(String url, long durationNanos, boolean failed) {
+        STATS.computeIfAbsent(url, key -> new EndpointStats())
+                .record(durationNanos / 1_000_000.0, failed);
+    }
+
+    /** Returns the moving averages of the URL, or null if no call was made to it yet. */
+    public static Stats find(String url) {
+        EndpointStats stats = STATS.get(url);
+        return stats != null ? stats.snapshot() : null;
+    }
+
+    public static Map<String, Stats> all() {
+        Map<String, Stats> result = new TreeMap<>();
+        STATS.forEach((url, stats) -> result.put(url, stats.snapshot()));
+        return result;
+    }
+
+    private static String best(Collection<String> urls) {
+        String best = null;
+        for (String url : urls) {
+            if (best == null || score(url) < score(best)) {
+                best = url;
+            }
+        }
+        return best;
+    }
+
+    private static double score(String url) {
+        EndpointStats stats = STATS.get(url);
+        // Endpoints without calls score best, so they get measured
+        return stats != null ? stats.score() : 0;
+    }
+
+    /** Moving averages of one endpoint, replaced as a whole so they are updated without locks. */
+    private static final class EndpointStats {
+
+        private final AtomicReference<Averages> averages =
+                new AtomicReference<>(new Averages(0, 0, 0, 0));
+
+        void record(double durationMs, boolean failed) {
+            long now = System.nanoTime();
+            averages.updateAndGet(current -> current.with(durationMs, failed ? 1 : 0, now));
+        }
+
+        double score() {
+            Averages current = averages.get();
+            return Math.max(current.latencyMs(), 1)
+                    * (1 + ERROR_PENALTY * current.errorRate())
+                    * Math.pow(0.5, current.idleHalfLives(System.nanoTime()));
+        }
+
+        Stats snapshot() {
+            Averages current = averages.get();
+            return new Stats(current.latencyMs(), current.errorRate(), current.calls());
+        }
+    }
+
+    private record Averages(double latencyMs, double errorRate, long calls, long lastCallNanos) {
+
+        Averages with(double durationMs, double error, long now) {
+            if (calls == 0) {
+                return new Averages(durationMs, error, 1, now);
+            }
+            // The longer the endpoint was idle, the less the old average is worth
+            double alpha = Math.max(ALPHA, 1 - Math.pow(0.5, idleHalfLives(now)));
+            return new Averages(
+                    latencyMs + alpha * (durationMs - latencyMs),
+                    errorRate + alpha * (error - errorRate),
+                    calls + 1,
+                    now);
+        }
+
+        double idleHalfLives(long now) {
+            return (double) (now - lastCallNanos) / DECAY_HALF_LIFE_NANOS;
+        }
+    }
+
+    /** Moving averages of one endpoint. */
+    public record Stats(double latencyMs, double errorRate, long calls) {}
+}
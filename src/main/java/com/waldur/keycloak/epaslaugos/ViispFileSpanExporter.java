@@ -0,0 +1,110 @@
+package com.waldur.keycloak.epaslaugos;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.EventData;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends finished spans to a file, one JSON object per line, so traces can be looked at without a
+ * collector.
+ */
+public final class ViispFileSpanExporter implements SpanExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispFileSpanExporter.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path path;
+
+    public ViispFileSpanExporter(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public synchronized CompletableResultCode export(Collection<SpanData> spans) {
+        try (BufferedWriter writer =
+                Files.newBufferedWriter(
+                        path,
+                        StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND)) {
+            for (SpanData span : spans) {
+                writer.write(toJson(span));
+                writer.newLine();
+            }
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            LOG.warn("Failed to write spans to {}: {}", path, e.getMessage());
+            return CompletableResultCode.ofFailure();
+        }
+    }
+
+    static String toJson(SpanData span) throws JsonProcessingException {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("traceId", span.getTraceId());
+        json.put("spanId", span.getSpanId());
+        if (span.getParentSpanContext().isValid()) {
+            json.put("parentSpanId", span.getParentSpanId());
+        }
+        json.put("name", span.getName());
+        json.put("kind", span.getKind().name());
+        json.put("startEpochNanos", span.getStartEpochNanos());
+        json.put("durationMs", (span.getEndEpochNanos() - span.getStartEpochNanos()) / 1e6);
+        json.put("status", span.getStatus().getStatusCode().name());
+        if (!span.getStatus().getDescription().isEmpty()) {
+            json.put("statusDescription", span.getStatus().getDescription());
+        }
+
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        span.getAttributes().forEach((key, value) -> attributes.put(key.getKey(), value));
+        json.put("attributes", attributes);
+
+        if (!span.getEvents().isEmpty()) {
+            List<Map<String, Object>> events = new ArrayList<>();
+            for (EventData event : span.getEvents()) {
+                Map<String, Object> eventJson = new LinkedHashMap<>();
+                eventJson.put("name", event.getName());
+                eventJson.put("epochNanos", event.getEpochNanos());
+                event.getAttributes().forEach((key, value) -> eventJson.put(key.getKey(), value));
+                events.add(eventJson);
+            }
+            json.put("events", events);
+        }
+        if (!span.getLinks().isEmpty()) {
+            List<String> links = new ArrayList<>();
+            for (LinkData link : span.getLinks()) {
+                SpanContext linked = link.getSpanContext();
+                links.add(linked.getTraceId() + "/" + linked.getSpanId());
+            }
+            json.put("links", links);
+        }
+        return MAPPER.writeValueAsString(json);
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        return CompletableResultCode.ofSuccess();
+    }
+}
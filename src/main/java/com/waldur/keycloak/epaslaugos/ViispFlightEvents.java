@@ -0,0 +1,120 @@
+package com.waldur.keycloak.epaslaugos;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the VIISP client, in the "Keycloak / VIISP" category.
+ *
+ * <p>Events are used the usual JFR way: created and begun before the operation, ended after it, and
+ * only filled in and committed if {@link Event#shouldCommit()}. Without a recording that enables
+ * them this is a few field writes on an object the JIT doesn't allocate, so they stay in place in
+ * production. Stack traces are off; the phase and the endpoint tell where they come from.
+ */
+public final class ViispFlightEvents {
+
+    private ViispFlightEvents() {}
+
+    /** The event of a phase run through the client's phase timing, or null if it has none. */
+    static PhaseEvent forPhase(ViispPhase phase) {
+        switch (phase) {
+            case MARSHAL:
+                return new Marshal();
+            case SIGN:
+                return new Sign();
+            default:
+                return null;
+        }
+    }
+
+    @Category({"Keycloak", "VIISP"})
+    @StackTrace(false)
+    abstract static class PhaseEvent extends Event {
+
+        @Label("Identity Provider")
+        String idp;
+
+        @Label("Outcome")
+        String outcome;
+
+        /** Called before commit with the result of the phase. */
+        void setResult(Object result) {}
+    }
+
+    @Name("com.waldur.keycloak.viisp.Marshal")
+    @Label("VIISP Marshal")
+    @Description("Writing a VIISP request model into a signable DOM document")
+    static final class Marshal extends PhaseEvent {}
+
+    @Name("com.waldur.keycloak.viisp.Sign")
+    @Label("VIISP Sign")
+    @Description("XML signature and serialization of a VIISP request")
+    static final class Sign extends PhaseEvent {
+
+        @Label("Signed XML Length")
+        @Description("Characters of the signed request")
+        int signedLength;
+
+        @Override
+        void setResult(Object result) {
+            if (result instanceof String) {
+                signedLength = ((String) result).length();
+            }
+        }
+    }
+
+    @Name("com.waldur.keycloak.viisp.HttpExchange")
+    @Label("VIISP HTTP Exchange")
+    @Description("SOAP call to a VIISP auth service URL, from sending the request to the response")
+    static final class HttpExchange extends PhaseEvent {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Endpoint")
+        String endpoint;
+
+        @Label("Status Code")
+        int statusCode;
+
+        @Label("Request Length")
+        @Description("Characters of the SOAP request")
+        int requestLength;
+
+        @Label("Response Length")
+        @Description("Characters of the SOAP response")
+        int responseLength;
+    }
+
+    @Name("com.waldur.keycloak.viisp.Parse")
+    @Label("VIISP Response Parse")
+    @Description("Extracting the user data from an authenticationDataResponse")
+    static final class Parse extends PhaseEvent {
+
+        @Label("Parser")
+        String parser;
+
+        @Label("Response Length")
+        @Description("Characters of the response")
+        int responseLength;
+
+        @Label("Authentication Provider")
+        String authProvider;
+    }
+
+    @Name("com.waldur.keycloak.viisp.UserSync")
+    @Label("VIISP User Sync")
+    @Description("Copying the VIISP identity and attributes to the Keycloak user")
+    static final class UserSync extends PhaseEvent {
+
+        @Label("Attributes")
+        int attributes;
+
+        @Label("Authentication Provider")
+        String authProvider;
+    }
+}
@@ -0,0 +1,208 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived HTTP transport for the VIISP SOAP endpoints.
+ *
+ * <p>One transport, with its own {@link HttpClient}, connection pool and bounded executor, is kept
+ * per VIISP endpoint (scheme, host and port) and transport settings, so consecutive logins reuse
+ * kept-alive connections instead of paying a new TCP connection and TLS handshake per call. Each
+ * identity provider records the transport it uses per endpoint, and a transport no provider uses
+ * any more, e.g. after its settings were changed, is shut down once its calls complete.
+ *
+ * <p>The executor queues at most {@value #QUEUE_CAPACITY} tasks; the {@link HttpClient} runs
+ * further tasks on its own fallback pool instead of failing them.
+ */
+public final class ViispHttpTransport {
+
+    public static final int QUEUE_CAPACITY = 1024;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispHttpTransport.class);
+
+    private static final ConcurrentMap<TransportKey, ViispHttpTransport> TRANSPORTS =
+            new ConcurrentHashMap<>();
+    private static final ViispProviderUsage<TransportKey> USAGE = new ViispProviderUsage<>();
+
+    private final String endpoint;
+    private final Settings settings;
+    private final ThreadPoolExecutor executor;
+    private final HttpClient client;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private ViispHttpTransport(String endpoint, Settings settings) {
+        this.endpoint = endpoint;
+        this.settings = settings;
+        this.executor =
+                new ThreadPoolExecutor(
+                        settings.maxThreads(),
+                        settings.maxThreads(),
+                        60,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(QUEUE_CAPACITY),
+                        threadFactory(endpoint));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.client =
+                HttpClient.newBuilder()
+                        .version(settings.version())
+                        .connectTimeout(settings.connectTimeout())
+                        .followRedirects(HttpClient.Redirect.NEVER)
+                        .executor(executor)
+                        .build();
+        LOG.info("Created VIISP HTTP transport for {} with {}", endpoint, settings);
+    }
+
+    /**
+     * Returns the shared transport of the identity provider for the endpoint of the URL, and shuts
+     * down the transport it used for that endpoint before if no other provider uses that one.
+     */
+    public static ViispHttpTransport forProvider(
+            ViispIdentityProviderConfig config, String url, Settings settings) {
+        TransportKey key = new TransportKey(endpointOf(url), settings);
+        TransportKey unused = USAGE.use(config, key.endpoint(), key);
+        if (unused != null) {
+            ViispHttpTransport previous = TRANSPORTS.remove(unused);
+            if (previous != null) {
+                previous.shutdown();
+            }
+        }
+        return TRANSPORTS.computeIfAbsent(
+                key, k -> new ViispHttpTransport(k.endpoint(), k.settings()));
+    }
+
+    /** Returns the transport of the URL with the given settings, or null if none was created. */
+    public static ViispHttpTransport find(String url, Settings settings) {
+        return TRANSPORTS.get(new TransportKey(endpointOf(url), settings));
+    }
+
+    public static Collection<ViispHttpTransport> all() {
+        return Collections.unmodifiableCollection(TRANSPORTS.values());
+    }
+
+    /** Posts a SOAP message to the given URL without blocking the calling thread. */
+    public CompletableFuture<HttpResponse<String>> postAsync(String url, String soapMessage) {
+        HttpRequest request = newRequest(url, soapMessage);
+
+        requests.increment();
+        inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .whenComplete(
+                        (response, error) -> {
+                            if (error != null) {
+                                failures.increment();
+                            }
+                            totalLatencyNanos.add(System.nanoTime() - start);
+                            inFlight.decrementAndGet();
+                        });
+    }
+
+    /** Lets the calls in flight complete and then stops the client and its threads. */
+    private void shutdown() {
+        LOG.info(
+                "Shutting down VIISP HTTP transport for {} with {}, no identity provider uses it",
+                endpoint,
+                settings);
+        client.shutdown();
+        executor.shutdown();
+    }
+
+    private HttpRequest newRequest(String url, String soapMessage) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .timeout(settings.readTimeout())
+                .header("Content-Type", "text/xml; charset=utf-8")
+                .header("SOAPAction", "")
+                .POST(HttpRequest.BodyPublishers.ofString(soapMessage))
+                .build();
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    public Stats getStats() {
+        long count = requests.sum();
+        return new Stats(
+                count,
+                failures.sum(),
+                inFlight.get(),
+                count > 0 ? totalLatencyNanos.sum() / count / 1_000_000.0 : 0,
+                executor.getPoolSize(),
+                executor.getActiveCount(),
+                executor.getQueue().size());
+    }
+
+    private static String endpointOf(String url) {
+        URI uri = URI.create(url);
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "http".equalsIgnoreCase(uri.getScheme()) ? 80 : 443;
+        }
+        return uri.getScheme() + "://" + uri.getHost() + ":" + port;
+    }
+
+    private static ThreadFactory threadFactory(String endpoint) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread =
+                    new Thread(
+                            runnable, "viisp-http-" + endpoint + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /** Settings of a transport, taken from the identity provider configuration. */
+    public record Settings(
+            HttpClient.Version version,
+            Duration connectTimeout,
+            Duration readTimeout,
+            int maxThreads) {
+
+        public static Settings fromConfig(ViispIdentityProviderConfig config) {
+            return new Settings(
+                    config.getHttpVersion(),
+                    Duration.ofMillis(config.getHttpConnectTimeoutMs()),
+                    Duration.ofMillis(config.getHttpReadTimeoutMs()),
+                    Math.max(config.getHttpMaxThreads(), 1));
+        }
+    }
+
+    /** Point-in-time statistics of a transport. */
+    public record Stats(
+            long requests,
+            long failures,
+            int inFlight,
+            double averageLatencyMs,
+            int poolThreads,
+            int activeThreads,
+            int queuedTasks) {}
+
+    private record TransportKey(String endpoint, Settings settings) {}
+}
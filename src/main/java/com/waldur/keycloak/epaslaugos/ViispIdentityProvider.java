@@ -1,5 +1,7 @@
 package com.waldur.keycloak.epaslaugos;
 
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Scope;
 import jakarta.ws.rs.FormParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
@@ -17,6 +19,8 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.services.ErrorPage;
+import org.keycloak.services.Urls;
 import org.keycloak.services.managers.ClientSessionCode;
 import org.keycloak.sessions.AuthenticationSessionModel;
 import org.slf4j.Logger;
@@ -27,12 +31,32 @@ public class ViispIdentityProvider extends AbstractIdentityProvider<IdentityProv
     public static final String PROVIDER_ID = "viisp";
 
     private final ViispXMLClient xmlClient;
+    private final ViispMetrics metrics;
+    private final ViispTracing tracing;
 
     private static final Logger LOG = LoggerFactory.getLogger(ViispIdentityProvider.class);
 
     public ViispIdentityProvider(KeycloakSession session, ViispIdentityProviderConfig config) {
         super(session, config);
-        this.xmlClient = new ViispXMLClient(config);
+        RealmModel realm = session.getContext().getRealm();
+        String realmName = realm != null ? realm.getName() : null;
+        this.metrics = ViispMetrics.forProvider(realmName, config.getAlias());
+        this.tracing = ViispTracing.forProvider(session, realmName, config);
+        this.xmlClient = new ViispXMLClient(config, metrics, tracing);
+        ViispEndpointProber.schedule(config, probeCallbackUrl(session, realm, config));
+    }
+
+    /** The broker endpoint of the provider, or null outside of an HTTP request. */
+    private static String probeCallbackUrl(
+            KeycloakSession session, RealmModel realm, IdentityProviderModel config) {
+        if (realm == null || session.getContext().getHttpRequest() == null) {
+            return null;
+        }
+        return Urls.identityProviderAuthnResponse(
+                        session.getContext().getUri().getBaseUri(),
+                        config.getAlias(),
+                        realm.getName())
+                .toString();
     }
 
     @Override
@@ -41,6 +65,32 @@ public class ViispIdentityProvider extends AbstractIdentityProvider<IdentityProv
             RealmModel realm,
             UserModel user,
             BrokeredIdentityContext context) {
+        long start = ViispMetrics.start();
+        String outcome = ViispMetrics.OUTCOME_FAILURE;
+        Span span = tracing.startPhase(ViispPhase.UPDATE_BROKERED_USER);
+        ViispFlightEvents.UserSync event = new ViispFlightEvents.UserSync();
+        event.begin();
+        try (Scope scope = span.makeCurrent()) {
+            syncBrokeredUser(user, context);
+            outcome = ViispMetrics.OUTCOME_SUCCESS;
+        } catch (RuntimeException e) {
+            ViispTracing.error(span, e);
+            throw e;
+        } finally {
+            span.end();
+            event.end();
+            if (event.shouldCommit()) {
+                event.idp = getConfig().getAlias();
+                event.outcome = outcome;
+                event.attributes = context.getAttributes().size();
+                event.authProvider = context.getUserAttribute("authentication-provider");
+                event.commit();
+            }
+            metrics.record(ViispPhase.UPDATE_BROKERED_USER, outcome, start);
+        }
+    }
+
+    private void syncBrokeredUser(UserModel user, BrokeredIdentityContext context) {
         // Sync core identity fields on every login
         if (context.getFirstName() != null) {
             user.setFirstName(context.getFirstName());
@@ -127,7 +177,8 @@ public class ViispIdentityProvider extends AbstractIdentityProvider<IdentityProv
             throw new IdentityBrokerException("Authentication session is required");
         }
 
-        try {
+        Span span = tracing.startSpan(ViispTracing.LOGIN_SPAN);
+        try (Scope scope = span.makeCurrent()) {
             // Store CSRF protection state in authentication session
             String viispState = UUID.randomUUID().toString();
             authSession.setAuthNote("VIISP_STATE", viispState);
@@ -216,7 +267,7 @@ public class ViispIdentityProvider extends AbstractIdentityProvider<IdentityProv
                     xmlClient.requestAuthenticationTicket(
                             callbackUrl,
                             viispConfig.getServiceId(),
-                            viispConfig.getAuthServiceUrl(),
+                            viispConfig.getAuthServiceUrls(),
                             encodedState);
             if (ticketId == null || ticketId.trim().isEmpty()) {
                 throw new IdentityBrokerException(
@@ -225,6 +276,11 @@ public class ViispIdentityProvider extends AbstractIdentityProvider<IdentityProv
             authSession.setAuthNote("VIISP_TICKET_ID", ticketId);
             authSession.setAuthNote("VIISP_STATE_COPY", encodedState);
             authSession.setAuthNote("VIISP_TIMESTAMP", String.valueOf(System.currentTimeMillis()));
+            // The callback continues the trace of this login, possibly on another node
+            String traceparent = ViispTracing.traceparent(span);
+            if (traceparent != null) {
+                authSession.setAuthNote(ViispTracing.TRACEPARENT_NOTE, traceparent);
+            }
             LOG.info("Authentication session after setting notes: {}", authSession);
             LOG.info("Stored VIISP_TICKET_ID: {}", ticketId);
             LOG.info("Stored VIISP_STATE_COPY: {}", encodedState);
@@ -233,15 +289,34 @@ public class ViispIdentityProvider extends AbstractIdentityProvider<IdentityProv
             LOG.info("Using the redirect service URL {}", redirectUrl);
             String ticketSubmitPage = createTicketSubmitPage(ticketId, redirectUrl);
             return Response.ok(ticketSubmitPage).type(MediaType.TEXT_HTML_TYPE).build();
+        } catch (ViispServiceUnavailableException e) {
+            LOG.warn("VIISP auth service is unavailable: {}", e.getMessage());
+            metrics.login(ViispMetrics.OUTCOME_REJECTED, null);
+            ViispTracing.error(span, e);
+            return ErrorPage.error(
+                    session,
+                    authSession,
+                    Response.Status.SERVICE_UNAVAILABLE,
+                    "VIISP authentication service is temporarily unavailable. Please try again later.");
         } catch (IllegalArgumentException e) {
+            metrics.login(ViispMetrics.OUTCOME_FAILURE, null);
+            ViispTracing.error(span, e);
             throw new IdentityBrokerException("Invalid VIISP configuration: " + e.getMessage(), e);
         } catch (java.io.IOException | InterruptedException e) {
+            metrics.login(ViispMetrics.OUTCOME_FAILURE, null);
+            ViispTracing.error(span, e);
             throw new IdentityBrokerException("Failed to communicate with VIISP service", e);
         } catch (IdentityBrokerException e) {
+            metrics.login(ViispMetrics.OUTCOME_FAILURE, null);
+            ViispTracing.error(span, e);
             // Re-throw IdentityBrokerException as-is
             throw e;
         } catch (Exception e) {
+            metrics.login(ViispMetrics.OUTCOME_FAILURE, null);
+            ViispTracing.error(span, e);
             throw new IdentityBrokerException("Unexpected error during VIISP authentication", e);
+        } finally {
+            span.end();
         }
     }
 
@@ -358,6 +433,7 @@ public class ViispIdentityProvider extends AbstractIdentityProvider<IdentityProv
                                 });
             }
             if (ticket == null || ticket.isEmpty()) {
+                provider.metrics.login(ViispMetrics.OUTCOME_FAILURE, null);
                 return callback.error(
                         provider.getConfig(), "No authentication ticket received from VIISP");
             }
@@ -395,6 +471,7 @@ public class ViispIdentityProvider extends AbstractIdentityProvider<IdentityProv
                             "Realm SSO session idle timeout: {} seconds",
                             realm.getSsoSessionIdleTimeout());
                     event.error("AUTHENTICATION_SESSION_NOT_FOUND");
+                    provider.metrics.login(ViispMetrics.OUTCOME_FAILURE, null);
                     return callback.error(
                             provider.getConfig(),
                             "Authentication session expired or invalid. Please try logging in again.");
@@ -433,23 +510,53 @@ public class ViispIdentityProvider extends AbstractIdentityProvider<IdentityProv
                             elapsedMs / 1000);
                 }
 
-                // Retrieve user identity from VIISP using ticket
-                ViispIdentityProviderConfig viispConfig =
-                        new ViispIdentityProviderConfig(provider.getConfig());
-                ViispUserInfo userInfo =
-                        xmlClient.getUserInfo(ticket, viispConfig.getAuthServiceUrl());
-
-                LOG.info("User info: {}", userInfo); // TODO: remove after testing
-
-                // Create brokered identity context
-                BrokeredIdentityContext identity = createBrokeredIdentity(userInfo);
-                identity.setAuthenticationSession(authSession);
-
-                LOG.info("Brokered identity context: {}", identity);
-                LOG.info("Brokered identity attributes: {}", identity.getAttributes());
-                return callback.authenticated(identity);
+                Span span =
+                        provider.tracing.startSpan(
+                                ViispTracing.CALLBACK_SPAN,
+                                ViispTracing.extract(
+                                        authSession.getAuthNote(ViispTracing.TRACEPARENT_NOTE)));
+                try (Scope scope = span.makeCurrent()) {
+                    // Retrieve user identity from VIISP using ticket
+                    ViispIdentityProviderConfig viispConfig =
+                            new ViispIdentityProviderConfig(provider.getConfig());
+                    ViispUserInfo userInfo =
+                            xmlClient.getUserInfo(ticket, viispConfig.getAuthServiceUrls());
+
+                    LOG.info("User info: {}", userInfo); // TODO: remove after testing
+
+                    // Create brokered identity context
+                    long identityStart = ViispMetrics.start();
+                    Span identitySpan = provider.tracing.startPhase(ViispPhase.BROKERED_IDENTITY);
+                    BrokeredIdentityContext identity = createBrokeredIdentity(userInfo);
+                    identitySpan.end();
+                    provider.metrics.record(
+                            ViispPhase.BROKERED_IDENTITY,
+                            ViispMetrics.OUTCOME_SUCCESS,
+                            identityStart);
+                    identity.setAuthenticationSession(authSession);
+
+                    LOG.info("Brokered identity context: {}", identity);
+                    LOG.info("Brokered identity attributes: {}", identity.getAttributes());
+                    Response response = callback.authenticated(identity);
+                    provider.metrics.login(
+                            ViispMetrics.OUTCOME_SUCCESS, userInfo.getAuthProvider());
+                    return response;
+                } catch (Exception e) {
+                    ViispTracing.error(span, e);
+                    throw e;
+                } finally {
+                    span.end();
+                }
+            } catch (ViispServiceUnavailableException e) {
+                LOG.warn("VIISP auth service is unavailable: {}", e.getMessage());
+                event.error("VIISP_SERVICE_UNAVAILABLE");
+                provider.metrics.login(ViispMetrics.OUTCOME_REJECTED, null);
+                return callback.error(
+                        provider.getConfig(),
+                        "VIISP authentication service is temporarily unavailable. Please try again later.");
             } catch (Exception e) {
                 event.error("VIISP_AUTHENTICATION_FAILED");
+                provider.metrics.login(ViispMetrics.OUTCOME_FAILURE, null);
                 return callback.error(
                         provider.getConfig(),
                         "Failed to process VIISP authentication: " + e.getMessage());
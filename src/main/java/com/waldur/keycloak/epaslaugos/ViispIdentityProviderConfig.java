@@ -1,5 +1,12 @@
 package com.waldur.keycloak.epaslaugos;
 
+import java.net.http.HttpClient;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import org.keycloak.models.IdentityProviderModel;
 
 public class ViispIdentityProviderConfig extends IdentityProviderModel {
@@ -42,6 +49,38 @@ public class ViispIdentityProviderConfig extends IdentityProviderModel {
         }
     }
 
+    /** Alias of the key pair that replaces the first one of the keystore, null if none. */
+    public String getNextKeyAlias() {
+        String alias = getConfig() != null ? getConfig().get("nextKeyAlias") : null;
+        return alias == null || alias.trim().isEmpty() ? null : alias.trim();
+    }
+
+    public void setNextKeyAlias(String nextKeyAlias) {
+        if (getConfig() != null) {
+            getConfig().put("nextKeyAlias", nextKeyAlias);
+        }
+    }
+
+    /** Time from which the next key is used, null to use it at once. */
+    public Instant getNextKeyActivation() {
+        String activation = getConfig() != null ? getConfig().get("nextKeyActivation") : null;
+        if (activation == null || activation.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Instant.parse(activation.trim());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(
+                    "Next key activation must be an ISO-8601 instant: " + activation, e);
+        }
+    }
+
+    public void setNextKeyActivation(Instant activation) {
+        if (getConfig() != null) {
+            getConfig().put("nextKeyActivation", activation != null ? activation.toString() : "");
+        }
+    }
+
     public String getAuthServiceUrl() {
         return getConfig() != null
                 ? getConfig().get("authServiceUrl")
@@ -54,6 +93,34 @@ public class ViispIdentityProviderConfig extends IdentityProviderModel {
         }
     }
 
+    public String getAlternativeAuthServiceUrls() {
+        return getConfig() != null ? getConfig().get("alternativeAuthServiceUrls") : null;
+    }
+
+    public void setAlternativeAuthServiceUrls(String alternativeAuthServiceUrls) {
+        if (getConfig() != null) {
+            getConfig().put("alternativeAuthServiceUrls", alternativeAuthServiceUrls);
+        }
+    }
+
+    /** The auth service URL followed by the alternative ones, without duplicates. */
+    public List<String> getAuthServiceUrls() {
+        Set<String> urls = new LinkedHashSet<>();
+        String authServiceUrl = getAuthServiceUrl();
+        if (authServiceUrl != null && !authServiceUrl.trim().isEmpty()) {
+            urls.add(authServiceUrl.trim());
+        }
+        String alternatives = getAlternativeAuthServiceUrls();
+        if (alternatives != null) {
+            for (String url : alternatives.split("[,\\s]+")) {
+                if (!url.isEmpty()) {
+                    urls.add(url);
+                }
+            }
+        }
+        return new ArrayList<>(urls);
+    }
+
     public String getRedirectServiceUrl() {
         return getConfig() != null
                 ? getConfig().get("redirectServiceUrl")
@@ -80,4 +147,327 @@ public class ViispIdentityProviderConfig extends IdentityProviderModel {
             getConfig().put("requestedAttributes", attributes);
         }
     }
+
+    public HttpClient.Version getHttpVersion() {
+        String version = getConfig() != null ? getConfig().get("httpVersion") : null;
+        return version == null || version.isEmpty()
+                ? HttpClient.Version.HTTP_2
+                : HttpClient.Version.valueOf(version);
+    }
+
+    public void setHttpVersion(HttpClient.Version version) {
+        if (getConfig() != null) {
+            getConfig().put("httpVersion", version.name());
+        }
+    }
+
+    public int getHttpConnectTimeoutMs() {
+        return getIntConfig("httpConnectTimeoutMs", 5000);
+    }
+
+    public void setHttpConnectTimeoutMs(int timeoutMs) {
+        if (getConfig() != null) {
+            getConfig().put("httpConnectTimeoutMs", String.valueOf(timeoutMs));
+        }
+    }
+
+    public int getHttpReadTimeoutMs() {
+        return getIntConfig("httpReadTimeoutMs", 30000);
+    }
+
+    public void setHttpReadTimeoutMs(int timeoutMs) {
+        if (getConfig() != null) {
+            getConfig().put("httpReadTimeoutMs", String.valueOf(timeoutMs));
+        }
+    }
+
+    public int getHttpMaxThreads() {
+        return getIntConfig("httpMaxThreads", 4);
+    }
+
+    public void setHttpMaxThreads(int maxThreads) {
+        if (getConfig() != null) {
+            getConfig().put("httpMaxThreads", String.valueOf(maxThreads));
+        }
+    }
+
+    public ViispResponseParser getResponseParser() {
+        String parser = getConfig() != null ? getConfig().get("responseParser") : null;
+        return parser == null || parser.isEmpty()
+                ? ViispResponseParser.DOM
+                : ViispResponseParser.fromValue(parser);
+    }
+
+    public void setResponseParser(ViispResponseParser parser) {
+        if (getConfig() != null) {
+            getConfig().put("responseParser", parser.value());
+        }
+    }
+
+    public int getShadowParsePercent() {
+        return getIntConfig("shadowParsePercent", 0);
+    }
+
+    public void setShadowParsePercent(int percent) {
+        if (getConfig() != null) {
+            getConfig().put("shadowParsePercent", String.valueOf(percent));
+        }
+    }
+
+    public ViispRequestSigner getRequestSigner() {
+        String signer = getConfig() != null ? getConfig().get("requestSigner") : null;
+        return signer == null || signer.isEmpty()
+                ? ViispRequestSigner.GENERIC
+                : ViispRequestSigner.fromValue(signer);
+    }
+
+    public void setRequestSigner(ViispRequestSigner signer) {
+        if (getConfig() != null) {
+            getConfig().put("requestSigner", signer.value());
+        }
+    }
+
+    public ViispSignatureAlgorithm getSignatureAlgorithm() {
+        String algorithm = getConfig() != null ? getConfig().get("signatureAlgorithm") : null;
+        return algorithm == null || algorithm.isEmpty()
+                ? ViispSignatureAlgorithm.AUTO
+                : ViispSignatureAlgorithm.fromValue(algorithm);
+    }
+
+    public void setSignatureAlgorithm(ViispSignatureAlgorithm algorithm) {
+        if (getConfig() != null) {
+            getConfig().put("signatureAlgorithm", algorithm.value());
+        }
+    }
+
+    public ViispDigestAlgorithm getDigestAlgorithm() {
+        String algorithm = getConfig() != null ? getConfig().get("digestAlgorithm") : null;
+        return algorithm == null || algorithm.isEmpty()
+                ? ViispDigestAlgorithm.SHA1
+                : ViispDigestAlgorithm.fromValue(algorithm);
+    }
+
+    public void setDigestAlgorithm(ViispDigestAlgorithm algorithm) {
+        if (getConfig() != null) {
+            getConfig().put("digestAlgorithm", algorithm.value());
+        }
+    }
+
+    public ViispCryptoMode getCryptoMode() {
+        String mode = getConfig() != null ? getConfig().get("cryptoMode") : null;
+        return mode == null || mode.isEmpty()
+                ? ViispCryptoMode.CALLER
+                : ViispCryptoMode.fromValue(mode);
+    }
+
+    public void setCryptoMode(ViispCryptoMode mode) {
+        if (getConfig() != null) {
+            getConfig().put("cryptoMode", mode.value());
+        }
+    }
+
+    public int getCryptoQueueCapacity() {
+        return getIntConfig("cryptoQueueCapacity", 64);
+    }
+
+    public void setCryptoQueueCapacity(int capacity) {
+        if (getConfig() != null) {
+            getConfig().put("cryptoQueueCapacity", String.valueOf(capacity));
+        }
+    }
+
+    public ViispResponseVerification getResponseVerification() {
+        String verification = getConfig() != null ? getConfig().get("responseVerification") : null;
+        return verification == null || verification.isEmpty()
+                ? ViispResponseVerification.OFF
+                : ViispResponseVerification.fromValue(verification);
+    }
+
+    public void setResponseVerification(ViispResponseVerification verification) {
+        if (getConfig() != null) {
+            getConfig().put("responseVerification", verification.value());
+        }
+    }
+
+    public String getResponseTruststorePath() {
+        return getConfig() != null ? getConfig().get("responseTruststorePath") : null;
+    }
+
+    public void setResponseTruststorePath(String truststorePath) {
+        if (getConfig() != null) {
+            getConfig().put("responseTruststorePath", truststorePath);
+        }
+    }
+
+    public String getResponseTruststorePassword() {
+        return getConfig() != null ? getConfig().get("responseTruststorePassword") : null;
+    }
+
+    public void setResponseTruststorePassword(String truststorePassword) {
+        if (getConfig() != null) {
+            getConfig().put("responseTruststorePassword", truststorePassword);
+        }
+    }
+
+    public int getCircuitBreakerFailureRateThreshold() {
+        return getIntConfig("circuitBreakerFailureRateThreshold", 50);
+    }
+
+    public void setCircuitBreakerFailureRateThreshold(int threshold) {
+        if (getConfig() != null) {
+            getConfig().put("circuitBreakerFailureRateThreshold", String.valueOf(threshold));
+        }
+    }
+
+    public int getCircuitBreakerSlowCallMs() {
+        return getIntConfig("circuitBreakerSlowCallMs", 10000);
+    }
+
+    public void setCircuitBreakerSlowCallMs(int durationMs) {
+        if (getConfig() != null) {
+            getConfig().put("circuitBreakerSlowCallMs", String.valueOf(durationMs));
+        }
+    }
+
+    public int getCircuitBreakerOpenMs() {
+        return getIntConfig("circuitBreakerOpenMs", 30000);
+    }
+
+    public void setCircuitBreakerOpenMs(int durationMs) {
+        if (getConfig() != null) {
+            getConfig().put("circuitBreakerOpenMs", String.valueOf(durationMs));
+        }
+    }
+
+    public int getCircuitBreakerMinimumCalls() {
+        return getIntConfig("circuitBreakerMinimumCalls", 20);
+    }
+
+    public void setCircuitBreakerMinimumCalls(int minimumCalls) {
+        if (getConfig() != null) {
+            getConfig().put("circuitBreakerMinimumCalls", String.valueOf(minimumCalls));
+        }
+    }
+
+    public int getMaxConcurrentRequests() {
+        return getIntConfig("maxConcurrentRequests", 50);
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (getConfig() != null) {
+            getConfig().put("maxConcurrentRequests", String.valueOf(maxConcurrentRequests));
+        }
+    }
+
+    public int getTicketHedgePercentile() {
+        return getIntConfig("ticketHedgePercentile", 0);
+    }
+
+    public void setTicketHedgePercentile(int percentile) {
+        if (getConfig() != null) {
+            getConfig().put("ticketHedgePercentile", String.valueOf(percentile));
+        }
+    }
+
+    public int getTicketHedgeMinDelayMs() {
+        return getIntConfig("ticketHedgeMinDelayMs", 100);
+    }
+
+    public void setTicketHedgeMinDelayMs(int delayMs) {
+        if (getConfig() != null) {
+            getConfig().put("ticketHedgeMinDelayMs", String.valueOf(delayMs));
+        }
+    }
+
+    public int getMaxRetries() {
+        return getIntConfig("maxRetries", 2);
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        if (getConfig() != null) {
+            getConfig().put("maxRetries", String.valueOf(maxRetries));
+        }
+    }
+
+    public int getRetryBackoffMs() {
+        return getIntConfig("retryBackoffMs", 100);
+    }
+
+    public void setRetryBackoffMs(int backoffMs) {
+        if (getConfig() != null) {
+            getConfig().put("retryBackoffMs", String.valueOf(backoffMs));
+        }
+    }
+
+    public ViispTracingExporter getTracingExporter() {
+        String exporter = getConfig() != null ? getConfig().get("tracingExporter") : null;
+        return exporter == null || exporter.isEmpty()
+                ? ViispTracingExporter.KEYCLOAK
+                : ViispTracingExporter.fromValue(exporter);
+    }
+
+    public void setTracingExporter(ViispTracingExporter exporter) {
+        if (getConfig() != null) {
+            getConfig().put("tracingExporter", exporter.value());
+        }
+    }
+
+    public ViispTransportMode getTransportMode() {
+        String mode = getConfig() != null ? getConfig().get("transportMode") : null;
+        return mode == null || mode.isEmpty()
+                ? ViispTransportMode.HTTP
+                : ViispTransportMode.fromValue(mode);
+    }
+
+    public void setTransportMode(ViispTransportMode mode) {
+        if (getConfig() != null) {
+            getConfig().put("transportMode", mode.value());
+        }
+    }
+
+    public ViispProbeMode getProbeMode() {
+        String mode = getConfig() != null ? getConfig().get("probeMode") : null;
+        return mode == null || mode.isEmpty()
+                ? ViispProbeMode.NONE
+                : ViispProbeMode.fromValue(mode);
+    }
+
+    public void setProbeMode(ViispProbeMode mode) {
+        if (getConfig() != null) {
+            getConfig().put("probeMode", mode.value());
+        }
+    }
+
+    public int getProbeIntervalMs() {
+        return getIntConfig("probeIntervalMs", 30000);
+    }
+
+    public void setProbeIntervalMs(int intervalMs) {
+        if (getConfig() != null) {
+            getConfig().put("probeIntervalMs", String.valueOf(intervalMs));
+        }
+    }
+
+    public int getProbeFailureThreshold() {
+        return getIntConfig("probeFailureThreshold", 3);
+    }
+
+    public void setProbeFailureThreshold(int threshold) {
+        if (getConfig() != null) {
+            getConfig().put("probeFailureThreshold", String.valueOf(threshold));
+        }
+    }
+
+    private int getIntConfig(String name, int defaultValue) {
+        String value = getConfig() != null ? getConfig().get(name) : null;
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    String.format("VIISP setting %s must be a number, got '%s'", name, value));
+        }
+    }
 }
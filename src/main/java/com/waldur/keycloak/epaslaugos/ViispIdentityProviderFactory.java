@@ -2,6 +2,7 @@ package com.waldur.keycloak.epaslaugos;
 
 import java.util.ArrayList;
 import java.util.List;
+import org.keycloak.Config;
 import org.keycloak.broker.provider.AbstractIdentityProviderFactory;
 import org.keycloak.models.IdentityProviderModel;
 import org.keycloak.models.KeycloakSession;
@@ -33,6 +34,14 @@ public class ViispIdentityProviderFactory
         authServiceUrl.setDefaultValue("https://test.epaslaugos.lt/services/services/auth");
         configProperties.add(authServiceUrl);
 
+        ProviderConfigProperty alternativeAuthServiceUrls = new ProviderConfigProperty();
+        alternativeAuthServiceUrls.setName("alternativeAuthServiceUrls");
+        alternativeAuthServiceUrls.setLabel("Alternative auth service URLs");
+        alternativeAuthServiceUrls.setType(ProviderConfigProperty.STRING_TYPE);
+        alternativeAuthServiceUrls.setHelpText(
+                "Comma-separated list of further URLs of the same auth service. Requests are spread over all auth service URLs by observed latency and error rate, failing over when one of them misbehaves.");
+        configProperties.add(alternativeAuthServiceUrls);
+
         ProviderConfigProperty redirectServiceUrl = new ProviderConfigProperty();
         redirectServiceUrl.setName("redirectServiceUrl");
         redirectServiceUrl.setLabel("Redirect service URL");
@@ -62,6 +71,287 @@ public class ViispIdentityProviderFactory
         keystorePasswordProperty.setRequired(true);
         keystorePasswordProperty.setDefaultValue("viisp-test");
         configProperties.add(keystorePasswordProperty);
+
+        ProviderConfigProperty nextKeyAliasProperty = new ProviderConfigProperty();
+        nextKeyAliasProperty.setName("nextKeyAlias");
+        nextKeyAliasProperty.setLabel("Next key alias");
+        nextKeyAliasProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        nextKeyAliasProperty.setHelpText(
+                "Alias of a second key pair of the keystore to sign with instead of the first one, from the next key activation time on. Only set it once VIISP has registered the certificate of the key. Leave empty to sign with the first key pair of the keystore.");
+        configProperties.add(nextKeyAliasProperty);
+
+        ProviderConfigProperty nextKeyActivationProperty = new ProviderConfigProperty();
+        nextKeyActivationProperty.setName("nextKeyActivation");
+        nextKeyActivationProperty.setLabel("Next key activation");
+        nextKeyActivationProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        nextKeyActivationProperty.setHelpText(
+                "Time from which the next key is used, as an ISO-8601 instant such as 2026-11-01T06:00:00Z. Leave empty to use the next key at once.");
+        configProperties.add(nextKeyActivationProperty);
+
+        ProviderConfigProperty httpVersionProperty = new ProviderConfigProperty();
+        httpVersionProperty.setName("httpVersion");
+        httpVersionProperty.setLabel("HTTP version");
+        httpVersionProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        httpVersionProperty.setOptions(List.of("HTTP_2", "HTTP_1_1"));
+        httpVersionProperty.setHelpText(
+                "HTTP version used for the VIISP SOAP calls. HTTP_2 falls back to HTTP/1.1 if the server does not support it.");
+        httpVersionProperty.setDefaultValue("HTTP_2");
+        configProperties.add(httpVersionProperty);
+
+        ProviderConfigProperty httpConnectTimeoutProperty = new ProviderConfigProperty();
+        httpConnectTimeoutProperty.setName("httpConnectTimeoutMs");
+        httpConnectTimeoutProperty.setLabel("HTTP connect timeout (ms)");
+        httpConnectTimeoutProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        httpConnectTimeoutProperty.setHelpText(
+                "Timeout for establishing a connection to the VIISP auth service, in milliseconds.");
+        httpConnectTimeoutProperty.setDefaultValue("5000");
+        configProperties.add(httpConnectTimeoutProperty);
+
+        ProviderConfigProperty httpReadTimeoutProperty = new ProviderConfigProperty();
+        httpReadTimeoutProperty.setName("httpReadTimeoutMs");
+        httpReadTimeoutProperty.setLabel("HTTP read timeout (ms)");
+        httpReadTimeoutProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        httpReadTimeoutProperty.setHelpText(
+                "Maximum time to wait for a response of the VIISP auth service, in milliseconds.");
+        httpReadTimeoutProperty.setDefaultValue("30000");
+        configProperties.add(httpReadTimeoutProperty);
+
+        ProviderConfigProperty httpMaxThreadsProperty = new ProviderConfigProperty();
+        httpMaxThreadsProperty.setName("httpMaxThreads");
+        httpMaxThreadsProperty.setLabel("HTTP client threads");
+        httpMaxThreadsProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        httpMaxThreadsProperty.setHelpText(
+                "Maximum number of threads of the shared HTTP client used for one VIISP endpoint.");
+        httpMaxThreadsProperty.setDefaultValue("4");
+        configProperties.add(httpMaxThreadsProperty);
+
+        ProviderConfigProperty responseParserProperty = new ProviderConfigProperty();
+        responseParserProperty.setName("responseParser");
+        responseParserProperty.setLabel("Response parser");
+        responseParserProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        responseParserProperty.setOptions(List.of("dom", "streaming"));
+        responseParserProperty.setHelpText(
+                "Parser of the VIISP user data responses. 'streaming' reads the response in a single pass without building a DOM, 'dom' is the original DOM based parser.");
+        responseParserProperty.setDefaultValue("dom");
+        configProperties.add(responseParserProperty);
+
+        ProviderConfigProperty shadowParsePercentProperty = new ProviderConfigProperty();
+        shadowParsePercentProperty.setName("shadowParsePercent");
+        shadowParsePercentProperty.setLabel("Shadow parse sample (%)");
+        shadowParsePercentProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        shadowParsePercentProperty.setHelpText(
+                "Percentage of user data responses that are also parsed by the other response parser. The results are compared field by field and mismatches and parse times are recorded as metrics; the configured parser's result is always used. The second parse runs on a background thread and is skipped while response signatures are verified. 0 disables shadow parsing.");
+        shadowParsePercentProperty.setDefaultValue("0");
+        configProperties.add(shadowParsePercentProperty);
+
+        ProviderConfigProperty requestSignerProperty = new ProviderConfigProperty();
+        requestSignerProperty.setName("requestSigner");
+        requestSignerProperty.setLabel("Request signer");
+        requestSignerProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        requestSignerProperty.setOptions(List.of("generic", "template"));
+        requestSignerProperty.setHelpText(
+                "Signer of the VIISP authentication requests. 'template' digests and signs the precomputed canonical form of the request with only the postback URL and custom data filled in, 'generic' canonicalizes and signs the DOM of every request. Both produce the same requests; the template signer falls back to the generic one when it cannot be used.");
+        requestSignerProperty.setDefaultValue("generic");
+        configProperties.add(requestSignerProperty);
+
+        ProviderConfigProperty signatureAlgorithmProperty = new ProviderConfigProperty();
+        signatureAlgorithmProperty.setName("signatureAlgorithm");
+        signatureAlgorithmProperty.setLabel("Signature algorithm");
+        signatureAlgorithmProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        signatureAlgorithmProperty.setOptions(
+                List.of("auto", "rsa-sha1", "rsa-sha256", "rsa-sha512", "ecdsa-sha256"));
+        signatureAlgorithmProperty.setHelpText(
+                "Signature algorithm of the VIISP requests. 'auto' uses RSA-SHA1 for RSA keys and ECDSA-SHA256 for EC keys of the keystore. Only choose an algorithm VIISP accepts for the service; it must match the type of the key.");
+        signatureAlgorithmProperty.setDefaultValue("auto");
+        configProperties.add(signatureAlgorithmProperty);
+
+        ProviderConfigProperty digestAlgorithmProperty = new ProviderConfigProperty();
+        digestAlgorithmProperty.setName("digestAlgorithm");
+        digestAlgorithmProperty.setLabel("Digest algorithm");
+        digestAlgorithmProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        digestAlgorithmProperty.setOptions(List.of("sha1", "sha256", "sha512"));
+        digestAlgorithmProperty.setHelpText(
+                "Digest algorithm of the signed request content in the VIISP request signatures.");
+        digestAlgorithmProperty.setDefaultValue("sha1");
+        configProperties.add(digestAlgorithmProperty);
+
+        ProviderConfigProperty cryptoModeProperty = new ProviderConfigProperty();
+        cryptoModeProperty.setName("cryptoMode");
+        cryptoModeProperty.setLabel("Signing and parsing threads");
+        cryptoModeProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        cryptoModeProperty.setOptions(List.of("caller", "dedicated"));
+        cryptoModeProperty.setHelpText(
+                "Where requests are signed and responses parsed. 'caller' uses the Keycloak request thread of the login, 'dedicated' a shared pool with one thread per core and a bounded queue, so a burst of logins cannot use every core. Logins are rejected while the queue is full.");
+        cryptoModeProperty.setDefaultValue("caller");
+        configProperties.add(cryptoModeProperty);
+
+        ProviderConfigProperty cryptoQueueCapacityProperty = new ProviderConfigProperty();
+        cryptoQueueCapacityProperty.setName("cryptoQueueCapacity");
+        cryptoQueueCapacityProperty.setLabel("Signing and parsing queue size");
+        cryptoQueueCapacityProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        cryptoQueueCapacityProperty.setHelpText(
+                "Signing and parsing stages that may wait for a thread of the dedicated pool before logins are rejected.");
+        cryptoQueueCapacityProperty.setDefaultValue("64");
+        configProperties.add(cryptoQueueCapacityProperty);
+
+        ProviderConfigProperty responseVerificationProperty = new ProviderConfigProperty();
+        responseVerificationProperty.setName("responseVerification");
+        responseVerificationProperty.setLabel("Response signature verification");
+        responseVerificationProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        responseVerificationProperty.setOptions(List.of("off", "report", "enforce"));
+        responseVerificationProperty.setHelpText(
+                "Verification of the XML signatures of VIISP responses against the keys of the response truststore. 'report' logs and counts responses that fail verification but still uses them, 'enforce' rejects them.");
+        responseVerificationProperty.setDefaultValue("off");
+        configProperties.add(responseVerificationProperty);
+
+        ProviderConfigProperty responseTruststorePathProperty = new ProviderConfigProperty();
+        responseTruststorePathProperty.setName("responseTruststorePath");
+        responseTruststorePathProperty.setLabel("Response truststore path");
+        responseTruststorePathProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        responseTruststorePathProperty.setHelpText(
+                "Path to a keystore (JKS or PKCS12) or a PEM or DER certificate file with the VIISP certificates whose keys sign responses. Required when responses are verified.");
+        configProperties.add(responseTruststorePathProperty);
+
+        ProviderConfigProperty responseTruststorePasswordProperty = new ProviderConfigProperty();
+        responseTruststorePasswordProperty.setName("responseTruststorePassword");
+        responseTruststorePasswordProperty.setLabel("Response truststore password");
+        responseTruststorePasswordProperty.setType(ProviderConfigProperty.PASSWORD);
+        responseTruststorePasswordProperty.setHelpText(
+                "Password of the response truststore, if it is a keystore. Optional for certificate files.");
+        configProperties.add(responseTruststorePasswordProperty);
+
+        ProviderConfigProperty circuitBreakerFailureRateProperty = new ProviderConfigProperty();
+        circuitBreakerFailureRateProperty.setName("circuitBreakerFailureRateThreshold");
+        circuitBreakerFailureRateProperty.setLabel("Circuit breaker failure rate (%)");
+        circuitBreakerFailureRateProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        circuitBreakerFailureRateProperty.setHelpText(
+                "Percentage of failed or slow calls among the last 100 calls to an auth service URL at which calls are rejected for the open duration. 0 disables the circuit breaker.");
+        circuitBreakerFailureRateProperty.setDefaultValue("50");
+        configProperties.add(circuitBreakerFailureRateProperty);
+
+        ProviderConfigProperty circuitBreakerSlowCallProperty = new ProviderConfigProperty();
+        circuitBreakerSlowCallProperty.setName("circuitBreakerSlowCallMs");
+        circuitBreakerSlowCallProperty.setLabel("Circuit breaker slow call (ms)");
+        circuitBreakerSlowCallProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        circuitBreakerSlowCallProperty.setHelpText(
+                "Calls to VIISP taking longer than this, in milliseconds, count as failed for the circuit breaker.");
+        circuitBreakerSlowCallProperty.setDefaultValue("10000");
+        configProperties.add(circuitBreakerSlowCallProperty);
+
+        ProviderConfigProperty circuitBreakerOpenProperty = new ProviderConfigProperty();
+        circuitBreakerOpenProperty.setName("circuitBreakerOpenMs");
+        circuitBreakerOpenProperty.setLabel("Circuit breaker open duration (ms)");
+        circuitBreakerOpenProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        circuitBreakerOpenProperty.setHelpText(
+                "How long calls are rejected after the circuit breaker opened, before a trial call is let through, in milliseconds.");
+        circuitBreakerOpenProperty.setDefaultValue("30000");
+        configProperties.add(circuitBreakerOpenProperty);
+
+        ProviderConfigProperty circuitBreakerMinimumCallsProperty = new ProviderConfigProperty();
+        circuitBreakerMinimumCallsProperty.setName("circuitBreakerMinimumCalls");
+        circuitBreakerMinimumCallsProperty.setLabel("Circuit breaker minimum calls");
+        circuitBreakerMinimumCallsProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        circuitBreakerMinimumCallsProperty.setHelpText(
+                "Minimum number of recorded calls before the circuit breaker evaluates the failure rate.");
+        circuitBreakerMinimumCallsProperty.setDefaultValue("20");
+        configProperties.add(circuitBreakerMinimumCallsProperty);
+
+        ProviderConfigProperty maxConcurrentRequestsProperty = new ProviderConfigProperty();
+        maxConcurrentRequestsProperty.setName("maxConcurrentRequests");
+        maxConcurrentRequestsProperty.setLabel("Max concurrent VIISP requests");
+        maxConcurrentRequestsProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        maxConcurrentRequestsProperty.setHelpText(
+                "Maximum number of concurrent VIISP calls of this identity provider; further logins fail fast. 0 disables the limit.");
+        maxConcurrentRequestsProperty.setDefaultValue("50");
+        configProperties.add(maxConcurrentRequestsProperty);
+
+        ProviderConfigProperty ticketHedgePercentileProperty = new ProviderConfigProperty();
+        ticketHedgePercentileProperty.setName("ticketHedgePercentile");
+        ticketHedgePercentileProperty.setLabel("Ticket request hedging percentile");
+        ticketHedgePercentileProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        ticketHedgePercentileProperty.setHelpText(
+                "If the authentication ticket request takes longer than this percentile of recent ticket request latencies, a second identical request is sent and the first response is used. 0 disables hedging.");
+        ticketHedgePercentileProperty.setDefaultValue("0");
+        configProperties.add(ticketHedgePercentileProperty);
+
+        ProviderConfigProperty ticketHedgeMinDelayMsProperty = new ProviderConfigProperty();
+        ticketHedgeMinDelayMsProperty.setName("ticketHedgeMinDelayMs");
+        ticketHedgeMinDelayMsProperty.setLabel("Ticket request hedging minimum delay (ms)");
+        ticketHedgeMinDelayMsProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        ticketHedgeMinDelayMsProperty.setHelpText(
+                "Lower bound of the delay before a hedged ticket request is sent");
+        ticketHedgeMinDelayMsProperty.setDefaultValue("100");
+        configProperties.add(ticketHedgeMinDelayMsProperty);
+
+        ProviderConfigProperty maxRetriesProperty = new ProviderConfigProperty();
+        maxRetriesProperty.setName("maxRetries");
+        maxRetriesProperty.setLabel("Max retries");
+        maxRetriesProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        maxRetriesProperty.setHelpText(
+                "Number of retries of a VIISP call after a connection failure. Ticket requests are retried on any connection failure, user data requests only if the request could not be sent.");
+        maxRetriesProperty.setDefaultValue("2");
+        configProperties.add(maxRetriesProperty);
+
+        ProviderConfigProperty retryBackoffMsProperty = new ProviderConfigProperty();
+        retryBackoffMsProperty.setName("retryBackoffMs");
+        retryBackoffMsProperty.setLabel("Retry backoff (ms)");
+        retryBackoffMsProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        retryBackoffMsProperty.setHelpText(
+                "Base delay before a retry; doubled for every further retry and randomized");
+        retryBackoffMsProperty.setDefaultValue("100");
+        configProperties.add(retryBackoffMsProperty);
+
+        ProviderConfigProperty tracingExporterProperty = new ProviderConfigProperty();
+        tracingExporterProperty.setName("tracingExporter");
+        tracingExporterProperty.setLabel("Tracing exporter");
+        tracingExporterProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        tracingExporterProperty.setOptions(List.of("keycloak", "memory", "file", "none"));
+        tracingExporterProperty.setHelpText(
+                "Destination of the OpenTelemetry spans of VIISP logins. 'keycloak' uses the Keycloak tracer and its tracing-* server options, 'memory' keeps the latest spans in memory, 'file' appends them as JSON lines to the tracing file of the server; it has to be enabled with the tracing-file-enabled SPI option.");
+        tracingExporterProperty.setDefaultValue("keycloak");
+        configProperties.add(tracingExporterProperty);
+
+        ProviderConfigProperty transportModeProperty = new ProviderConfigProperty();
+        transportModeProperty.setName("transportMode");
+        transportModeProperty.setLabel("Transport");
+        transportModeProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        transportModeProperty.setOptions(List.of("http", "record", "replay"));
+        transportModeProperty.setHelpText(
+                "How VIISP SOAP calls are made. 'record' calls VIISP and appends every exchange, with personal data and tickets masked, to the transport file of the server. 'replay' does not call VIISP but serves the exchanges of the transport file back with their recorded latency; for load tests only. Both have to be enabled with the transport-record-enabled and transport-replay-enabled SPI options.");
+        transportModeProperty.setDefaultValue("http");
+        configProperties.add(transportModeProperty);
+
+        ProviderConfigProperty probeModeProperty = new ProviderConfigProperty();
+        probeModeProperty.setName("probeMode");
+        probeModeProperty.setLabel("Endpoint probe");
+        probeModeProperty.setType(ProviderConfigProperty.LIST_TYPE);
+        probeModeProperty.setOptions(List.of("none", "connect", "ticket"));
+        probeModeProperty.setHelpText(
+                "Background health check of every auth service URL. 'connect' opens a TCP connection (and TLS session for https), 'ticket' sends a signed authentication ticket request. Endpoints failing the probe are avoided, and logins fail fast when all of them are down.");
+        probeModeProperty.setDefaultValue("none");
+        configProperties.add(probeModeProperty);
+
+        ProviderConfigProperty probeIntervalMsProperty = new ProviderConfigProperty();
+        probeIntervalMsProperty.setName("probeIntervalMs");
+        probeIntervalMsProperty.setLabel("Endpoint probe interval (ms)");
+        probeIntervalMsProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        probeIntervalMsProperty.setHelpText("Time between two probes of an auth service URL.");
+        probeIntervalMsProperty.setDefaultValue("30000");
+        configProperties.add(probeIntervalMsProperty);
+
+        ProviderConfigProperty probeFailureThresholdProperty = new ProviderConfigProperty();
+        probeFailureThresholdProperty.setName("probeFailureThreshold");
+        probeFailureThresholdProperty.setLabel("Endpoint probe failure threshold");
+        probeFailureThresholdProperty.setType(ProviderConfigProperty.STRING_TYPE);
+        probeFailureThresholdProperty.setHelpText(
+                "Number of consecutive failed probes after which an auth service URL is considered down. One successful probe brings it back.");
+        probeFailureThresholdProperty.setDefaultValue("3");
+        configProperties.add(probeFailureThresholdProperty);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        ViispServerOptions.set(ViispServerOptions.fromScope(config));
     }
 
     @Override
@@ -0,0 +1,60 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers VIISP SOAP messages in memory, on the calling thread, so the client's signing and parsing
+ * can be tested and benchmarked without a network.
+ */
+public final class ViispInMemoryTransport implements ViispTransport {
+
+    private final Responder responder;
+    private final LongAdder requests = new LongAdder();
+
+    public ViispInMemoryTransport(Responder responder) {
+        this.responder = responder;
+    }
+
+    /** Answers every ticket request and every authentication data request with the same body. */
+    public static ViispInMemoryTransport fixed(String ticketResponse, String dataResponse) {
+        return new ViispInMemoryTransport(
+                (phase, soapMessage) ->
+                        Reply.ok(
+                                phase == ViispPhase.AUTH_DATA_HTTP
+                                        ? dataResponse
+                                        : ticketResponse));
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse<String>> postAsync(
+            String url, String soapMessage, ViispPhase phase) {
+        requests.increment();
+        try {
+            Reply reply = responder.respond(phase, soapMessage);
+            return CompletableFuture.completedFuture(
+                    new ViispTransportResponse(url, reply.statusCode(), reply.body()));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /** Produces the response to a SOAP message; exceptions fail the exchange. */
+    @FunctionalInterface
+    public interface Responder {
+
+        Reply respond(ViispPhase phase, String soapMessage) throws Exception;
+    }
+
+    public record Reply(int statusCode, String body) {
+
+        public static Reply ok(String body) {
+            return new Reply(200, body);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.security.KeyException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+
+/** Immutable key pair decoded from a VIISP keystore, shared between provider instances. */
+public final class ViispKeyMaterial {
+
+    private final String alias;
+    private final PrivateKey privateKey;
+    private final PublicKey publicKey;
+    private final X509Certificate certificate;
+    private final Instant loadedAt;
+    private final KeyInfo keyInfo;
+
+    public ViispKeyMaterial(
+            String alias,
+            PrivateKey privateKey,
+            PublicKey publicKey,
+            X509Certificate certificate,
+            Instant loadedAt)
+            throws KeyException {
+        this.alias = alias;
+        this.privateKey = privateKey;
+        this.publicKey = publicKey;
+        this.certificate = certificate;
+        this.loadedAt = loadedAt;
+        this.keyInfo = ViispXmlSigner.newKeyInfo(publicKey);
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    public Instant getLoadedAt() {
+        return loadedAt;
+    }
+
+    /** The signature KeyInfo of the public key, shared by all signatures made with this key. */
+    public KeyInfo getKeyInfo() {
+        return keyInfo;
+    }
+}
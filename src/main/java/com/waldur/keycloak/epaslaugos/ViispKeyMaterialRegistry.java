@@ -0,0 +1,375 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide registry of decoded VIISP key pairs.
+ *
+ * <p>Keycloak creates a new identity provider instance for almost every request, so the keystore is
+ * loaded here once per (keystore path, password) and shared by all provider instances and realms.
+ * Key pairs are only decoded when {@link #get} is first called, i.e. when a request actually has to
+ * be signed.
+ *
+ * <p>Keystores on the file system are then watched by {@link ViispKeystoreWatcher}. When the file
+ * changes it is loaded again in the background and its key pairs are swapped in at once; lookups
+ * never wait for the reload and keep the previous key pairs if the new file cannot be loaded. A
+ * keystore is dropped, and no longer reloaded, once no identity provider looking it up through
+ * {@link #forProvider} is configured with its path and password any more.
+ *
+ * <p>Requests are signed with the first key pair of the keystore. A keystore may hold several key
+ * pairs to rotate the signing key, but another one is only used when the identity provider
+ * configures a {@link Rotation}: its next key alias is used from the activation time on, or at once
+ * if there is none. Certificate validity never selects a key, as a freshly issued certificate must
+ * not be used before VIISP has registered it.
+ */
+public final class ViispKeyMaterialRegistry {
+
+    public static final String TEST_KEYSTORE_PATH = "/keystore-test.jks";
+    public static final String TEST_KEYSTORE_PASSWORD = "viisp-test";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispKeyMaterialRegistry.class);
+
+    private static final ConcurrentMap<CacheKey, Entry> ENTRIES = new ConcurrentHashMap<>();
+    private static final ViispProviderUsage<CacheKey> USAGE = new ViispProviderUsage<>();
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    private ViispKeyMaterialRegistry() {}
+
+    /**
+     * Returns the signing key pair of the identity provider, loading its keystore on first use, and
+     * drops the keystore it used before if no other provider uses that one.
+     */
+    public static ViispKeyMaterial forProvider(ViispIdentityProviderConfig config) {
+        String path = config.getKeystorePath();
+        String password = config.getKeystorePassword();
+        if (path == null || path.isEmpty()) {
+            path = TEST_KEYSTORE_PATH;
+            password = TEST_KEYSTORE_PASSWORD;
+        }
+        String digest = passwordDigest(password != null ? password : "");
+        CacheKey unused = USAGE.use(config, new CacheKey(path, digest));
+        if (unused != null && ENTRIES.remove(unused) != null) {
+            LOG.info("Dropped the VIISP keystore {}, no identity provider uses it", unused.path());
+        }
+        return get(path, password, Rotation.fromConfig(config));
+    }
+
+    /** Returns the first key pair of the keystore, loading it on first use. */
+    public static ViispKeyMaterial get(String keystorePath, String keystorePassword) {
+        return get(keystorePath, keystorePassword, null);
+    }
+
+    /**
+     * Returns the signing key pair of the keystore for the rotation, which may be null, loading the
+     * keystore on first use.
+     */
+    public static ViispKeyMaterial get(
+            String keystorePath, String keystorePassword, Rotation rotation) {
+        // Use test keystore if no custom path provided
+        if (keystorePath == null || keystorePath.isEmpty()) {
+            keystorePath = TEST_KEYSTORE_PATH;
+            keystorePassword = TEST_KEYSTORE_PASSWORD;
+        }
+        String path = keystorePath;
+        String password = keystorePassword != null ? keystorePassword : "";
+
+        Entry entry =
+                ENTRIES.computeIfAbsent(
+                        new CacheKey(path, passwordDigest(password)),
+                        k -> new Entry(path, password));
+        return entry.get(rotation);
+    }
+
+    /**
+     * Returns the signing key pair of the keystore for the rotation if the keystore is already
+     * decoded, without loading it or counting a lookup; null otherwise.
+     */
+    public static ViispKeyMaterial find(
+            String keystorePath, String keystorePassword, Rotation rotation) {
+        KeyRing ring = findRing(keystorePath, keystorePassword);
+        return ring != null ? ring.primary(rotation, Instant.now()) : null;
+    }
+
+    /**
+     * Returns the next key pair of the rotation if the keystore is already decoded, has it and its
+     * activation time has not come yet; null otherwise.
+     */
+    public static ViispKeyMaterial findNext(
+            String keystorePath, String keystorePassword, Rotation rotation) {
+        KeyRing ring = findRing(keystorePath, keystorePassword);
+        return ring != null ? ring.next(rotation, Instant.now()) : null;
+    }
+
+    private static KeyRing findRing(String keystorePath, String keystorePassword) {
+        if (keystorePath == null || keystorePath.isEmpty()) {
+            keystorePath = TEST_KEYSTORE_PATH;
+            keystorePassword = TEST_KEYSTORE_PASSWORD;
+        }
+        String password = keystorePassword != null ? keystorePassword : "";
+
+        Entry entry = ENTRIES.get(new CacheKey(keystorePath, passwordDigest(password)));
+        return entry != null ? entry.ring : null;
+    }
+
+    public static ViispCacheStats getStats() {
+        return new ViispCacheStats(HITS.sum(), MISSES.sum(), ENTRIES.size());
+    }
+
+    /** Drops all cached key pairs, so the next signing operation reloads them. */
+    public static void clear() {
+        ENTRIES.clear();
+    }
+
+    /**
+     * Loads the file system keystores whose file changed since they were loaded and swaps in their
+     * key pairs. Called by {@link ViispKeystoreWatcher}.
+     */
+    static void reloadChanged() {
+        for (Entry entry : ENTRIES.values()) {
+            entry.reloadIfChanged();
+        }
+    }
+
+    static String fingerprint(String keystorePath) {
+        if (keystorePath.startsWith("/")) {
+            // Classpath resources don't change while the extension is deployed
+            return "classpath";
+        }
+        try {
+            BasicFileAttributes attributes =
+                    Files.readAttributes(fileSystemPath(keystorePath), BasicFileAttributes.class);
+            // The file key tells a file swapped in by a rename or a symlink change apart
+            return attributes.lastModifiedTime().toMillis()
+                    + ":"
+                    + attributes.size()
+                    + ":"
+                    + attributes.fileKey();
+        } catch (IOException e) {
+            // Let the loader report the actual problem
+            return "unreadable";
+        }
+    }
+
+    private static Path fileSystemPath(String keystorePath) {
+        return Paths.get("/" + keystorePath);
+    }
+
+    static String passwordDigest(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder()
+                    .encodeToString(digest.digest(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static KeyRing load(String keystorePath, String keystorePassword, String fingerprint)
+            throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+
+        if (keystorePath.startsWith("/")) {
+            // Load from classpath
+            LOG.info("Loading the keystore from {}", keystorePath);
+            try (InputStream input =
+                    ViispKeyMaterialRegistry.class.getResourceAsStream(keystorePath)) {
+                if (input == null) {
+                    throw new IOException("Keystore " + keystorePath + " not found on classpath");
+                }
+                keyStore.load(input, keystorePassword.toCharArray());
+            }
+        } else {
+            // Load from file system
+            String keyStorePathFull = "/" + keystorePath;
+            LOG.info("Loading the keystore from {}", keyStorePathFull);
+            try (InputStream input =
+                    FileUtils.openInputStream(FileUtils.getFile(keyStorePathFull))) {
+                keyStore.load(input, keystorePassword.toCharArray());
+            }
+        }
+
+        Instant loadedAt = Instant.now();
+        List<ViispKeyMaterial> keys = new ArrayList<>();
+        for (Enumeration<String> e = keyStore.aliases(); e.hasMoreElements(); ) {
+            String alias = e.nextElement();
+            LOG.info("Checking keystore alias {}", alias);
+            if (keyStore.isKeyEntry(alias)) {
+                LOG.info("The alias {} has a key entry, loading it", alias);
+
+                PrivateKey privateKey =
+                        (PrivateKey) keyStore.getKey(alias, keystorePassword.toCharArray());
+                X509Certificate cert = (X509Certificate) keyStore.getCertificate(alias);
+                PublicKey publicKey = cert != null ? cert.getPublicKey() : null;
+
+                if (privateKey == null || publicKey == null) {
+                    LOG.warn("The alias {} has no certificate, skipping it", alias);
+                    continue;
+                }
+                LOG.info("The key pair of alias {} is loaded successfully", alias);
+                keys.add(new ViispKeyMaterial(alias, privateKey, publicKey, cert, loadedAt));
+            }
+        }
+
+        if (keys.isEmpty()) {
+            throw new RuntimeException("No valid key pair found in keystore");
+        }
+        return new KeyRing(List.copyOf(keys), fingerprint, ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Switch of the signing key of an identity provider to the key pair of another alias of its
+     * keystore, from the activation time on or at once if it is null.
+     */
+    public record Rotation(String nextKeyAlias, Instant activation) {
+
+        /** The rotation configured for the identity provider, null if there is none. */
+        public static Rotation fromConfig(ViispIdentityProviderConfig config) {
+            String alias = config.getNextKeyAlias();
+            return alias != null ? new Rotation(alias, config.getNextKeyActivation()) : null;
+        }
+
+        boolean isActive(Instant now) {
+            return activation == null || !now.isBefore(activation);
+        }
+    }
+
+    private record CacheKey(String path, String passwordDigest) {}
+
+    /**
+     * Key pairs of one version of a keystore, in keystore order, and the rotation aliases that were
+     * reported missing from it.
+     */
+    private record KeyRing(List<ViispKeyMaterial> keys, String fingerprint, Set<String> missing) {
+
+        /** The next key of the rotation once it is active, the first key otherwise. */
+        ViispKeyMaterial primary(Rotation rotation, Instant now) {
+            ViispKeyMaterial next = rotationKey(rotation);
+            return next != null && rotation.isActive(now) ? next : keys.get(0);
+        }
+
+        /** The next key of the rotation while it is not active yet, null otherwise. */
+        ViispKeyMaterial next(Rotation rotation, Instant now) {
+            ViispKeyMaterial next = rotationKey(rotation);
+            return next != null && next != keys.get(0) && !rotation.isActive(now) ? next : null;
+        }
+
+        private ViispKeyMaterial rotationKey(Rotation rotation) {
+            if (rotation == null) {
+                return null;
+            }
+            for (ViispKeyMaterial key : keys) {
+                if (key.getAlias().equals(rotation.nextKeyAlias())) {
+                    return key;
+                }
+            }
+            if (missing.add(rotation.nextKeyAlias())) {
+                LOG.warn(
+                        "The next VIISP key {} is not in the keystore, signing with {}",
+                        rotation.nextKeyAlias(),
+                        keys.get(0).getAlias());
+            }
+            return null;
+        }
+    }
+
+    private static final class Entry {
+
+        private final String keystorePath;
+        private final String keystorePassword;
+        private volatile KeyRing ring;
+
+        /** Fingerprint of the last file version that failed to load, used by the watcher only. */
+        private String failedFingerprint;
+
+        Entry(String keystorePath, String keystorePassword) {
+            this.keystorePath = keystorePath;
+            this.keystorePassword = keystorePassword;
+        }
+
+        ViispKeyMaterial get(Rotation rotation) {
+            KeyRing result = ring;
+            if (result != null) {
+                HITS.increment();
+            } else {
+                synchronized (this) {
+                    result = ring;
+                    if (result != null) {
+                        HITS.increment();
+                    } else {
+                        MISSES.increment();
+                        try {
+                            result =
+                                    load(keystorePath, keystorePassword, fingerprint(keystorePath));
+                        } catch (RuntimeException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            throw new RuntimeException("Failed to load VIISP keystore", e);
+                        }
+                        ring = result;
+                        if (!keystorePath.startsWith("/")) {
+                            ViispKeystoreWatcher.watch(fileSystemPath(keystorePath));
+                        }
+                    }
+                }
+            }
+            return result.primary(rotation, Instant.now());
+        }
+
+        void reloadIfChanged() {
+            KeyRing current = ring;
+            if (current == null || keystorePath.startsWith("/")) {
+                return;
+            }
+            String fingerprint = fingerprint(keystorePath);
+            if (fingerprint.equals(current.fingerprint())) {
+                return;
+            }
+            KeyRing loaded;
+            try {
+                loaded = load(keystorePath, keystorePassword, fingerprint);
+            } catch (Exception e) {
+                // Possibly caught in the middle of a write, retried on the next change or poll
+                if (!fingerprint.equals(failedFingerprint)) {
+                    LOG.warn(
+                            "Keeping the previous VIISP keys, keystore {} cannot be loaded: {}",
+                            keystorePath,
+                            e.toString());
+                }
+                failedFingerprint = fingerprint;
+                return;
+            }
+            failedFingerprint = null;
+            ring = loaded;
+            List<String> aliases = new ArrayList<>();
+            for (ViispKeyMaterial key : loaded.keys()) {
+                aliases.add(key.getAlias());
+            }
+            LOG.info("Reloaded the VIISP keystore {} with keys {}", keystorePath, aliases);
+        }
+    }
+}
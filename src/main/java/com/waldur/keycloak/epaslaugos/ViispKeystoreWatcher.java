@@ -0,0 +1,109 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the directories of the file system keystores of {@link ViispKeyMaterialRegistry} and
+ * truststores of {@link ViispResponseVerifier}, and has them reload the files that changed.
+ *
+ * <p>One daemon thread serves all keystores and truststores. It wakes up on any change in a watched
+ * directory, which also covers a keystore replaced by a rename or by a symlink swap as in
+ * Kubernetes secret volumes, and waits {@value #SETTLE_MILLIS} ms for the writer to finish before
+ * the fingerprints of the files are compared. It also wakes up every {@value #POLL_SECONDS}
+ * seconds, for file systems without change notification and keystores behind symlinks to other
+ * directories.
+ */
+public final class ViispKeystoreWatcher {
+
+    public static final long POLL_SECONDS = 30;
+    public static final long SETTLE_MILLIS = 500;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispKeystoreWatcher.class);
+
+    private static final Set<Path> DIRECTORIES = ConcurrentHashMap.newKeySet();
+
+    private static WatchService watchService;
+    private static Thread thread;
+
+    private ViispKeystoreWatcher() {}
+
+    /** Watches the directory of the keystore or truststore file, starting the thread if needed. */
+    static synchronized void watch(Path keystore) {
+        Path directory = keystore.toAbsolutePath().getParent();
+        if (directory == null || !DIRECTORIES.add(directory)) {
+            return;
+        }
+        if (thread == null) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                LOG.warn(
+                        "No file change notification, checking VIISP keystores every {} seconds",
+                        POLL_SECONDS);
+            }
+            thread = new Thread(ViispKeystoreWatcher::run, "viisp-keystore-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if (watchService != null) {
+            try {
+                directory.register(
+                        watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                LOG.info("Watching {} for VIISP keystore changes", directory);
+            } catch (IOException e) {
+                LOG.warn(
+                        "Cannot watch {}, checking its VIISP keystore every {} seconds: {}",
+                        directory,
+                        POLL_SECONDS,
+                        e.toString());
+            }
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                if (watchService == null) {
+                    TimeUnit.SECONDS.sleep(POLL_SECONDS);
+                } else if (drain(watchService.poll(POLL_SECONDS, TimeUnit.SECONDS))) {
+                    // Let the writer finish and take the events of the rest of the write
+                    TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+                    while (drain(watchService.poll())) {}
+                }
+                ViispKeyMaterialRegistry.reloadChanged();
+                ViispResponseVerifier.reloadChanged();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                LOG.warn("VIISP keystore check failed", e);
+            }
+        }
+    }
+
+    /** Discards the events of the key and re-arms it; returns false if there was no key. */
+    private static boolean drain(WatchKey key) {
+        if (key == null) {
+            return false;
+        }
+        key.pollEvents();
+        if (!key.reset()) {
+            // The directory is gone, its keystores are still checked by the periodic poll
+            DIRECTORIES.remove((Path) key.watchable());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies of the most recent calls to one VIISP auth service URL.
+ *
+ * <p>Samples are kept in a fixed size ring buffer, percentiles are computed on demand from a copy
+ * of it. Used to derive the delay after which a ticket request is hedged.
+ */
+public final class ViispLatencyTracker {
+
+    public static final int WINDOW_SIZE = 128;
+    public static final int MIN_SAMPLES = 20;
+
+    private static final ConcurrentMap<String, ViispLatencyTracker> TRACKERS =
+            new ConcurrentHashMap<>();
+
+    private final AtomicLongArray samples = new AtomicLongArray(WINDOW_SIZE);
+    private final AtomicInteger position = new AtomicInteger();
+
+    ViispLatencyTracker() {}
+
+    public static ViispLatencyTracker forUrl(String url) {
+        return TRACKERS.computeIfAbsent(url, key -> new ViispLatencyTracker());
+    }
+
+    /** Returns the tracker of the URL, or null if no call was made to it yet. */
+    public static ViispLatencyTracker find(String url) {
+        return TRACKERS.get(url);
+    }
+
+    public void record(long durationNanos) {
+        int slot = Math.floorMod(position.getAndIncrement(), WINDOW_SIZE);
+        samples.set(slot, Math.max(durationNanos, 1));
+    }
+
+    /**
+     * Returns the given percentile (1-100) of the recorded latencies, or null if fewer than {@link
+     * #MIN_SAMPLES} calls were recorded so far.
+     */
+    public Duration percentile(int percentile) {
+        long[] sorted = new long[WINDOW_SIZE];
+        int count = 0;
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            long sample = samples.get(i);
+            if (sample > 0) {
+                sorted[count++] = sample;
+            }
+        }
+        if (count < MIN_SAMPLES) {
+            return null;
+        }
+
+        Arrays.sort(sorted, 0, count);
+        int rank = (int) Math.ceil(Math.min(Math.max(percentile, 1), 100) / 100.0 * count);
+        return Duration.ofNanos(sorted[rank - 1]);
+    }
+}
@@ -0,0 +1,63 @@
+package com.waldur.keycloak.epaslaugos;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/** Keeps the most recent finished spans in memory, dropping the oldest ones. */
+public final class ViispMemorySpanExporter implements SpanExporter {
+
+    private final int capacity;
+    private final ArrayDeque<SpanData> spans;
+
+    public ViispMemorySpanExporter(int capacity) {
+        this.capacity = capacity;
+        this.spans = new ArrayDeque<>(capacity);
+    }
+
+    @Override
+    public synchronized CompletableResultCode export(Collection<SpanData> finished) {
+        for (SpanData span : finished) {
+            if (spans.size() == capacity) {
+                spans.removeFirst();
+            }
+            spans.addLast(span);
+        }
+        return CompletableResultCode.ofSuccess();
+    }
+
+    /** Returns the finished spans, oldest first. */
+    public synchronized List<SpanData> getFinishedSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    /** Returns the finished spans of one trace, oldest first. */
+    public synchronized List<SpanData> getFinishedSpans(String traceId) {
+        List<SpanData> trace = new ArrayList<>();
+        for (SpanData span : spans) {
+            if (span.getTraceId().equals(traceId)) {
+                trace.add(span);
+            }
+        }
+        return trace;
+    }
+
+    public synchronized void reset() {
+        spans.clear();
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        reset();
+        return CompletableResultCode.ofSuccess();
+    }
+}
@@ -0,0 +1,186 @@
+package com.waldur.keycloak.epaslaugos;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters of the VIISP logins of one identity provider in one realm.
+ *
+ * <p>Meters are registered in {@link Metrics#globalRegistry}, which Keycloak's Quarkus runtime
+ * exports on its metrics endpoint when metrics are enabled. Every phase is a timer {@value
+ * #PHASE_TIMER} tagged with realm, idp, phase and outcome; finished logins are counted by {@value
+ * #LOGIN_COUNTER}, also per auth_provider. Shadow parses are timed by {@value #SHADOW_PARSE_TIMER},
+ * per parser and role, and their mismatching fields counted by {@value #SHADOW_MISMATCH_COUNTER}.
+ * Timers publish percentile histograms only if the {@link ViispServerOptions} enable them. Meters
+ * are looked up in lock-free maps and recording into them doesn't lock either, so the hot path only
+ * pays for a map lookup and an atomic update.
+ */
+public final class ViispMetrics {
+
+    public static final String PHASE_TIMER = "viisp.login.phase";
+    public static final String LOGIN_COUNTER = "viisp.login";
+    public static final String SHADOW_PARSE_TIMER = "viisp.parse.shadow";
+    public static final String SHADOW_MISMATCH_COUNTER = "viisp.parse.shadow.mismatch";
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_FAILURE = "failure";
+
+    /** The call was not made because of the circuit breaker or the bulkhead. */
+    public static final String OUTCOME_REJECTED = "rejected";
+
+    /** The shadow parser returned the same user data as the primary one. */
+    public static final String OUTCOME_MATCH = "match";
+
+    public static final String OUTCOME_MISMATCH = "mismatch";
+
+    public static final String ROLE_PRIMARY = "primary";
+    public static final String ROLE_SHADOW = "shadow";
+
+    public static final String UNKNOWN = "unknown";
+
+    private static final ConcurrentMap<ProviderKey, ViispMetrics> PROVIDERS =
+            new ConcurrentHashMap<>();
+
+    private static final ViispMetrics NOOP =
+            new ViispMetrics(new CompositeMeterRegistry(), UNKNOWN, UNKNOWN);
+
+    private final MeterRegistry registry;
+    private final String realm;
+    private final String alias;
+    private final ConcurrentMap<TimerKey, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CounterKey, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ShadowTimerKey, Timer> shadowTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ShadowCounterKey, Counter> shadowCounters =
+            new ConcurrentHashMap<>();
+
+    private ViispMetrics(MeterRegistry registry, String realm, String alias) {
+        this.registry = registry;
+        this.realm = realm;
+        this.alias = alias;
+    }
+
+    public static ViispMetrics forProvider(String realm, String alias) {
+        return PROVIDERS.computeIfAbsent(
+                new ProviderKey(tagValue(realm), tagValue(alias)),
+                key -> new ViispMetrics(Metrics.globalRegistry, key.realm(), key.alias()));
+    }
+
+    /** Meters that record nothing, for VIISP calls that are not part of a login. */
+    public static ViispMetrics noop() {
+        return NOOP;
+    }
+
+    /** Returns the current time to be passed to {@link #record} when the phase ends. */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public void record(ViispPhase phase, String outcome, long startNanos) {
+        recordDuration(phase, outcome, System.nanoTime() - startNanos);
+    }
+
+    public void recordDuration(ViispPhase phase, String outcome, long durationNanos) {
+        timers.computeIfAbsent(new TimerKey(phase, outcome), this::newTimer)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Counts a finished login, successful or not. */
+    public void login(String outcome, String authProvider) {
+        counters.computeIfAbsent(
+                        new CounterKey(outcome, authProviderTag(authProvider)), this::newCounter)
+                .increment();
+    }
+
+    /**
+     * Records how long one of the parsers of a shadow parse took. Both parsers of a sampled
+     * response are recorded with the same outcome, so their timers compare the same responses.
+     */
+    public void shadowParse(
+            ViispResponseParser parser, String role, String outcome, long durationNanos) {
+        shadowTimers
+                .computeIfAbsent(new ShadowTimerKey(parser, role, outcome), this::newShadowTimer)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Counts a user data field on which the shadow parser disagreed with the primary one. */
+    public void shadowMismatch(ViispResponseParser parser, String field) {
+        shadowCounters
+                .computeIfAbsent(new ShadowCounterKey(parser, field), this::newShadowCounter)
+                .increment();
+    }
+
+    private Timer newTimer(TimerKey key) {
+        return Timer.builder(PHASE_TIMER)
+                .description("Duration of the phases of VIISP logins")
+                .tag("realm", realm)
+                .tag("idp", alias)
+                .tag("phase", key.phase().value())
+                .tag("outcome", key.outcome())
+                .publishPercentileHistogram(ViispServerOptions.get().isMetricsHistogramsEnabled())
+                .register(registry);
+    }
+
+    private Counter newCounter(CounterKey key) {
+        return Counter.builder(LOGIN_COUNTER)
+                .description("Finished VIISP logins")
+                .tag("realm", realm)
+                .tag("idp", alias)
+                .tag("outcome", key.outcome())
+                .tag("auth_provider", key.authProvider())
+                .register(registry);
+    }
+
+    private Timer newShadowTimer(ShadowTimerKey key) {
+        return Timer.builder(SHADOW_PARSE_TIMER)
+                .description("Duration of the user data parses of sampled shadow parses")
+                .tag("realm", realm)
+                .tag("idp", alias)
+                .tag("parser", key.parser().value())
+                .tag("role", key.role())
+                .tag("outcome", key.outcome())
+                .publishPercentileHistogram(ViispServerOptions.get().isMetricsHistogramsEnabled())
+                .register(registry);
+    }
+
+    private Counter newShadowCounter(ShadowCounterKey key) {
+        return Counter.builder(SHADOW_MISMATCH_COUNTER)
+                .description("User data fields the shadow parser disagreed on")
+                .tag("realm", realm)
+                .tag("idp", alias)
+                .tag("parser", key.parser().value())
+                .tag("field", key.field())
+                .register(registry);
+    }
+
+    private static String authProviderTag(String authProvider) {
+        if (authProvider == null || authProvider.isEmpty()) {
+            return UNKNOWN;
+        }
+        try {
+            // Keep the tag values bounded to the known providers
+            return ViispAuthenticationProvider.fromValue(authProvider).value();
+        } catch (IllegalArgumentException e) {
+            return "other";
+        }
+    }
+
+    private static String tagValue(String value) {
+        return value != null && !value.isEmpty() ? value : UNKNOWN;
+    }
+
+    private record ProviderKey(String realm, String alias) {}
+
+    private record TimerKey(ViispPhase phase, String outcome) {}
+
+    private record CounterKey(String outcome, String authProvider) {}
+
+    private record ShadowTimerKey(ViispResponseParser parser, String role, String outcome) {}
+
+    private record ShadowCounterKey(ViispResponseParser parser, String field) {}
+}
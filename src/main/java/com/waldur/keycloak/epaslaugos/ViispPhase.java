@@ -0,0 +1,37 @@
+package com.waldur.keycloak.epaslaugos;
+
+/**
+ * Phases of a VIISP login. REQUEST_BUILD names the stage that builds a complete signed request on
+ * the crypto executor and is not timed itself, as it consists of the timed MARSHAL and SIGN;
+ * RESPONSE_PARSE includes RESPONSE_VERIFY of the response signature.
+ */
+public enum ViispPhase {
+    REQUEST_BUILD("request_build"),
+    MARSHAL("marshal"),
+    SIGN("sign"),
+    TICKET_HTTP("ticket_http"),
+    AUTH_DATA_HTTP("auth_data_http"),
+    RESPONSE_PARSE("response_parse"),
+    RESPONSE_VERIFY("response_verify"),
+    BROKERED_IDENTITY("brokered_identity"),
+    UPDATE_BROKERED_USER("update_brokered_user");
+
+    private final String value;
+
+    ViispPhase(String v) {
+        value = v;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public static ViispPhase fromValue(String v) {
+        for (ViispPhase c : ViispPhase.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+}
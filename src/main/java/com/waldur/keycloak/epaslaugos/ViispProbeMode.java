@@ -0,0 +1,29 @@
+package com.waldur.keycloak.epaslaugos;
+
+/** How the background prober checks a VIISP auth service URL. */
+public enum ViispProbeMode {
+    NONE("none"),
+    /** TCP connect, and TLS handshake for https URLs. */
+    CONNECT("connect"),
+    /** Signed authentication ticket request, the first call of every login. */
+    TICKET("ticket");
+
+    private final String value;
+
+    ViispProbeMode(String v) {
+        value = v;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public static ViispProbeMode fromValue(String v) {
+        for (ViispProbeMode c : ViispProbeMode.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+}
@@ -0,0 +1,44 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The cache entry each identity provider currently uses, to evict entries of a keystore or
+ * truststore once no provider is configured with it any more, e.g. after its path or password was
+ * changed in the admin console.
+ *
+ * @param <K> key of the cache entries
+ */
+public final class ViispProviderUsage<K> {
+
+    private final ConcurrentMap<String, K> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Records that the identity provider uses the entry of the key, or no entry if the key is null.
+     * Returns the key of the entry it used before if no provider uses that one any more, null
+     * otherwise.
+     */
+    public K use(ViispIdentityProviderConfig config, K key) {
+        return use(config, "", key);
+    }
+
+    /** Like {@link #use(ViispIdentityProviderConfig, Object)}, with one entry per scope. */
+    public K use(ViispIdentityProviderConfig config, String scope, K key) {
+        String provider =
+                config.getInternalId() != null ? config.getInternalId() : config.getAlias();
+        if (provider == null) {
+            return null;
+        }
+        String user = provider + " " + scope;
+        if (Objects.equals(key, keys.get(user))) {
+            return null;
+        }
+        K previous = key != null ? keys.put(user, key) : keys.remove(user);
+        if (previous == null || previous.equals(key) || keys.containsValue(previous)) {
+            return null;
+        }
+        return previous;
+    }
+}
@@ -0,0 +1,190 @@
+package com.waldur.keycloak.epaslaugos;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import javax.xml.XMLConstants;
+import javax.xml.transform.TransformerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Passes SOAP messages on to another transport and appends every exchange to a file, one JSON
+ * object per line, for {@link ViispReplayTransport}.
+ *
+ * <p>Requests and responses are redacted before they are written: every text node, CDATA section
+ * and attribute value of the parsed message is masked, digits by 1 and letters by x, except the
+ * text of the few elements known to hold only protocol data (service ID, names of providers and
+ * attributes, fault codes) and the namespace, ID and algorithm attributes. Personal codes, names,
+ * contact data, tickets, custom data, certificates and signatures never reach the file, while the
+ * sizes and the structure of the messages stay those of the real traffic.
+ */
+public final class ViispRecordingTransport implements ViispTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispRecordingTransport.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Elements whose own text is written as is. */
+    private static final Set<String> PROTOCOL_ELEMENTS =
+            Set.of(
+                    "pid",
+                    "serviceTarget",
+                    "includeSourceData",
+                    "authenticationProvider",
+                    "authenticationAttribute",
+                    "userInformation",
+                    "attribute",
+                    "information",
+                    "type",
+                    "faultcode");
+
+    /** Attributes whose value is written as is, besides namespace declarations. */
+    private static final Set<String> PROTOCOL_ATTRIBUTES = Set.of("id", "Algorithm", "URI");
+
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    private final ViispTransport delegate;
+    private final Path path;
+
+    public ViispRecordingTransport(ViispTransport delegate, Path path) {
+        this.delegate = delegate;
+        this.path = path;
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse<String>> postAsync(
+            String url, String soapMessage, ViispPhase phase) {
+        long start = System.nanoTime();
+        return delegate.postAsync(url, soapMessage, phase)
+                .whenComplete(
+                        (response, error) -> {
+                            long duration = System.nanoTime() - start;
+                            write(url, soapMessage, phase, response, error, duration);
+                        });
+    }
+
+    private void write(
+            String url,
+            String soapMessage,
+            ViispPhase phase,
+            HttpResponse<String> response,
+            Throwable error,
+            long durationNanos) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("recordedAt", Instant.now().toString());
+        json.put("phase", phase.value());
+        json.put("url", url);
+        json.put("durationMs", durationNanos / 1e6);
+        json.put("request", redact(soapMessage));
+        if (response != null) {
+            json.put("statusCode", response.statusCode());
+            json.put("response", redact(response.body()));
+        } else {
+            Throwable cause = ViispRetryPolicy.unwrap(error);
+            json.put("error", cause.getClass().getSimpleName() + ": " + cause.getMessage());
+        }
+
+        // Shared by all provider instances recording to the same file
+        synchronized (ViispRecordingTransport.class) {
+            try (BufferedWriter writer =
+                    Files.newBufferedWriter(
+                            path,
+                            StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.APPEND)) {
+                writer.write(MAPPER.writeValueAsString(json));
+                writer.newLine();
+            } catch (JsonProcessingException e) {
+                LOG.warn("Failed to serialize a VIISP exchange: {}", e.getMessage());
+            } catch (IOException e) {
+                LOG.warn("Failed to write a VIISP exchange to {}: {}", path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Masks all text and attribute values of the message except the protocol ones. Content that is
+     * not well-formed XML is masked as a whole.
+     */
+    public static String redact(String xml) {
+        if (xml == null) {
+            return null;
+        }
+        Document document;
+        try {
+            document = ViispXmlSupport.parse(xml);
+        } catch (IOException | SAXException e) {
+            return mask(xml);
+        }
+        redact(document.getDocumentElement());
+        try {
+            String redacted = ViispXmlSupport.serialize(document);
+            return xml.startsWith("<?xml") ? XML_DECLARATION + redacted : redacted;
+        } catch (TransformerException e) {
+            return mask(xml);
+        }
+    }
+
+    private static void redact(Element element) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())
+                    && !PROTOCOL_ATTRIBUTES.contains(attribute.getLocalName())) {
+                attribute.setValue(mask(attribute.getValue()));
+            }
+        }
+        boolean protocol = PROTOCOL_ELEMENTS.contains(element.getLocalName());
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    redact((Element) child);
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    if (!protocol) {
+                        child.setNodeValue(mask(child.getNodeValue()));
+                    }
+                    break;
+                case Node.COMMENT_NODE:
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    child.setNodeValue(mask(child.getNodeValue()));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static String mask(String text) {
+        StringBuilder masked = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isDigit(c)) {
+                masked.append('1');
+            } else if (Character.isLetter(c)) {
+                masked.append('x');
+            } else {
+                masked.append(c);
+            }
+        }
+        return masked.toString();
+    }
+}
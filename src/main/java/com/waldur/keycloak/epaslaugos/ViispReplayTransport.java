@@ -0,0 +1,133 @@
+package com.waldur.keycloak.epaslaugos;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the exchanges written by {@link ViispRecordingTransport} back, without a network.
+ *
+ * <p>Ticket requests get the recorded ticket responses and authentication data requests the
+ * recorded data responses, each in recorded order and starting over at the end. Recorded failures
+ * fail the exchange with an {@link IOException}. With replayed latency a response completes after
+ * its recorded duration, on the common pool's delayed executor.
+ */
+public final class ViispReplayTransport implements ViispTransport {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Replay transports by file, with the modification time of the file they were read from. */
+    private static final ConcurrentMap<FileKey, Loaded> TRANSPORTS = new ConcurrentHashMap<>();
+
+    private final Map<ViispPhase, List<Exchange>> exchanges;
+    private final Map<ViispPhase, AtomicInteger> positions = new EnumMap<>(ViispPhase.class);
+    private final boolean replayLatency;
+
+    public ViispReplayTransport(List<Exchange> recorded, boolean replayLatency) {
+        this.exchanges = new EnumMap<>(ViispPhase.class);
+        for (Exchange exchange : recorded) {
+            exchanges.computeIfAbsent(exchange.phase(), phase -> new ArrayList<>()).add(exchange);
+        }
+        for (ViispPhase phase : exchanges.keySet()) {
+            positions.put(phase, new AtomicInteger());
+        }
+        this.replayLatency = replayLatency;
+    }
+
+    /** Returns the shared replay transport of the file, reading it again if it changed. */
+    public static ViispReplayTransport forFile(Path path, boolean replayLatency) {
+        long modifiedMillis;
+        try {
+            modifiedMillis = Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the VIISP exchanges of " + path, e);
+        }
+        return TRANSPORTS
+                .compute(
+                        new FileKey(path.toAbsolutePath().normalize(), replayLatency),
+                        (key, loaded) ->
+                                loaded != null && loaded.modifiedMillis() == modifiedMillis
+                                        ? loaded
+                                        : new Loaded(
+                                                modifiedMillis,
+                                                new ViispReplayTransport(
+                                                        read(path), replayLatency)))
+                .transport();
+    }
+
+    /** Reads the exchanges of a file written by {@link ViispRecordingTransport}. */
+    public static List<Exchange> read(Path path) {
+        List<Exchange> exchanges = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JsonNode json = MAPPER.readTree(line);
+                exchanges.add(
+                        new Exchange(
+                                ViispPhase.fromValue(json.path("phase").asText()),
+                                json.path("statusCode").asInt(),
+                                json.hasNonNull("response") ? json.get("response").asText() : null,
+                                json.hasNonNull("error") ? json.get("error").asText() : null,
+                                (long) (json.path("durationMs").asDouble() * 1_000_000)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the VIISP exchanges of " + path, e);
+        }
+        return exchanges;
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse<String>> postAsync(
+            String url, String soapMessage, ViispPhase phase) {
+        List<Exchange> recorded = exchanges.get(phase);
+        if (recorded == null) {
+            return CompletableFuture.failedFuture(
+                    new IOException("No recorded VIISP exchange of phase " + phase.value()));
+        }
+        int position = positions.get(phase).getAndIncrement();
+        Exchange exchange = recorded.get(Math.floorMod(position, recorded.size()));
+
+        CompletableFuture<HttpResponse<String>> response = new CompletableFuture<>();
+        Runnable complete =
+                () -> {
+                    if (exchange.error() != null) {
+                        response.completeExceptionally(new IOException(exchange.error()));
+                    } else {
+                        response.complete(
+                                new ViispTransportResponse(
+                                        url, exchange.statusCode(), exchange.response()));
+                    }
+                };
+        if (replayLatency && exchange.durationNanos() > 0) {
+            CompletableFuture.delayedExecutor(exchange.durationNanos(), TimeUnit.NANOSECONDS)
+                    .execute(complete);
+        } else {
+            complete.run();
+        }
+        return response;
+    }
+
+    private record FileKey(Path path, boolean replayLatency) {}
+
+    private record Loaded(long modifiedMillis, ViispReplayTransport transport) {}
+
+    /** A recorded exchange; the response is null if the exchange failed with the error. */
+    public record Exchange(
+            ViispPhase phase, int statusCode, String response, String error, long durationNanos) {}
+}
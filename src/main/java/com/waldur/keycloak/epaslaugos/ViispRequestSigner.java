@@ -0,0 +1,26 @@
+package com.waldur.keycloak.epaslaugos;
+
+/** Implementation used to sign authenticationRequest messages. */
+public enum ViispRequestSigner {
+    TEMPLATE("template"),
+    GENERIC("generic");
+
+    private final String value;
+
+    ViispRequestSigner(String v) {
+        value = v;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public static ViispRequestSigner fromValue(String v) {
+        for (ViispRequestSigner c : ViispRequestSigner.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+}
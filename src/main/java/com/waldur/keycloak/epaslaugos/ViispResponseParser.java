@@ -0,0 +1,26 @@
+package com.waldur.keycloak.epaslaugos;
+
+/** Implementation used to extract user data from authenticationDataResponse messages. */
+public enum ViispResponseParser {
+    STREAMING("streaming"),
+    DOM("dom");
+
+    private final String value;
+
+    ViispResponseParser(String v) {
+        value = v;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public static ViispResponseParser fromValue(String v) {
+        for (ViispResponseParser c : ViispResponseParser.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+}
@@ -0,0 +1,30 @@
+package com.waldur.keycloak.epaslaugos;
+
+/** How the XML signatures of VIISP responses are verified. */
+public enum ViispResponseVerification {
+    /** Responses are not verified. */
+    OFF("off"),
+    /** Responses are verified and failures are logged and counted, but the response is used. */
+    REPORT("report"),
+    /** Responses that are not signed by a trusted key are rejected. */
+    ENFORCE("enforce");
+
+    private final String value;
+
+    ViispResponseVerification(String v) {
+        value = v;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public static ViispResponseVerification fromValue(String v) {
+        for (ViispResponseVerification c : ViispResponseVerification.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+}
@@ -0,0 +1,477 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyException;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.crypto.AlgorithmMethod;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.KeySelectorException;
+import javax.xml.crypto.KeySelectorResult;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyValue;
+import javax.xml.crypto.dsig.keyinfo.X509Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Verifies the XML signatures of VIISP responses against the keys of a truststore.
+ *
+ * <p>Verifiers are cached per (truststore path, password) like the key pairs of {@link
+ * ViispKeyMaterialRegistry}, so the certificates are decoded once and the signature factory and
+ * {@link KeySelector} are shared by all providers. Truststores on the file system are watched by
+ * {@link ViispKeystoreWatcher} and reloaded in the background when they change, so responses are
+ * verified without looking at the file, and a truststore no provider is configured with any more is
+ * dropped. Only the validation context, which is bound to the document, is created per response.
+ * The signature is verified on the DOM the ticket or user data is then read from, and {@link
+ * #verify} returns the signed element to read it from, so no second document is built and nothing
+ * outside the signed element is used.
+ *
+ * <p>Only the shape of VIISP signatures is accepted: one enveloped signature with one reference, to
+ * its parent element by ID or to the whole document, and canonicalization transforms. VIISP signs
+ * with RSA-SHA1, which the secure validation mode of the JDK refuses, so that mode is only used for
+ * signatures without SHA-1 and these checks take the place of its limits otherwise.
+ */
+public final class ViispResponseVerifier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispResponseVerifier.class);
+
+    private static final XMLSignatureFactory SIGNATURE_FACTORY =
+            XMLSignatureFactory.getInstance("DOM");
+
+    private static final Set<String> TRANSFORMS =
+            Set.of(
+                    Transform.ENVELOPED,
+                    CanonicalizationMethod.EXCLUSIVE,
+                    CanonicalizationMethod.EXCLUSIVE_WITH_COMMENTS,
+                    CanonicalizationMethod.INCLUSIVE,
+                    CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS);
+
+    private static final ConcurrentMap<CacheKey, Entry> VERIFIERS = new ConcurrentHashMap<>();
+    private static final ViispProviderUsage<CacheKey> USAGE = new ViispProviderUsage<>();
+
+    private final String truststorePath;
+    private final List<PublicKey> trustedKeys;
+    private final String fingerprint;
+    private final KeySelector keySelector = new TrustedKeySelector();
+
+    private ViispResponseVerifier(
+            String truststorePath, List<PublicKey> trustedKeys, String fingerprint) {
+        this.truststorePath = truststorePath;
+        this.trustedKeys = trustedKeys;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Returns the verifier with the keys of the truststore, which is loaded on first use.
+     *
+     * @throws IllegalStateException if no truststore is configured
+     * @throws RuntimeException if the truststore cannot be loaded or holds no certificates
+     */
+    public static ViispResponseVerifier get(String truststorePath, String truststorePassword) {
+        if (truststorePath == null || truststorePath.isEmpty()) {
+            throw new IllegalStateException(
+                    "VIISP response verification is enabled without a response truststore");
+        }
+        String password = truststorePassword != null ? truststorePassword : "";
+        return VERIFIERS
+                .computeIfAbsent(
+                        cacheKey(truststorePath, password),
+                        k -> new Entry(truststorePath, password))
+                .get();
+    }
+
+    /**
+     * Returns the verifier of the configured truststore, or null if responses are not verified, and
+     * drops the truststore the provider used before if no other provider uses that one.
+     */
+    public static ViispResponseVerifier forConfig(ViispIdentityProviderConfig config) {
+        String path = config.getResponseTruststorePath();
+        String password = config.getResponseTruststorePassword();
+        CacheKey key =
+                config.getResponseVerification() == ViispResponseVerification.OFF
+                                || path == null
+                                || path.isEmpty()
+                        ? null
+                        : cacheKey(path, password != null ? password : "");
+        CacheKey unused = USAGE.use(config, key);
+        if (unused != null && VERIFIERS.remove(unused) != null) {
+            LOG.info(
+                    "Dropped the VIISP response truststore {}, no provider uses it", unused.path());
+        }
+        if (config.getResponseVerification() == ViispResponseVerification.OFF) {
+            return null;
+        }
+        return get(path, password);
+    }
+
+    /** Returns the loaded verifier of the truststore, or null if it is not loaded. */
+    static ViispResponseVerifier find(String truststorePath, String truststorePassword) {
+        Entry entry =
+                VERIFIERS.get(
+                        cacheKey(
+                                truststorePath,
+                                truststorePassword != null ? truststorePassword : ""));
+        return entry != null ? entry.verifier : null;
+    }
+
+    /**
+     * Loads the file system truststores that changed since they were loaded and swaps in their
+     * keys. Called by {@link ViispKeystoreWatcher}.
+     */
+    static void reloadChanged() {
+        for (Entry entry : VERIFIERS.values()) {
+            entry.reloadIfChanged();
+        }
+    }
+
+    private static CacheKey cacheKey(String truststorePath, String password) {
+        return new CacheKey(truststorePath, ViispKeyMaterialRegistry.passwordDigest(password));
+    }
+
+    public List<PublicKey> getTrustedKeys() {
+        return trustedKeys;
+    }
+
+    /**
+     * Verifies the signature of a response and returns the element it signs.
+     *
+     * @throws XMLSignatureException if the response is not signed by a trusted key, or its
+     *     signature does not have the shape of VIISP signatures
+     */
+    public Element verify(Document document) throws XMLSignatureException {
+        NodeList signatures = document.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+        if (signatures.getLength() != 1) {
+            throw new XMLSignatureException(
+                    "Expected one signature in the response, found " + signatures.getLength());
+        }
+        Element signatureElement = (Element) signatures.item(0);
+        Node parent = signatureElement.getParentNode();
+        if (!(parent instanceof Element signed)) {
+            throw new XMLSignatureException("Response signature is not enveloped");
+        }
+        if (signed.hasAttribute("id")) {
+            signed.setIdAttribute("id", true);
+        }
+
+        DOMValidateContext context = context(keySelector, signatureElement);
+        XMLSignature signature = unmarshal(context);
+        Element covered = coveredElement(signature, signed, document);
+        if (signature.validate(context)) {
+            return covered;
+        }
+        // Without key info the selector picks the first trusted key, try the others
+        if (signature.getKeyInfo() == null && trustedKeys.size() > 1) {
+            for (PublicKey key : trustedKeys) {
+                if (key == signature.getKeySelectorResult().getKey()) {
+                    continue;
+                }
+                DOMValidateContext retry =
+                        context(KeySelector.singletonKeySelector(key), signatureElement);
+                if (unmarshal(retry).validate(retry)) {
+                    return covered;
+                }
+            }
+        }
+        if (!signature.getSignatureValue().validate(context)) {
+            throw new XMLSignatureException(
+                    "Response signature does not verify with the keys of " + truststorePath);
+        }
+        throw new XMLSignatureException("Response digest does not match, it was modified");
+    }
+
+    private static DOMValidateContext context(KeySelector selector, Element signatureElement) {
+        DOMValidateContext context = new DOMValidateContext(selector, signatureElement);
+        context.setProperty("org.jcp.xml.dsig.secureValidation", !usesSha1(signatureElement));
+        return context;
+    }
+
+    private static XMLSignature unmarshal(DOMValidateContext context) throws XMLSignatureException {
+        try {
+            return SIGNATURE_FACTORY.unmarshalXMLSignature(context);
+        } catch (MarshalException e) {
+            throw new XMLSignatureException("Response signature cannot be read", e);
+        }
+    }
+
+    /** Checks the shape of the signature and returns the element whose content it covers. */
+    private static Element coveredElement(XMLSignature signature, Element signed, Document document)
+            throws XMLSignatureException {
+        SignedInfo signedInfo = signature.getSignedInfo();
+        if (!TRANSFORMS.contains(signedInfo.getCanonicalizationMethod().getAlgorithm())) {
+            throw new XMLSignatureException(
+                    "Unexpected canonicalization "
+                            + signedInfo.getCanonicalizationMethod().getAlgorithm());
+        }
+        if (signedInfo.getReferences().size() != 1) {
+            throw new XMLSignatureException(
+                    "Expected one signature reference, found " + signedInfo.getReferences().size());
+        }
+        Reference reference = (Reference) signedInfo.getReferences().get(0);
+        for (Object transform : reference.getTransforms()) {
+            String algorithm = ((Transform) transform).getAlgorithm();
+            if (!TRANSFORMS.contains(algorithm)) {
+                throw new XMLSignatureException("Unexpected signature transform " + algorithm);
+            }
+        }
+        String uri = reference.getURI();
+        if ("".equals(uri)) {
+            return document.getDocumentElement();
+        }
+        if (uri != null
+                && signed.hasAttribute("id")
+                && uri.equals("#" + signed.getAttribute("id"))) {
+            return signed;
+        }
+        throw new XMLSignatureException("Response signature does not reference its parent element");
+    }
+
+    private static boolean usesSha1(Element signatureElement) {
+        return usesAlgorithm(
+                        signatureElement, "SignatureMethod", ViispSignatureAlgorithm.RSA_SHA1.uri())
+                || usesAlgorithm(signatureElement, "DigestMethod", ViispDigestAlgorithm.SHA1.uri());
+    }
+
+    private static boolean usesAlgorithm(
+            Element signatureElement, String localName, String algorithm) {
+        NodeList methods = signatureElement.getElementsByTagNameNS(XMLSignature.XMLNS, localName);
+        for (int i = 0; i < methods.getLength(); i++) {
+            if (algorithm.equals(((Element) methods.item(i)).getAttribute("Algorithm"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PublicKey trusted(PublicKey key) {
+        for (PublicKey trustedKey : trustedKeys) {
+            if (Arrays.equals(trustedKey.getEncoded(), key.getEncoded())) {
+                return trustedKey;
+            }
+        }
+        return null;
+    }
+
+    private static List<PublicKey> load(String truststorePath, String password) throws Exception {
+        byte[] content = read(truststorePath);
+        List<X509Certificate> certificates = new ArrayList<>();
+        try {
+            Collection<? extends Certificate> decoded =
+                    CertificateFactory.getInstance("X.509")
+                            .generateCertificates(new ByteArrayInputStream(content));
+            for (Certificate certificate : decoded) {
+                certificates.add((X509Certificate) certificate);
+            }
+        } catch (CertificateException e) {
+            // Not a certificate file, read it as a keystore below
+        }
+        if (certificates.isEmpty()) {
+            // Also reads PKCS12 keystores, see keystore.type.compat
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(
+                    new ByteArrayInputStream(content),
+                    password.isEmpty() ? null : password.toCharArray());
+            for (Enumeration<String> e = keyStore.aliases(); e.hasMoreElements(); ) {
+                if (keyStore.getCertificate(e.nextElement())
+                        instanceof X509Certificate certificate) {
+                    certificates.add(certificate);
+                }
+            }
+        }
+        if (certificates.isEmpty()) {
+            throw new RuntimeException("No certificates found in " + truststorePath);
+        }
+
+        List<PublicKey> keys = new ArrayList<>();
+        Date now = new Date();
+        for (X509Certificate certificate : certificates) {
+            if (certificate.getNotAfter().before(now)) {
+                LOG.warn(
+                        "Trusting the key of VIISP certificate {}, which expired on {}",
+                        certificate.getSubjectX500Principal(),
+                        certificate.getNotAfter().toInstant());
+            } else {
+                LOG.info(
+                        "Trusting the key of VIISP certificate {}, valid until {}",
+                        certificate.getSubjectX500Principal(),
+                        certificate.getNotAfter().toInstant());
+            }
+            keys.add(certificate.getPublicKey());
+        }
+        return Collections.unmodifiableList(keys);
+    }
+
+    private static byte[] read(String truststorePath) throws IOException {
+        LOG.info("Loading the VIISP response truststore from {}", truststorePath);
+        if (truststorePath.startsWith("/")) {
+            // Load from classpath, like the keystore
+            try (InputStream input =
+                    ViispResponseVerifier.class.getResourceAsStream(truststorePath)) {
+                if (input == null) {
+                    throw new IOException(
+                            "Truststore " + truststorePath + " not found on classpath");
+                }
+                return input.readAllBytes();
+            }
+        }
+        return Files.readAllBytes(Paths.get("/" + truststorePath));
+    }
+
+    private record CacheKey(String path, String passwordDigest) {}
+
+    private static final class Entry {
+
+        private final String truststorePath;
+        private final String truststorePassword;
+        private volatile ViispResponseVerifier verifier;
+
+        /** Fingerprint of the last file version that failed to load, used by the watcher only. */
+        private String failedFingerprint;
+
+        Entry(String truststorePath, String truststorePassword) {
+            this.truststorePath = truststorePath;
+            this.truststorePassword = truststorePassword;
+        }
+
+        ViispResponseVerifier get() {
+            ViispResponseVerifier result = verifier;
+            if (result != null) {
+                return result;
+            }
+            synchronized (this) {
+                result = verifier;
+                if (result == null) {
+                    result = load(ViispKeyMaterialRegistry.fingerprint(truststorePath));
+                    verifier = result;
+                    if (!truststorePath.startsWith("/")) {
+                        ViispKeystoreWatcher.watch(Paths.get("/" + truststorePath));
+                    }
+                }
+                return result;
+            }
+        }
+
+        void reloadIfChanged() {
+            ViispResponseVerifier current = verifier;
+            if (current == null || truststorePath.startsWith("/")) {
+                return;
+            }
+            String fingerprint = ViispKeyMaterialRegistry.fingerprint(truststorePath);
+            if (fingerprint.equals(current.fingerprint)) {
+                return;
+            }
+            ViispResponseVerifier loaded;
+            try {
+                loaded = load(fingerprint);
+            } catch (RuntimeException e) {
+                // Possibly caught in the middle of a write, retried on the next change or poll
+                if (!fingerprint.equals(failedFingerprint)) {
+                    LOG.warn(
+                            "Keeping the previous VIISP response keys, truststore {} cannot be"
+                                    + " loaded: {}",
+                            truststorePath,
+                            e.toString());
+                }
+                failedFingerprint = fingerprint;
+                return;
+            }
+            failedFingerprint = null;
+            verifier = loaded;
+            LOG.info("Reloaded the VIISP response truststore {}", truststorePath);
+        }
+
+        private ViispResponseVerifier load(String fingerprint) {
+            try {
+                return new ViispResponseVerifier(
+                        truststorePath,
+                        ViispResponseVerifier.load(truststorePath, truststorePassword),
+                        fingerprint);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to load VIISP response truststore", e);
+            }
+        }
+    }
+
+    /**
+     * Selects the trusted key named by the key info of a signature, or the first trusted key of the
+     * signature algorithm if the key info names none.
+     */
+    private final class TrustedKeySelector extends KeySelector {
+
+        @Override
+        public KeySelectorResult select(
+                KeyInfo keyInfo,
+                KeySelector.Purpose purpose,
+                AlgorithmMethod method,
+                XMLCryptoContext context)
+                throws KeySelectorException {
+            if (keyInfo != null) {
+                for (Object content : keyInfo.getContent()) {
+                    PublicKey key = null;
+                    if (content instanceof KeyValue keyValue) {
+                        try {
+                            key = trusted(keyValue.getPublicKey());
+                        } catch (KeyException e) {
+                            // Unsupported key value, look at the other key info
+                        }
+                    } else if (content instanceof X509Data x509Data) {
+                        for (Object data : x509Data.getContent()) {
+                            if (key == null && data instanceof X509Certificate certificate) {
+                                key = trusted(certificate.getPublicKey());
+                            }
+                        }
+                    }
+                    if (key != null) {
+                        return result(key);
+                    }
+                }
+            }
+            String keyAlgorithm = method.getAlgorithm().contains("ecdsa") ? "EC" : "RSA";
+            for (PublicKey key : trustedKeys) {
+                if (key.getAlgorithm().equals(keyAlgorithm)) {
+                    return result(key);
+                }
+            }
+            throw new KeySelectorException(
+                    "No trusted " + keyAlgorithm + " key in " + truststorePath);
+        }
+
+        private KeySelectorResult result(PublicKey key) {
+            return () -> key;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded retries with exponential, fully jittered backoff.
+ *
+ * <p>Only failures accepted by the given predicate are retried. {@link #isConnectionFailure} covers
+ * everything that went wrong on the connection, which is safe for the ticket request: the worst
+ * outcome of a duplicate is an unused ticket. {@link #isNotSent} only covers failures where the
+ * request cannot have reached VIISP and is used for the user data request, whose ticket may only be
+ * redeemed once.
+ */
+public final class ViispRetryPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispRetryPolicy.class);
+
+    private final int maxRetries;
+    private final Duration backoff;
+
+    public ViispRetryPolicy(int maxRetries, Duration backoff) {
+        this.maxRetries = Math.max(maxRetries, 0);
+        this.backoff = backoff;
+    }
+
+    public static ViispRetryPolicy fromConfig(ViispIdentityProviderConfig config) {
+        return new ViispRetryPolicy(
+                config.getMaxRetries(), Duration.ofMillis(config.getRetryBackoffMs()));
+    }
+
+    /** Runs the call, retrying it while it fails with a retryable failure and retries are left. */
+    public <T> CompletableFuture<T> execute(
+            Supplier<CompletableFuture<T>> call, Predicate<Throwable> retryable) {
+        return attempt(call, retryable, 0);
+    }
+
+    private <T> CompletableFuture<T> attempt(
+            Supplier<CompletableFuture<T>> call, Predicate<Throwable> retryable, int retry) {
+        return call.get()
+                .handle(
+                        (result, error) -> {
+                            if (error == null) {
+                                return CompletableFuture.completedFuture(result);
+                            }
+                            Throwable cause = unwrap(error);
+                            if (retry >= maxRetries || !retryable.test(cause)) {
+                                return CompletableFuture.<T>failedFuture(cause);
+                            }
+
+                            long delayMs = backoffMs(retry);
+                            LOG.warn(
+                                    "VIISP call failed ({}), retry {} of {} in {} ms",
+                                    cause.toString(),
+                                    retry + 1,
+                                    maxRetries,
+                                    delayMs);
+                            return CompletableFuture.runAsync(
+                                            () -> {},
+                                            CompletableFuture.delayedExecutor(
+                                                    delayMs, TimeUnit.MILLISECONDS))
+                                    .thenCompose(ignored -> attempt(call, retryable, retry + 1));
+                        })
+                .thenCompose(future -> future);
+    }
+
+    /** Random delay between 0 and base * 2^retry. */
+    private long backoffMs(int retry) {
+        long cap = backoff.toMillis() << Math.min(retry, 16);
+        return cap > 0 ? ThreadLocalRandom.current().nextLong(cap + 1) : 0;
+    }
+
+    public static boolean isConnectionFailure(Throwable error) {
+        Throwable cause = unwrap(error);
+        if (!(cause instanceof IOException)) {
+            return false;
+        }
+        // A read timeout means VIISP accepted the request but is slow, retrying adds load
+        return !(cause instanceof HttpTimeoutException)
+                || cause instanceof HttpConnectTimeoutException;
+    }
+
+    public static boolean isNotSent(Throwable error) {
+        Throwable cause = unwrap(error);
+        if (cause instanceof IOException && cause.getCause() instanceof ConnectException) {
+            cause = cause.getCause();
+        }
+        return cause instanceof ConnectException
+                || cause instanceof HttpConnectTimeoutException
+                || cause instanceof NoRouteToHostException
+                || cause instanceof UnknownHostException;
+    }
+
+    static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
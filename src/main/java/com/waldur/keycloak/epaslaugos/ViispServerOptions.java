@@ -0,0 +1,120 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.nio.file.Path;
+import org.keycloak.Config;
+
+/**
+ * Server-wide settings of the VIISP identity providers, read from the SPI options of {@link
+ * ViispIdentityProviderFactory}, for example {@code
+ * --spi-identity-provider-viisp-transport-replay-enabled=true}.
+ *
+ * <p>They cover what a realm administrator must not be able to switch on: the transports that read
+ * or write exchange files, of which replay skips VIISP altogether, and the file span exporter.
+ * Identity providers can select them only when they are enabled here, and always use the files
+ * configured here. The percentile histograms of the phase timers, which add dozens of series per
+ * timer to the metrics endpoint, are enabled here as well.
+ */
+public final class ViispServerOptions {
+
+    public static final String TRANSPORT_RECORD_ENABLED = "transport-record-enabled";
+    public static final String TRANSPORT_REPLAY_ENABLED = "transport-replay-enabled";
+    public static final String TRANSPORT_FILE = "transport-file";
+    public static final String TRACING_FILE_ENABLED = "tracing-file-enabled";
+    public static final String TRACING_FILE = "tracing-file";
+    public static final String METRICS_HISTOGRAMS_ENABLED = "metrics-histograms-enabled";
+
+    private static volatile ViispServerOptions current = defaults();
+
+    private final boolean transportRecordEnabled;
+    private final boolean transportReplayEnabled;
+    private final Path transportFile;
+    private final boolean tracingFileEnabled;
+    private final Path tracingFile;
+    private final boolean metricsHistogramsEnabled;
+
+    public ViispServerOptions(
+            boolean transportRecordEnabled,
+            boolean transportReplayEnabled,
+            Path transportFile,
+            boolean tracingFileEnabled,
+            Path tracingFile,
+            boolean metricsHistogramsEnabled) {
+        this.transportRecordEnabled = transportRecordEnabled;
+        this.transportReplayEnabled = transportReplayEnabled;
+        this.transportFile = transportFile;
+        this.tracingFileEnabled = tracingFileEnabled;
+        this.tracingFile = tracingFile;
+        this.metricsHistogramsEnabled = metricsHistogramsEnabled;
+    }
+
+    /** Everything disabled, with the files in the temporary directory. */
+    public static ViispServerOptions defaults() {
+        return new ViispServerOptions(
+                false,
+                false,
+                tempFile("viisp-exchanges.jsonl"),
+                false,
+                tempFile("viisp-spans.jsonl"),
+                false);
+    }
+
+    static ViispServerOptions fromScope(Config.Scope scope) {
+        ViispServerOptions defaults = defaults();
+        String transportFile = scope.get(TRANSPORT_FILE);
+        String tracingFile = scope.get(TRACING_FILE);
+        return new ViispServerOptions(
+                scope.getBoolean(TRANSPORT_RECORD_ENABLED, false),
+                scope.getBoolean(TRANSPORT_REPLAY_ENABLED, false),
+                transportFile == null || transportFile.trim().isEmpty()
+                        ? defaults.transportFile
+                        : Path.of(transportFile.trim()),
+                scope.getBoolean(TRACING_FILE_ENABLED, false),
+                tracingFile == null || tracingFile.trim().isEmpty()
+                        ? defaults.tracingFile
+                        : Path.of(tracingFile.trim()),
+                scope.getBoolean(METRICS_HISTOGRAMS_ENABLED, false));
+    }
+
+    public static ViispServerOptions get() {
+        return current;
+    }
+
+    /** Replaces the options; called by the factory, and by tests and benchmarks. */
+    public static void set(ViispServerOptions options) {
+        current = options;
+    }
+
+    /** Whether identity providers may use the transport; HTTP is always allowed. */
+    public boolean isAllowed(ViispTransportMode mode) {
+        switch (mode) {
+            case RECORD:
+                return transportRecordEnabled;
+            case REPLAY:
+                return transportReplayEnabled;
+            default:
+                return true;
+        }
+    }
+
+    /** Whether identity providers may use the span exporter; only the file exporter is gated. */
+    public boolean isAllowed(ViispTracingExporter exporter) {
+        return exporter != ViispTracingExporter.FILE || tracingFileEnabled;
+    }
+
+    /** Whether the phase, shadow parse and crypto queue timers publish percentile histograms. */
+    public boolean isMetricsHistogramsEnabled() {
+        return metricsHistogramsEnabled;
+    }
+
+    public Path getTransportFile() {
+        return transportFile;
+    }
+
+    public Path getTracingFile() {
+        return tracingFile;
+    }
+
+    private static Path tempFile(String name) {
+        return Path.of(System.getProperty("java.io.tmpdir"), name);
+    }
+}
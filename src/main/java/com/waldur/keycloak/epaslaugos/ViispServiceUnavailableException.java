@@ -0,0 +1,9 @@
+package com.waldur.keycloak.epaslaugos;
+
+/** Thrown when a VIISP call is rejected without being attempted, to fail fast. */
+public class ViispServiceUnavailableException extends RuntimeException {
+
+    public ViispServiceUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,170 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses a sample of the user data responses a second time with the other response parser and
+ * compares the results with the ones of the configured parser, field by field.
+ *
+ * <p>The shadow parse runs after the primary parse succeeded, on one background thread shared by
+ * all identity providers, so it adds no latency to the login. At most {@value #QUEUE_CAPACITY}
+ * responses wait for it; further samples are dropped. Its result and its failures are only
+ * recorded, in {@link ViispMetrics} and the log, and never change the user data of the login.
+ * Mismatches are logged with the names of the fields only, as the values are personal data.
+ *
+ * <p>Responses are not shadow parsed while their signatures are verified, as verified user data is
+ * always read from the DOM the signature was checked on.
+ */
+public final class ViispShadowParser {
+
+    public static final int QUEUE_CAPACITY = 16;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispShadowParser.class);
+
+    private static final ThreadPoolExecutor EXECUTOR = newExecutor();
+
+    /** Compared fields of the user data, by the name they are counted under. */
+    static final Map<String, Function<ViispUserInfo, String>> FIELDS = new LinkedHashMap<>();
+
+    static {
+        FIELDS.put("personalCode", ViispUserInfo::getPersonalCode);
+        FIELDS.put("firstName", ViispUserInfo::getFirstName);
+        FIELDS.put("lastName", ViispUserInfo::getLastName);
+        FIELDS.put("email", ViispUserInfo::getEmail);
+        FIELDS.put("companyCode", ViispUserInfo::getCompanyCode);
+        FIELDS.put("authProvider", ViispUserInfo::getAuthProvider);
+        FIELDS.put("birthday", ViispUserInfo::getBirthday);
+        FIELDS.put("companyName", ViispUserInfo::getCompanyName);
+        FIELDS.put("address", ViispUserInfo::getAddress);
+        FIELDS.put("phoneNumber", ViispUserInfo::getPhoneNumber);
+        FIELDS.put("nationality", ViispUserInfo::getNationality);
+        FIELDS.put("proxyType", ViispUserInfo::getProxyType);
+        FIELDS.put("proxySource", ViispUserInfo::getProxySource);
+    }
+
+    private final ViispResponseParser primary;
+    private final ViispResponseParser shadow;
+    private final int percent;
+    private final ViispMetrics metrics;
+
+    public ViispShadowParser(ViispResponseParser primary, int percent, ViispMetrics metrics) {
+        this.primary = primary;
+        this.shadow =
+                primary == ViispResponseParser.DOM
+                        ? ViispResponseParser.STREAMING
+                        : ViispResponseParser.DOM;
+        this.percent = Math.max(0, Math.min(100, percent));
+        this.metrics = metrics;
+    }
+
+    /** The shadow parser of the provider; it samples nothing while responses are verified. */
+    public static ViispShadowParser fromConfig(
+            ViispIdentityProviderConfig config, ViispMetrics metrics) {
+        boolean verified = config.getResponseVerification() != ViispResponseVerification.OFF;
+        return new ViispShadowParser(
+                config.getResponseParser(), verified ? 0 : config.getShadowParsePercent(), metrics);
+    }
+
+    /** Whether the next response should be shadow parsed. */
+    public boolean sample() {
+        return percent > 0 && ThreadLocalRandom.current().nextInt(100) < percent;
+    }
+
+    /**
+     * Runs {@link #compare} on the background thread. Returns the future of the comparison, or null
+     * if the sample was dropped because the queue is full.
+     */
+    public CompletableFuture<Void> compareAsync(
+            String xmlContent, ViispUserInfo primaryInfo, long primaryNanos) {
+        try {
+            return CompletableFuture.runAsync(
+                    () -> compare(xmlContent, primaryInfo, primaryNanos), EXECUTOR);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Dropped a shadow parse sample, {} responses are waiting", QUEUE_CAPACITY);
+            return null;
+        }
+    }
+
+    /**
+     * Parses the response with the shadow parser and records how its result and duration compare to
+     * the ones of the primary parser. Never throws.
+     */
+    public void compare(String xmlContent, ViispUserInfo primaryInfo, long primaryNanos) {
+        long start = System.nanoTime();
+        ViispUserInfo shadowInfo;
+        try {
+            shadowInfo = ViispXMLClient.parseUserData(shadow, xmlContent);
+        } catch (Exception e) {
+            long shadowNanos = System.nanoTime() - start;
+            record(ViispMetrics.OUTCOME_FAILURE, primaryNanos, shadowNanos);
+            LOG.warn(
+                    "Shadow {} parser failed on a response the {} parser accepted: {}",
+                    shadow.value(),
+                    primary.value(),
+                    e.getClass().getName());
+            return;
+        }
+        long shadowNanos = System.nanoTime() - start;
+
+        List<String> mismatches = mismatches(primaryInfo, shadowInfo);
+        if (mismatches.isEmpty()) {
+            record(ViispMetrics.OUTCOME_MATCH, primaryNanos, shadowNanos);
+            return;
+        }
+        record(ViispMetrics.OUTCOME_MISMATCH, primaryNanos, shadowNanos);
+        for (String field : mismatches) {
+            metrics.shadowMismatch(shadow, field);
+        }
+        LOG.warn(
+                "Shadow {} parser disagreed with the {} parser on {}",
+                shadow.value(),
+                primary.value(),
+                mismatches);
+    }
+
+    private void record(String outcome, long primaryNanos, long shadowNanos) {
+        metrics.shadowParse(primary, ViispMetrics.ROLE_PRIMARY, outcome, primaryNanos);
+        metrics.shadowParse(shadow, ViispMetrics.ROLE_SHADOW, outcome, shadowNanos);
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        60,
+                        TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "viisp-shadow-parse");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Returns the names of the fields whose values differ. */
+    public static List<String> mismatches(ViispUserInfo expected, ViispUserInfo actual) {
+        List<String> mismatches = new ArrayList<>();
+        for (Map.Entry<String, Function<ViispUserInfo, String>> field : FIELDS.entrySet()) {
+            if (!Objects.equals(field.getValue().apply(expected), field.getValue().apply(actual))) {
+                mismatches.add(field.getKey());
+            }
+        }
+        return mismatches;
+    }
+}
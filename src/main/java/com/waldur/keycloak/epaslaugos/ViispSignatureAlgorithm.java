@@ -0,0 +1,78 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.security.PrivateKey;
+import javax.xml.crypto.dsig.SignatureMethod;
+
+/** Signature algorithm of VIISP requests; {@link #AUTO} picks it from the type of the key. */
+public enum ViispSignatureAlgorithm {
+    AUTO("auto", null, null, null),
+    RSA_SHA1("rsa-sha1", SignatureMethod.RSA_SHA1, "SHA1withRSA", "RSA"),
+    RSA_SHA256("rsa-sha256", SignatureMethod.RSA_SHA256, "SHA256withRSA", "RSA"),
+    RSA_SHA512("rsa-sha512", SignatureMethod.RSA_SHA512, "SHA512withRSA", "RSA"),
+    // XML signatures carry the raw r || s pair rather than the DER encoding
+    ECDSA_SHA256(
+            "ecdsa-sha256", SignatureMethod.ECDSA_SHA256, "SHA256withECDSAinP1363Format", "EC");
+
+    private final String value;
+    private final String uri;
+    private final String jcaName;
+    private final String keyAlgorithm;
+
+    ViispSignatureAlgorithm(String v, String uri, String jcaName, String keyAlgorithm) {
+        value = v;
+        this.uri = uri;
+        this.jcaName = jcaName;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    /** The XML signature algorithm URI. */
+    public String uri() {
+        return uri;
+    }
+
+    /** The {@link java.security.Signature} algorithm producing the XML signature value. */
+    public String jcaName() {
+        return jcaName;
+    }
+
+    /** Whether signing the same data twice gives the same signature value. */
+    public boolean isDeterministic() {
+        return "RSA".equals(keyAlgorithm);
+    }
+
+    /**
+     * Returns the algorithm to sign with the key: the one of its type for {@link #AUTO}, which is
+     * RSA-SHA1 for RSA keys as VIISP expects and ECDSA-SHA256 for EC keys, this one otherwise.
+     *
+     * @throws IllegalArgumentException if the key is of another type than this algorithm needs
+     */
+    public ViispSignatureAlgorithm forKey(PrivateKey key) {
+        if (this == AUTO) {
+            if (ECDSA_SHA256.keyAlgorithm.equals(key.getAlgorithm())) {
+                return ECDSA_SHA256;
+            }
+            if (RSA_SHA1.keyAlgorithm.equals(key.getAlgorithm())) {
+                return RSA_SHA1;
+            }
+        } else if (keyAlgorithm.equals(key.getAlgorithm())) {
+            return this;
+        }
+        throw new IllegalArgumentException(
+                String.format(
+                        "VIISP signature algorithm %s cannot sign with the %s key of the keystore",
+                        value, key.getAlgorithm()));
+    }
+
+    public static ViispSignatureAlgorithm fromValue(String v) {
+        for (ViispSignatureAlgorithm c : ViispSignatureAlgorithm.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+}
@@ -0,0 +1,287 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Single-pass StAX extractor of {@link ViispUserInfo} from an authenticationDataResponse.
+ *
+ * <p>Fills the user info while reading, without building a DOM of the (potentially large) SOAP
+ * response. The extraction rules mirror the DOM based parser of {@link ViispXMLClient}: the first
+ * authenticationProvider wins, authenticationAttribute and userInformation entries are applied in
+ * document order and text values are the trimmed text content of the matching elements.
+ */
+public final class ViispStreamingUserDataParser {
+
+    private static final String NAMESPACE = ViispXmlMarshaller.NAMESPACE;
+
+    private static final XMLInputFactory INPUT_FACTORY = inputFactory();
+
+    private ViispStreamingUserDataParser() {}
+
+    public static ViispUserInfo parse(String xmlContent) throws XMLStreamException {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(xmlContent));
+        try {
+            return new Extraction().run(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static XMLInputFactory inputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /** State of one parse run. */
+    private static final class Extraction {
+
+        private final ViispUserInfo userInfo = new ViispUserInfo();
+        // authenticationAttribute and userInformation elements in document order
+        private final List<Entry> entries = new ArrayList<>();
+        private final List<Entry> openEntries = new ArrayList<>();
+        private final List<Capture> captures = new ArrayList<>();
+        private boolean authProviderSeen;
+        private int depth;
+
+        ViispUserInfo run(XMLStreamReader reader) throws XMLStreamException {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        startElement(reader.getNamespaceURI(), reader.getLocalName());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endElement();
+                        depth--;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (!captures.isEmpty()) {
+                            characters(reader);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            for (Entry entry : entries) {
+                entry.apply(userInfo);
+            }
+            return userInfo;
+        }
+
+        private void startElement(String namespace, String localName) {
+            if (!NAMESPACE.equals(namespace)) {
+                return;
+            }
+
+            for (Entry entry : openEntries) {
+                entry.child(this, localName);
+            }
+
+            switch (localName) {
+                case "authenticationProvider":
+                    if (!authProviderSeen) {
+                        authProviderSeen = true;
+                        capture(userInfo::setAuthProvider);
+                    }
+                    break;
+                case "authenticationAttribute":
+                    open(new AttributeEntry(depth));
+                    break;
+                case "userInformation":
+                    open(new InformationEntry(depth));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void endElement() {
+            for (int i = captures.size() - 1; i >= 0; i--) {
+                Capture capture = captures.get(i);
+                if (capture.depth == depth) {
+                    captures.remove(i);
+                    capture.target.accept(capture.text.toString().trim());
+                }
+            }
+            for (int i = openEntries.size() - 1; i >= 0; i--) {
+                Entry entry = openEntries.get(i);
+                if (entry.depth == depth) {
+                    openEntries.remove(i);
+                } else {
+                    entry.end(depth);
+                }
+            }
+        }
+
+        private void characters(XMLStreamReader reader) {
+            char[] text = reader.getTextCharacters();
+            int start = reader.getTextStart();
+            int length = reader.getTextLength();
+            for (Capture capture : captures) {
+                capture.text.append(text, start, length);
+            }
+        }
+
+        private void open(Entry entry) {
+            entries.add(entry);
+            openEntries.add(entry);
+        }
+
+        void capture(Consumer<String> target) {
+            captures.add(new Capture(depth, target));
+        }
+    }
+
+    /** Text content of the element at the given depth, handed to the target when it ends. */
+    private static final class Capture {
+
+        final int depth;
+        final Consumer<String> target;
+        final StringBuilder text = new StringBuilder();
+
+        Capture(int depth, Consumer<String> target) {
+            this.depth = depth;
+            this.target = target;
+        }
+    }
+
+    private abstract static class Entry {
+
+        final int depth;
+        String type;
+        String value;
+
+        Entry(int depth) {
+            this.depth = depth;
+        }
+
+        /** Called for every element in the VIISP namespace started inside this entry. */
+        abstract void child(Extraction extraction, String localName);
+
+        /** Called for every element ended inside this entry. */
+        void end(int elementDepth) {}
+
+        abstract void apply(ViispUserInfo userInfo);
+    }
+
+    /** An authenticationAttribute element with attribute and value children. */
+    private static final class AttributeEntry extends Entry {
+
+        AttributeEntry(int depth) {
+            super(depth);
+        }
+
+        @Override
+        void child(Extraction extraction, String localName) {
+            if (extraction.depth != depth + 1) {
+                return;
+            }
+            if ("attribute".equals(localName)) {
+                extraction.capture(text -> type = text);
+            } else if ("value".equals(localName)) {
+                extraction.capture(text -> value = text);
+            }
+        }
+
+        @Override
+        void apply(ViispUserInfo userInfo) {
+            if ("lt-personal-code".equals(type) && value != null) {
+                userInfo.setPersonalCode(value);
+            }
+
+            if ("lt-company-code".equals(type) && value != null) {
+                userInfo.setCompanyCode(value);
+            }
+        }
+    }
+
+    /** A userInformation element with information and value/stringValue children. */
+    private static final class InformationEntry extends Entry {
+
+        private int valueDepth = -1;
+        private boolean stringValueSeen;
+
+        InformationEntry(int depth) {
+            super(depth);
+        }
+
+        @Override
+        void child(Extraction extraction, String localName) {
+            if (extraction.depth == depth + 1) {
+                if ("information".equals(localName)) {
+                    extraction.capture(text -> type = text);
+                } else if ("value".equals(localName)) {
+                    valueDepth = extraction.depth;
+                    stringValueSeen = false;
+                }
+            } else if (valueDepth != -1
+                    && extraction.depth == valueDepth + 1
+                    && "stringValue".equals(localName)
+                    && !stringValueSeen) {
+                // Only the first stringValue of each value element counts
+                stringValueSeen = true;
+                extraction.capture(text -> value = text);
+            }
+        }
+
+        @Override
+        void end(int elementDepth) {
+            if (elementDepth == valueDepth) {
+                valueDepth = -1;
+            }
+        }
+
+        @Override
+        void apply(ViispUserInfo userInfo) {
+            if (type == null || value == null) {
+                return;
+            }
+            switch (type) {
+                case "firstName":
+                    userInfo.setFirstName(value);
+                    break;
+                case "lastName":
+                    userInfo.setLastName(value);
+                    break;
+                case "email":
+                    userInfo.setEmail(value);
+                    break;
+                case "companyName":
+                    userInfo.setCompanyName(value);
+                    break;
+                case "address":
+                    userInfo.setAddress(value);
+                    break;
+                case "phoneNumber":
+                    userInfo.setPhoneNumber(value);
+                    break;
+                case "birthday":
+                    userInfo.setBirthday(value);
+                    break;
+                case "nationality":
+                    userInfo.setNationality(value);
+                    break;
+                case "proxyType":
+                    userInfo.setProxyType(value);
+                    break;
+                case "proxySource":
+                    userInfo.setProxySource(value);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Signs requests that only differ in the text of a few elements, without building, canonicalizing
+ * and signing a DOM for each of them.
+ *
+ * <p>The signer is created from a document of the request that has marker values in its variable
+ * elements and is signed once by {@link ViispXmlSigner}. The canonical form of that document, its
+ * canonical SignedInfo and the serialized signed request are cut at the markers, the digest value
+ * and the signature value. A signature then continues from the digest state of the static canonical
+ * prefix, digests only the escaped values and the static parts in between, signs the SignedInfo
+ * rebuilt around the new digest value and fills the serialized request in.
+ *
+ * <p>The result is the string the generic path produces for the same values, which is checked when
+ * the signer is created. ECDSA signature values differ on every signature, for them the rest of the
+ * request is compared and the signature is validated. Only non-empty values of printable ASCII
+ * characters are accepted: others are escaped differently by canonicalization and serialization,
+ * and are left to the generic path.
+ */
+public final class ViispTemplateSigner {
+
+    private static final String MARKER = "viisp-template-value-";
+
+    private static final ThreadLocal<Map<String, Signature>> SIGNATURES =
+            ThreadLocal.withInitial(HashMap::new);
+
+    private final ViispKeyMaterial keyMaterial;
+    private final ViispXmlSigner.Algorithms algorithms;
+    private final int valueCount;
+
+    /** Digest state after the canonical form up to the first value. */
+    private final MessageDigest prefixDigest;
+
+    /** Canonical form after each value, up to the next one. */
+    private final byte[][] canonicalParts;
+
+    private final byte[] signedInfoPrefix;
+    private final byte[] signedInfoSuffix;
+
+    /** Serialized request around the values, the digest value and the signature value. */
+    private final String[] outputParts;
+
+    private final int outputLength;
+
+    private ViispTemplateSigner(
+            ViispKeyMaterial keyMaterial,
+            ViispXmlSigner.Algorithms algorithms,
+            List<String> canonicalParts,
+            List<String> signedInfoParts,
+            List<String> outputParts)
+            throws NoSuchAlgorithmException {
+        this.keyMaterial = keyMaterial;
+        this.algorithms = algorithms;
+        this.valueCount = canonicalParts.size() - 1;
+        this.prefixDigest = MessageDigest.getInstance(algorithms.digest().jcaName());
+        prefixDigest.update(bytes(canonicalParts.get(0)));
+        this.canonicalParts = new byte[valueCount][];
+        for (int i = 0; i < valueCount; i++) {
+            this.canonicalParts[i] = bytes(canonicalParts.get(i + 1));
+        }
+        this.signedInfoPrefix = bytes(signedInfoParts.get(0));
+        this.signedInfoSuffix = bytes(signedInfoParts.get(1));
+        this.outputParts = outputParts.toArray(new String[0]);
+        this.outputLength = outputParts.stream().mapToInt(String::length).sum();
+    }
+
+    /**
+     * Creates the signer of the documents of the factory and checks that it produces the same
+     * requests as {@link ViispXmlSigner}.
+     *
+     * @throws IllegalStateException if the template cannot be cut or the check fails
+     */
+    public static ViispTemplateSigner create(
+            DocumentFactory factory,
+            int valueCount,
+            String referenceUri,
+            ViispKeyMaterial keyMaterial,
+            ViispXmlSigner.Algorithms algorithms)
+            throws Exception {
+        String[] markers = new String[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            markers[i] = MARKER + i;
+        }
+        Document document = factory.newDocument(markers);
+        XMLSignature signature =
+                ViispXmlSigner.signRetainingCanonicalForms(
+                        document.getDocumentElement(), referenceUri, keyMaterial, algorithms);
+        Reference reference = (Reference) signature.getSignedInfo().getReferences().get(0);
+        String canonical =
+                new String(reference.getDigestInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        String signedInfo =
+                new String(
+                        signature.getSignedInfo().getCanonicalizedData().readAllBytes(),
+                        StandardCharsets.UTF_8);
+        String serialized = ViispXmlSupport.serialize(document.getDocumentElement());
+
+        List<int[]> outputCuts = markerCuts(serialized, markers);
+        int after = outputCuts.get(outputCuts.size() - 1)[1];
+        int[] digestValue = elementText(serialized, "DigestValue", after);
+        outputCuts.add(digestValue);
+        outputCuts.add(elementText(serialized, "SignatureValue", digestValue[1]));
+
+        ViispTemplateSigner signer =
+                new ViispTemplateSigner(
+                        keyMaterial,
+                        algorithms,
+                        cut(canonical, markerCuts(canonical, markers)),
+                        cut(signedInfo, List.of(elementText(signedInfo, "DigestValue", 0))),
+                        cut(serialized, outputCuts));
+        signer.check(factory, referenceUri);
+        return signer;
+    }
+
+    public ViispKeyMaterial getKeyMaterial() {
+        return keyMaterial;
+    }
+
+    public ViispXmlSigner.Algorithms getAlgorithms() {
+        return algorithms;
+    }
+
+    /** Whether {@link #sign} can sign a request with the values. */
+    public boolean accepts(String... values) {
+        if (values.length != valueCount) {
+            return false;
+        }
+        for (String value : values) {
+            // Empty elements are serialized as <a/>, which the template cannot produce
+            if (value == null || value.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x20 || c > 0x7e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Returns the serialized signed request with the values, which must be {@link #accepts}ed. */
+    public String sign(String... values) throws GeneralSecurityException {
+        if (!accepts(values)) {
+            throw new IllegalArgumentException("Values cannot be signed through the template");
+        }
+        MessageDigest digest;
+        try {
+            digest = (MessageDigest) prefixDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new NoSuchAlgorithmException(
+                    "Digest state of " + algorithms.digest().jcaName(), e);
+        }
+        String[] escaped = new String[valueCount];
+        int length = outputLength;
+        for (int i = 0; i < valueCount; i++) {
+            escaped[i] = escape(values[i]);
+            length += escaped[i].length();
+            digest.update(bytes(escaped[i]));
+            digest.update(canonicalParts[i]);
+        }
+        // Base64 with the line breaks of the XML signature implementation, whose carriage
+        // returns are written as character references: &#xD; when canonical, &#13; serialized
+        String digestValue = Base64.getMimeEncoder().encodeToString(digest.digest());
+
+        Signature signature = signature(algorithms.signature().jcaName());
+        signature.initSign(keyMaterial.getPrivateKey());
+        signature.update(signedInfoPrefix);
+        signature.update(bytes(digestValue.replace("\r", "&#xD;")));
+        signature.update(signedInfoSuffix);
+        digestValue = digestValue.replace("\r", "&#13;");
+        String signatureValue =
+                Base64.getMimeEncoder().encodeToString(signature.sign()).replace("\r", "&#13;");
+
+        StringBuilder output =
+                new StringBuilder(length + digestValue.length() + signatureValue.length());
+        output.append(outputParts[0]);
+        for (int i = 0; i < valueCount; i++) {
+            output.append(escaped[i]).append(outputParts[i + 1]);
+        }
+        return output.append(digestValue)
+                .append(outputParts[valueCount + 1])
+                .append(signatureValue)
+                .append(outputParts[valueCount + 2])
+                .toString();
+    }
+
+    /** Compares a request of this signer with the one of the generic path. */
+    private void check(DocumentFactory factory, String referenceUri) throws Exception {
+        String[] values = new String[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            values[i] = "https://self-check.invalid/" + i + "?a=<1>&b=\"2\"";
+        }
+        Document document = factory.newDocument(values);
+        ViispXmlSigner.sign(document.getDocumentElement(), referenceUri, keyMaterial, algorithms);
+        String expected = ViispXmlSupport.serialize(document.getDocumentElement());
+        String actual = sign(values);
+        if (algorithms.signature().isDeterministic()) {
+            if (!expected.equals(actual)) {
+                throw new IllegalStateException(
+                        "Template signature differs from the XML signature of the same request");
+            }
+            return;
+        }
+        if (!withoutSignatureValue(expected).equals(withoutSignatureValue(actual))) {
+            throw new IllegalStateException(
+                    "Template signed request differs from the XML signed one of the same values");
+        }
+        if (!validate(actual)) {
+            throw new IllegalStateException("Template signature does not validate");
+        }
+    }
+
+    private static String withoutSignatureValue(String request) {
+        int[] value = elementText(request, "SignatureValue", 0);
+        return request.substring(0, value[0]) + request.substring(value[1]);
+    }
+
+    private boolean validate(String request) throws Exception {
+        Document document = ViispXmlSupport.parse(request);
+        document.getDocumentElement().setIdAttribute("id", true);
+        NodeList signatures = document.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+        DOMValidateContext context =
+                new DOMValidateContext(keyMaterial.getPublicKey(), signatures.item(0));
+        // SHA-1 is refused by secure validation, this only checks our own signature
+        context.setProperty("org.jcp.xml.dsig.secureValidation", Boolean.FALSE);
+        return XMLSignatureFactory.getInstance("DOM")
+                .unmarshalXMLSignature(context)
+                .validate(context);
+    }
+
+    private static List<int[]> markerCuts(String text, String[] markers) {
+        List<int[]> cuts = new ArrayList<>();
+        int from = 0;
+        for (String marker : markers) {
+            int start = text.indexOf(marker, from);
+            if (start < 0 || text.indexOf(marker, start + 1) >= 0) {
+                throw new IllegalStateException("Template value " + marker + " is not unique");
+            }
+            from = start + marker.length();
+            cuts.add(new int[] {start, from});
+        }
+        return cuts;
+    }
+
+    /** Returns the bounds of the text of the first element with the local name after from. */
+    private static int[] elementText(String text, String localName, int from) {
+        int start = text.indexOf("<" + localName + ">", from);
+        int end = start >= 0 ? text.indexOf("</" + localName + ">", start) : -1;
+        if (end < 0) {
+            throw new IllegalStateException("Template signature has no " + localName);
+        }
+        return new int[] {start + localName.length() + 2, end};
+    }
+
+    /** Returns the parts of the text around the cuts, which are in order. */
+    private static List<String> cut(String text, List<int[]> cuts) {
+        List<String> parts = new ArrayList<>();
+        int end = 0;
+        for (int[] cut : cuts) {
+            parts.add(text.substring(end, cut[0]));
+            end = cut[1];
+        }
+        parts.add(text.substring(end));
+        return parts;
+    }
+
+    /** Escapes printable ASCII text like both canonicalization and serialization do. */
+    private static String escape(String value) {
+        if (value.indexOf('&') < 0 && value.indexOf('<') < 0 && value.indexOf('>') < 0) {
+            return value;
+        }
+        StringBuilder escaped = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '&') {
+                escaped.append("&amp;");
+            } else if (c == '<') {
+                escaped.append("&lt;");
+            } else if (c == '>') {
+                escaped.append("&gt;");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Signature signature(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, Signature> signatures = SIGNATURES.get();
+        Signature signature = signatures.get(algorithm);
+        if (signature == null) {
+            signature = Signature.getInstance(algorithm);
+            signatures.put(algorithm, signature);
+        }
+        return signature;
+    }
+
+    /** Builds a request document with the given variable values and its ID attribute set. */
+    @FunctionalInterface
+    public interface DocumentFactory {
+
+        Document newDocument(String... values) throws Exception;
+    }
+}
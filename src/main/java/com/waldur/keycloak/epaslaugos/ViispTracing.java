@@ -0,0 +1,215 @@
+package com.waldur.keycloak.epaslaugos;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.TracerProvider;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.tracing.TracingProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * OpenTelemetry spans of the VIISP logins of one identity provider.
+ *
+ * <p>A login is two browser requests, possibly served by different nodes: performLogin, which
+ * requests the ticket, and the callback, which redeems it. The traceparent of the login span is
+ * stored in the authentication session under {@value #TRACEPARENT_NOTE}, and the callback span is
+ * started as its child, so both show up in one trace. The callback span links to the Keycloak
+ * request span it runs in.
+ *
+ * <p>With the keycloak exporter spans go through Keycloak's {@link TracingProvider}, so they are
+ * exported wherever the tracing-* server options say and nest under Keycloak's request spans. The
+ * memory and file exporters use a tracer provider of this extension instead, shared by all identity
+ * providers, which works without a collector or tracing enabled in Keycloak.
+ */
+public final class ViispTracing {
+
+    public static final String INSTRUMENTATION_NAME = "keycloak-epaslaugos";
+    public static final String LOGIN_SPAN = "viisp.login";
+    public static final String CALLBACK_SPAN = "viisp.callback";
+
+    /** Authentication session note with the W3C traceparent of the login span. */
+    public static final String TRACEPARENT_NOTE = "VIISP_TRACEPARENT";
+
+    public static final AttributeKey<String> REALM = AttributeKey.stringKey("viisp.realm");
+    public static final AttributeKey<String> IDP = AttributeKey.stringKey("viisp.idp");
+    public static final AttributeKey<String> AUTH_PROVIDER =
+            AttributeKey.stringKey("viisp.auth_provider");
+    public static final AttributeKey<String> URL = AttributeKey.stringKey("url.full");
+    public static final AttributeKey<Long> STATUS_CODE =
+            AttributeKey.longKey("http.response.status_code");
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViispTracing.class);
+
+    private static final AttributeKey<String> SERVICE_NAME = AttributeKey.stringKey("service.name");
+    private static final String TRACEPARENT = "traceparent";
+    private static final int MEMORY_CAPACITY = 2000;
+    private static final ViispMemorySpanExporter MEMORY_EXPORTER =
+            new ViispMemorySpanExporter(MEMORY_CAPACITY);
+    private static final ConcurrentMap<String, SdkTracerProvider> SDK_PROVIDERS =
+            new ConcurrentHashMap<>();
+    private static final ViispTracing NOOP =
+            new ViispTracing(TracerProvider.noop().get(INSTRUMENTATION_NAME), null, null);
+
+    private static final TextMapGetter<Map<String, String>> MAP_GETTER =
+            new TextMapGetter<>() {
+                @Override
+                public Iterable<String> keys(Map<String, String> carrier) {
+                    return carrier.keySet();
+                }
+
+                @Override
+                public String get(Map<String, String> carrier, String key) {
+                    return carrier != null ? carrier.get(key) : null;
+                }
+            };
+
+    private final Tracer tracer;
+    private final String realm;
+    private final String alias;
+
+    private ViispTracing(Tracer tracer, String realm, String alias) {
+        this.tracer = tracer;
+        this.realm = realm;
+        this.alias = alias;
+    }
+
+    public static ViispTracing forProvider(
+            KeycloakSession session, String realm, ViispIdentityProviderConfig config) {
+        ViispTracingExporter exporter = config.getTracingExporter();
+        Tracer tracer;
+        switch (exporter) {
+            case KEYCLOAK:
+                TracingProvider provider =
+                        session != null ? session.getProvider(TracingProvider.class) : null;
+                if (provider == null) {
+                    return NOOP;
+                }
+                tracer = provider.getTracer(INSTRUMENTATION_NAME);
+                break;
+            case MEMORY:
+                tracer = sdkProvider(exporter, null).get(INSTRUMENTATION_NAME);
+                break;
+            case FILE:
+                ViispServerOptions options = ViispServerOptions.get();
+                if (!options.isAllowed(exporter)) {
+                    LOG.warn(
+                            "File span exporter of identity provider {} is not enabled on this"
+                                    + " server, its spans are not exported",
+                            config.getAlias());
+                    return NOOP;
+                }
+                tracer =
+                        sdkProvider(exporter, options.getTracingFile().toString())
+                                .get(INSTRUMENTATION_NAME);
+                break;
+            default:
+                return NOOP;
+        }
+        return new ViispTracing(tracer, realm, config.getAlias());
+    }
+
+    public static ViispTracing noop() {
+        return NOOP;
+    }
+
+    /** Spans of the identity providers using the memory exporter. */
+    public static ViispMemorySpanExporter memoryExporter() {
+        return MEMORY_EXPORTER;
+    }
+
+    /** Starts a span that is a child of the current span, if any. */
+    public Span startSpan(String name) {
+        return builder(name).startSpan();
+    }
+
+    /**
+     * Starts a span that is a child of the given context, linked to the current span when that
+     * belongs to another trace.
+     */
+    public Span startSpan(String name, Context parent) {
+        SpanBuilder builder = builder(name).setParent(parent);
+        SpanContext current = Span.current().getSpanContext();
+        SpanContext parentSpan = Span.fromContext(parent).getSpanContext();
+        if (current.isValid() && !current.getTraceId().equals(parentSpan.getTraceId())) {
+            builder.addLink(current);
+        }
+        return builder.startSpan();
+    }
+
+    public Span startPhase(ViispPhase phase) {
+        return startSpan("viisp." + phase.value());
+    }
+
+    private SpanBuilder builder(String name) {
+        SpanBuilder builder = tracer.spanBuilder(name);
+        if (realm != null) {
+            builder.setAttribute(REALM, realm);
+        }
+        if (alias != null) {
+            builder.setAttribute(IDP, alias);
+        }
+        return builder;
+    }
+
+    public static void error(Span span, Throwable error) {
+        span.recordException(error);
+        span.setStatus(StatusCode.ERROR, String.valueOf(error.getMessage()));
+    }
+
+    /** The W3C traceparent header value of the span, or null if the span is not valid. */
+    public static String traceparent(Span span) {
+        Map<String, String> carrier = new HashMap<>();
+        W3CTraceContextPropagator.getInstance()
+                .inject(Context.root().with(span), carrier, Map::put);
+        return carrier.get(TRACEPARENT);
+    }
+
+    /** The context of a traceparent header value; the root context if there is none. */
+    public static Context extract(String traceparent) {
+        if (traceparent == null || traceparent.isEmpty()) {
+            return Context.root();
+        }
+        return W3CTraceContextPropagator.getInstance()
+                .extract(Context.root(), Map.of(TRACEPARENT, traceparent), MAP_GETTER);
+    }
+
+    private static SdkTracerProvider sdkProvider(ViispTracingExporter exporter, String filePath) {
+        String key = exporter.value() + (filePath != null ? ":" + filePath : "");
+        return SDK_PROVIDERS.computeIfAbsent(key, k -> newSdkProvider(exporter, filePath));
+    }
+
+    private static SdkTracerProvider newSdkProvider(
+            ViispTracingExporter exporter, String filePath) {
+        SpanProcessor processor =
+                exporter == ViispTracingExporter.MEMORY
+                        ? SimpleSpanProcessor.create(MEMORY_EXPORTER)
+                        : BatchSpanProcessor.builder(new ViispFileSpanExporter(Path.of(filePath)))
+                                .build();
+        Resource resource =
+                Resource.getDefault()
+                        .merge(Resource.create(Attributes.of(SERVICE_NAME, "keycloak")));
+        return SdkTracerProvider.builder()
+                .setResource(resource)
+                .addSpanProcessor(processor)
+                .build();
+    }
+}
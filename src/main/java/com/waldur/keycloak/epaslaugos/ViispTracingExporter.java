@@ -0,0 +1,31 @@
+package com.waldur.keycloak.epaslaugos;
+
+/** Destination of the spans of VIISP logins. */
+public enum ViispTracingExporter {
+    /** Keycloak's tracer, exported as configured by the tracing-* server options. */
+    KEYCLOAK("keycloak"),
+    /** The most recent spans are kept in memory, for tests and diagnostics. */
+    MEMORY("memory"),
+    /** Spans are appended as JSON lines to a file. */
+    FILE("file"),
+    NONE("none");
+
+    private final String value;
+
+    ViispTracingExporter(String v) {
+        value = v;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public static ViispTracingExporter fromValue(String v) {
+        for (ViispTracingExporter c : ViispTracingExporter.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+}
@@ -0,0 +1,55 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends the SOAP messages of a {@link ViispXMLClient} to a VIISP auth service URL.
+ *
+ * <p>The default is the pooled {@link ViispHttpTransport} of the URL. {@link
+ * ViispInMemoryTransport} answers without a network, for tests and benchmarks of the signing and
+ * parsing pipeline. {@link ViispRecordingTransport} writes redacted exchanges of another transport
+ * to a file, which {@link ViispReplayTransport} serves back.
+ */
+public interface ViispTransport {
+
+    /**
+     * Posts a SOAP message of the phase, {@link ViispPhase#TICKET_HTTP} or AUTH_DATA_HTTP, to the
+     * URL; the future fails if no response was received.
+     */
+    CompletableFuture<HttpResponse<String>> postAsync(
+            String url, String soapMessage, ViispPhase phase);
+
+    /**
+     * The transport selected by the configuration of the identity provider. Recording and replay
+     * are refused unless they are enabled in the {@link ViispServerOptions}: the provider is still
+     * created, so it can be reconfigured, but its requests fail.
+     */
+    static ViispTransport forConfig(ViispIdentityProviderConfig config) {
+        ViispTransportMode mode = config.getTransportMode();
+        ViispServerOptions options = ViispServerOptions.get();
+        if (!options.isAllowed(mode)) {
+            return (url, soapMessage, phase) ->
+                    CompletableFuture.failedFuture(
+                            new IllegalStateException(
+                                    "VIISP transport '"
+                                            + mode.value()
+                                            + "' of identity provider "
+                                            + config.getAlias()
+                                            + " is not enabled on this server"));
+        }
+        ViispHttpTransport.Settings settings = ViispHttpTransport.Settings.fromConfig(config);
+        ViispTransport http =
+                (url, soapMessage, phase) ->
+                        ViispHttpTransport.forProvider(config, url, settings)
+                                .postAsync(url, soapMessage);
+        switch (mode) {
+            case RECORD:
+                return new ViispRecordingTransport(http, options.getTransportFile());
+            case REPLAY:
+                return ViispReplayTransport.forFile(options.getTransportFile(), true);
+            default:
+                return http;
+        }
+    }
+}
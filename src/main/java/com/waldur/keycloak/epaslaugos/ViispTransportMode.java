@@ -0,0 +1,30 @@
+package com.waldur.keycloak.epaslaugos;
+
+/** Transport of the VIISP SOAP calls of an identity provider. */
+public enum ViispTransportMode {
+    /** Pooled HTTP client per VIISP endpoint. */
+    HTTP("http"),
+    /** HTTP, with every exchange written redacted to the transport file. */
+    RECORD("record"),
+    /** Exchanges of the transport file are served back, with their recorded latency. */
+    REPLAY("replay");
+
+    private final String value;
+
+    ViispTransportMode(String v) {
+        value = v;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public static ViispTransportMode fromValue(String v) {
+        for (ViispTransportMode c : ViispTransportMode.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+}
@@ -0,0 +1,71 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.net.ssl.SSLSession;
+
+/** Response of a transport that doesn't use the HTTP client, i.e. from memory or a recording. */
+public final class ViispTransportResponse implements HttpResponse<String> {
+
+    private static final HttpHeaders HEADERS =
+            HttpHeaders.of(
+                    Map.of("content-type", List.of("text/xml; charset=utf-8")),
+                    (name, value) -> true);
+
+    private final URI uri;
+    private final int statusCode;
+    private final String body;
+
+    public ViispTransportResponse(String url, int statusCode, String body) {
+        this.uri = URI.create(url);
+        this.statusCode = statusCode;
+        this.body = body;
+    }
+
+    @Override
+    public int statusCode() {
+        return statusCode;
+    }
+
+    /** A POST of the URL; the message itself is not kept. */
+    @Override
+    public HttpRequest request() {
+        return HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.noBody()).build();
+    }
+
+    @Override
+    public Optional<HttpResponse<String>> previousResponse() {
+        return Optional.empty();
+    }
+
+    @Override
+    public HttpHeaders headers() {
+        return HEADERS;
+    }
+
+    @Override
+    public String body() {
+        return body;
+    }
+
+    @Override
+    public Optional<SSLSession> sslSession() {
+        return Optional.empty();
+    }
+
+    @Override
+    public URI uri() {
+        return uri;
+    }
+
+    @Override
+    public HttpClient.Version version() {
+        return HttpClient.Version.HTTP_1_1;
+    }
+}
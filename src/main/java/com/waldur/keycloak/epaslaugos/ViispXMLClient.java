@@ -1,42 +1,21 @@
 package com.waldur.keycloak.epaslaugos;
 
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
-import java.io.ByteArrayOutputStream;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
 import java.io.IOException;
-import java.io.StringReader;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.nio.charset.Charset;
-import java.security.KeyStore;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.util.*;
-import javax.xml.crypto.dsig.CanonicalizationMethod;
-import javax.xml.crypto.dsig.DigestMethod;
-import javax.xml.crypto.dsig.Reference;
-import javax.xml.crypto.dsig.SignatureMethod;
-import javax.xml.crypto.dsig.SignedInfo;
-import javax.xml.crypto.dsig.Transform;
-import javax.xml.crypto.dsig.XMLSignature;
-import javax.xml.crypto.dsig.XMLSignatureFactory;
-import javax.xml.crypto.dsig.dom.DOMSignContext;
-import javax.xml.crypto.dsig.keyinfo.KeyInfo;
-import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
-import javax.xml.crypto.dsig.keyinfo.KeyValue;
-import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
-import javax.xml.crypto.dsig.spec.ExcC14NParameterSpec;
-import javax.xml.crypto.dsig.spec.TransformParameterSpec;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import org.apache.commons.io.FileUtils;
 import org.apache.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,7 +23,6 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 public class ViispXMLClient {
@@ -52,100 +30,139 @@ public class ViispXMLClient {
     public static final String SIGNED_NODE_ID = "uniqueNodeId";
     public static final String TEST_PID = "VSID000000000113";
 
-    private static final XMLSignatureFactory XML_SIGNATURE_FACTORY =
-            XMLSignatureFactory.getInstance("DOM");
     private static final Logger LOG = LoggerFactory.getLogger(ViispXMLClient.class);
 
     private final ViispIdentityProviderConfig config;
-    private PrivateKey privateKey = null;
-    private PublicKey publicKey = null;
+    private final ViispMetrics metrics;
+    private final ViispTracing tracing;
+    private final ViispTransport transport;
+    private final ViispShadowParser shadowParser;
+
+    /** Pool of the CPU-bound stages, or null to run them on the calling thread. */
+    private final ViispCryptoExecutor crypto;
 
     public ViispXMLClient(ViispIdentityProviderConfig config) {
-        this.config = config;
-        try {
-            loadKeyStore();
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize VIISP XML client", e);
-        }
+        this(config, ViispMetrics.forProvider(null, config.getAlias()));
     }
 
-    private void loadKeyStore() throws Exception {
-        String keystorePath = config.getKeystorePath();
-        String keystorePassword = config.getKeystorePassword();
+    public ViispXMLClient(ViispIdentityProviderConfig config, ViispMetrics metrics) {
+        this(config, metrics, ViispTracing.noop());
+    }
 
-        // Use test keystore if no custom path provided
-        if (keystorePath == null || keystorePath.isEmpty()) {
-            keystorePath = "/keystore-test.jks";
-            keystorePassword = "viisp-test";
-        }
+    public ViispXMLClient(
+            ViispIdentityProviderConfig config, ViispMetrics metrics, ViispTracing tracing) {
+        this(config, metrics, tracing, ViispTransport.forConfig(config));
+    }
 
-        KeyStore keyStore = KeyStore.getInstance("JKS");
+    public ViispXMLClient(
+            ViispIdentityProviderConfig config,
+            ViispMetrics metrics,
+            ViispTracing tracing,
+            ViispTransport transport) {
+        this.config = config;
+        this.metrics = metrics;
+        this.tracing = tracing;
+        this.transport = transport;
+        this.shadowParser = ViispShadowParser.fromConfig(config, metrics);
+        this.crypto = ViispCryptoExecutor.forConfig(config);
+    }
 
-        if (keystorePath.startsWith("/")) {
-            // Load from classpath
-            LOG.info("Loading the keystore from {}", keystorePath);
-            keyStore.load(
-                    getClass().getResourceAsStream(keystorePath), keystorePassword.toCharArray());
-        } else {
-            // Load from file system
-            String keyStorePathFull = "/" + keystorePath;
-            LOG.info("Loading the keystore from {}", keyStorePathFull);
-            keyStore.load(
-                    FileUtils.openInputStream(FileUtils.getFile(keyStorePathFull)),
-                    keystorePassword.toCharArray());
-        }
+    private ViispKeyMaterial keyMaterial() {
+        return ViispKeyMaterialRegistry.forProvider(config);
+    }
 
-        for (Enumeration<String> e = keyStore.aliases(); e.hasMoreElements(); ) {
-            String alias = e.nextElement();
-            LOG.info("Checking keystore alias {}", alias);
-            if (keyStore.isKeyEntry(alias)) {
-                LOG.info("The alias {} has a key entry, loading it", alias);
+    public String sendAuthRequest(String authRequest, String authServiceURL)
+            throws IOException, InterruptedException {
+        return await(sendAuthRequestAsync(authRequest, List.of(authServiceURL)));
+    }
 
-                privateKey = (PrivateKey) keyStore.getKey(alias, keystorePassword.toCharArray());
-                if (privateKey != null) {
-                    LOG.info("The private key is loaded successfully");
-                }
+    public CompletableFuture<String> sendAuthRequestAsync(
+            String authRequest, String authServiceURL) {
+        return sendAuthRequestAsync(authRequest, List.of(authServiceURL));
+    }
 
-                X509Certificate cert = (X509Certificate) keyStore.getCertificate(alias);
-                if (cert != null) {
-                    LOG.info("The X509 cert is loaded successfully");
-                }
+    /**
+     * Sends the authentication request to one of the given equivalent URLs, hedged if enabled.
+     * Connection failures are retried on another URL: a duplicate ticket request only leaves an
+     * unused ticket behind.
+     */
+    public CompletableFuture<String> sendAuthRequestAsync(
+            String authRequest, List<String> authServiceURLs) {
+        Set<String> failed = ConcurrentHashMap.newKeySet();
+        ViispCircuitBreaker.Settings breakers = ViispCircuitBreaker.Settings.fromConfig(config);
+        Supplier<CompletableFuture<HttpResponse<String>>> attempt =
+                () -> {
+                    String url = ViispEndpointSelector.select(authServiceURLs, failed, breakers);
+                    LOG.info("Sending auth request to {}", url);
+                    String hedgeUrl =
+                            ViispEndpointSelector.select(authServiceURLs, Set.of(url), breakers);
+                    return hedgedExchange(authRequest, url, hedgeUrl)
+                            .whenComplete(
+                                    (response, error) -> {
+                                        if (error != null) {
+                                            failed.add(url);
+                                        }
+                                    });
+                };
+        // Retries run on another thread, keep them in the trace of the caller
+        return ViispRetryPolicy.fromConfig(config)
+                .execute(
+                        Context.current().wrapSupplier(attempt),
+                        ViispRetryPolicy::isConnectionFailure)
+                .thenApply(this::authResponseBody);
+    }
 
-                publicKey = cert.getPublicKey();
-                if (publicKey != null) {
-                    LOG.info("The public key is loaded successfully");
-                }
-                break;
-            }
-        }
+    public String sendAuthDataRequest(String authDataRequest, String authServiceURL)
+            throws IOException, InterruptedException {
+        return await(sendAuthDataRequestAsync(authDataRequest, List.of(authServiceURL)));
+    }
 
-        if (privateKey == null || publicKey == null) {
-            throw new RuntimeException("No valid key pair found in keystore");
-        }
+    public CompletableFuture<String> sendAuthDataRequestAsync(
+            String authDataRequest, String authServiceURL) {
+        return sendAuthDataRequestAsync(authDataRequest, List.of(authServiceURL));
     }
 
-    public String sendAuthRequest(String authRequest, String authServiceURL)
-            throws IOException, InterruptedException {
-        LOG.info("Sending auth request to {}", authServiceURL);
-        String authRequestBody =
-                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
-                        + "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">"
-                        + "<soap:Body>"
-                        + authRequest
-                        + "</soap:Body>"
-                        + "</soap:Envelope>";
-
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request =
-                HttpRequest.newBuilder()
-                        .uri(URI.create(authServiceURL))
-                        .header("Content-Type", "text/xml; charset=utf-8")
-                        .header("SOAPAction", "")
-                        .POST(HttpRequest.BodyPublishers.ofString(authRequestBody))
-                        .build();
-
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    /**
+     * Sends the authentication data request to one of the given equivalent URLs. It is only
+     * retried, on another URL, if it cannot have reached VIISP, as the ticket may be redeemed once.
+     */
+    public CompletableFuture<String> sendAuthDataRequestAsync(
+            String authDataRequest, List<String> authServiceURLs) {
+        Set<String> failed = ConcurrentHashMap.newKeySet();
+        ViispCircuitBreaker.Settings breakers = ViispCircuitBreaker.Settings.fromConfig(config);
+        Supplier<CompletableFuture<HttpResponse<String>>> attempt =
+                () -> {
+                    String url = ViispEndpointSelector.select(authServiceURLs, failed, breakers);
+                    LOG.info("Sending auth data request to {}", url);
+                    return exchangeAsync(ViispPhase.AUTH_DATA_HTTP, authDataRequest, url)
+                            .whenComplete(
+                                    (response, error) -> {
+                                        if (error != null) {
+                                            failed.add(url);
+                                        }
+                                    });
+                };
+        return ViispRetryPolicy.fromConfig(config)
+                .execute(Context.current().wrapSupplier(attempt), ViispRetryPolicy::isNotSent)
+                .thenApply(this::authDataResponseBody);
+    }
+
+    /**
+     * Sends a signed ticket request straight to the URL, without bulkhead, circuit breaker, retries
+     * or hedging, and returns the ticket. Used by {@link ViispEndpointProber}.
+     */
+    CompletableFuture<String> probeAsync(String callbackUrl, String authServiceURL) {
+        return callAsync(() -> buildAuthRequest(config.getServiceId(), callbackUrl, "probe"))
+                .thenCompose(
+                        authRequest ->
+                                transport.postAsync(
+                                        authServiceURL, soap(authRequest), ViispPhase.TICKET_HTTP))
+                .thenCompose(
+                        response ->
+                                callAsync(() -> parseTicketFromXml(authResponseBody(response))));
+    }
 
+    private String authResponseBody(HttpResponse<String> response) {
         LOG.info("Auth response status: {}", response.statusCode());
 
         if (response.statusCode() != HttpStatus.SC_OK) {
@@ -157,166 +174,529 @@ public class ViispXMLClient {
         return response.body();
     }
 
-    public String sendAuthDataRequest(String authDataRequest, String authServiceURL)
-            throws IOException, InterruptedException {
-        LOG.info("Sending auth data request to {}", authServiceURL);
-        String authDataRequestBody =
-                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
-                        + "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">"
-                        + "<soap:Body>"
-                        + authDataRequest
-                        + "</soap:Body>"
-                        + "</soap:Envelope>";
-
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request =
-                HttpRequest.newBuilder()
-                        .uri(URI.create(authServiceURL))
-                        .header("Content-Type", "text/xml; charset=utf-8")
-                        .header("SOAPAction", "")
-                        .POST(HttpRequest.BodyPublishers.ofString(authDataRequestBody))
-                        .build();
-
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-
+    private String authDataResponseBody(HttpResponse<String> response) {
         LOG.info("Auth data response status: {}", response.statusCode());
         return response.body();
     }
 
-    private String buildAuthRequest(String serviceId, String callbackUrl, String customData)
+    /**
+     * Posts the ticket request and, if no response arrived within the configured percentile of
+     * recent ticket latencies, posts it a second time to the hedge URL. The first response wins;
+     * the exchange only fails if both requests failed, with the error of the first one.
+     */
+    private CompletableFuture<HttpResponse<String>> hedgedExchange(
+            String payload, String authServiceURL, String hedgeURL) {
+        ViispLatencyTracker latencies = ViispLatencyTracker.forUrl(authServiceURL);
+        CompletableFuture<HttpResponse<String>> primary =
+                trackedExchange(payload, authServiceURL, latencies);
+        Duration delay = hedgeDelay(latencies);
+        if (delay == null) {
+            return primary;
+        }
+
+        // The hedge is sent from the timer thread, in the trace of the caller
+        CompletableFuture<Void> timer =
+                CompletableFuture.runAsync(
+                        () -> {},
+                        Context.current()
+                                .wrap(
+                                        CompletableFuture.delayedExecutor(
+                                                delay.toNanos(), TimeUnit.NANOSECONDS)));
+        // No hedge once the primary request completed, whatever the outcome
+        primary.whenComplete((response, error) -> timer.cancel(false));
+        CompletableFuture<HttpResponse<String>> hedge =
+                timer.thenCompose(
+                        ignored -> {
+                            LOG.info(
+                                    "No VIISP ticket response after {} ms, sending a hedged request",
+                                    delay.toMillis());
+                            return trackedExchange(
+                                    payload, hedgeURL, ViispLatencyTracker.forUrl(hedgeURL));
+                        });
+
+        CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+        primary.whenComplete(
+                (response, error) -> {
+                    if (error == null) {
+                        result.complete(response);
+                    } else {
+                        hedge.whenComplete(
+                                (hedgeResponse, hedgeError) -> {
+                                    if (hedgeError == null) {
+                                        result.complete(hedgeResponse);
+                                    } else {
+                                        result.completeExceptionally(error);
+                                    }
+                                });
+                    }
+                });
+        hedge.thenAccept(result::complete);
+        return result;
+    }
+
+    private Duration hedgeDelay(ViispLatencyTracker latencies) {
+        int percentile = config.getTicketHedgePercentile();
+        if (percentile <= 0) {
+            return null;
+        }
+        Duration observed = latencies.percentile(percentile);
+        if (observed == null) {
+            // Not enough samples yet to know what a slow request is
+            return null;
+        }
+        Duration minimum = Duration.ofMillis(config.getTicketHedgeMinDelayMs());
+        return observed.compareTo(minimum) > 0 ? observed : minimum;
+    }
+
+    private CompletableFuture<HttpResponse<String>> trackedExchange(
+            String payload, String authServiceURL, ViispLatencyTracker latencies) {
+        long start = System.nanoTime();
+        return exchangeAsync(ViispPhase.TICKET_HTTP, payload, authServiceURL)
+                .whenComplete(
+                        (response, error) -> {
+                            if (error == null) {
+                                latencies.record(System.nanoTime() - start);
+                            }
+                        });
+    }
+
+    /** Posts the payload through the bulkhead of this provider and the breaker of the URL. */
+    private CompletableFuture<HttpResponse<String>> exchangeAsync(
+            ViispPhase phase, String payload, String authServiceURL) {
+        ViispBulkhead bulkhead;
+        ViispCircuitBreaker breaker;
+        try {
+            if (phase == ViispPhase.TICKET_HTTP && ViispEndpointProber.isDown(authServiceURL)) {
+                // Don't send the user to VIISP through an endpoint known to be down
+                throw new ViispServiceUnavailableException(
+                        String.format(
+                                "VIISP auth service %s is failing its health probes",
+                                authServiceURL));
+            }
+            bulkhead = acquireBulkhead();
+            try {
+                breaker = acquireCircuitBreaker(authServiceURL);
+            } catch (ViispServiceUnavailableException e) {
+                if (bulkhead != null) {
+                    bulkhead.release();
+                }
+                throw e;
+            }
+        } catch (ViispServiceUnavailableException e) {
+            metrics.recordDuration(phase, ViispMetrics.OUTCOME_REJECTED, 0);
+            Span rejected = tracing.startPhase(phase);
+            rejected.setAttribute(ViispTracing.URL, authServiceURL);
+            ViispTracing.error(rejected, e);
+            rejected.end();
+            ViispFlightEvents.HttpExchange event = new ViispFlightEvents.HttpExchange();
+            if (event.shouldCommit()) {
+                event.idp = config.getAlias();
+                event.outcome = ViispMetrics.OUTCOME_REJECTED;
+                event.phase = phase.value();
+                event.endpoint = authServiceURL;
+                event.requestLength = payload.length();
+                event.commit();
+            }
+            return CompletableFuture.failedFuture(e);
+        }
+
+        Span span = tracing.startPhase(phase);
+        span.setAttribute(ViispTracing.URL, authServiceURL);
+        ViispFlightEvents.HttpExchange event = new ViispFlightEvents.HttpExchange();
+        event.begin();
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<String>> exchange;
+        try {
+            exchange = transport.postAsync(authServiceURL, soap(payload), phase);
+        } catch (RuntimeException e) {
+            // Invalid URL or scheme: fail like a call that was sent, releasing the permits
+            exchange = CompletableFuture.failedFuture(e);
+        }
+        return exchange.whenComplete(
+                (response, error) -> {
+                    long duration = System.nanoTime() - start;
+                    boolean failed =
+                            error != null
+                                    || response.statusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+                    if (error != null) {
+                        breaker.onFailure();
+                    } else {
+                        recordOutcome(breaker, response, duration);
+                    }
+                    ViispEndpointSelector.record(authServiceURL, duration, failed);
+                    metrics.recordDuration(
+                            phase,
+                            failed ? ViispMetrics.OUTCOME_FAILURE : ViispMetrics.OUTCOME_SUCCESS,
+                            duration);
+                    if (bulkhead != null) {
+                        bulkhead.release();
+                    }
+                    if (error != null) {
+                        ViispTracing.error(span, ViispRetryPolicy.unwrap(error));
+                    } else {
+                        span.setAttribute(ViispTracing.STATUS_CODE, (long) response.statusCode());
+                        if (failed) {
+                            span.setStatus(StatusCode.ERROR, "HTTP " + response.statusCode());
+                        }
+                    }
+                    span.end();
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.idp = config.getAlias();
+                        event.outcome =
+                                failed
+                                        ? ViispMetrics.OUTCOME_FAILURE
+                                        : ViispMetrics.OUTCOME_SUCCESS;
+                        event.phase = phase.value();
+                        event.endpoint = authServiceURL;
+                        event.requestLength = payload.length();
+                        if (response != null) {
+                            event.statusCode = response.statusCode();
+                            event.responseLength = response.body().length();
+                        }
+                        event.commit();
+                    }
+                });
+    }
+
+    private ViispBulkhead acquireBulkhead() {
+        ViispBulkhead bulkhead = ViispBulkhead.forProvider(config);
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            throw new ViispServiceUnavailableException(
+                    String.format(
+                            "Too many concurrent VIISP requests for identity provider %s (limit %d)",
+                            config.getAlias(), bulkhead.getMaxConcurrentCalls()));
+        }
+        return bulkhead;
+    }
+
+    private ViispCircuitBreaker acquireCircuitBreaker(String authServiceURL) {
+        ViispCircuitBreaker breaker =
+                ViispCircuitBreaker.forUrl(
+                        authServiceURL, ViispCircuitBreaker.Settings.fromConfig(config));
+        if (!breaker.tryAcquirePermission()) {
+            throw new ViispServiceUnavailableException(
+                    String.format(
+                            "VIISP auth service %s is failing, calls are suspended by the circuit breaker",
+                            authServiceURL));
+        }
+        return breaker;
+    }
+
+    private static void recordOutcome(
+            ViispCircuitBreaker breaker, HttpResponse<String> response, long durationNanos) {
+        if (response.statusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            breaker.onFailure();
+        } else {
+            breaker.onSuccess(durationNanos);
+        }
+    }
+
+    private static String soap(String payload) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<soap:Body>"
+                + payload
+                + "</soap:Body>"
+                + "</soap:Envelope>";
+    }
+
+    /**
+     * Builds the signed authentication request. Only its MARSHAL and SIGN phases are timed, so the
+     * request building is not counted twice.
+     */
+    String buildAuthRequest(String serviceId, String callbackUrl, String customData)
             throws Exception {
-        ViispAuthenticationRequest request = new ViispAuthenticationRequest();
-        request.setId(SIGNED_NODE_ID);
-        request.setPid(serviceId != null ? serviceId : TEST_PID);
-        request.setPostbackUrl(callbackUrl);
-        request.setCustomData(customData);
-
-        // Set service target
-        request.setServiceTarget(ViispServiceTarget.CITIZEN);
-
-        // Add authentication providers
-        request.getAuthenticationProvider().add(ViispAuthenticationProvider.AUTH_LOGIN_PASS);
-        request.getAuthenticationProvider().add(ViispAuthenticationProvider.AUTH_LT_IDENTITY_CARD);
-        request.getAuthenticationProvider()
-                .add(ViispAuthenticationProvider.AUTH_LT_GOVERNMENT_EMPLOYEE_CARD);
-        request.getAuthenticationProvider().add(ViispAuthenticationProvider.AUTH_LT_BANK);
-        request.getAuthenticationProvider().add(ViispAuthenticationProvider.AUTH_EIDAS);
-        request.getAuthenticationProvider()
-                .add(ViispAuthenticationProvider.AUTH_SIGNATURE_PROVIDER);
-        request.getAuthenticationProvider()
-                .add(ViispAuthenticationProvider.AUTH_ILTU_IDENTITY_CARD);
-
-        // Add authentication attributes
-        request.getAuthenticationAttribute().add(ViispAuthenticationAttribute.LT_PERSONAL_CODE);
-        request.getAuthenticationAttribute().add(ViispAuthenticationAttribute.LT_COMPANY_CODE);
-        request.getAuthenticationAttribute()
-                .add(ViispAuthenticationAttribute.LT_GOVERNMENT_EMPLOYEE_CODE);
-        request.getAuthenticationAttribute().add(ViispAuthenticationAttribute.EIDAS_EID);
-        request.getAuthenticationAttribute().add(ViispAuthenticationAttribute.LOGIN);
-        request.getAuthenticationAttribute().add(ViispAuthenticationAttribute.ILTU_PERSONAL_CODE);
-
-        // Add user information requests
-        request.getUserInformation().add(ViispUserInformation.ID);
-        request.getUserInformation().add(ViispUserInformation.FIRST_NAME);
-        request.getUserInformation().add(ViispUserInformation.LAST_NAME);
-        request.getUserInformation().add(ViispUserInformation.COMPANY_NAME);
-        request.getUserInformation().add(ViispUserInformation.ADDRESS);
-        request.getUserInformation().add(ViispUserInformation.EMAIL);
-        request.getUserInformation().add(ViispUserInformation.PHONE_NUMBER);
-        request.getUserInformation().add(ViispUserInformation.BIRTHDAY);
-        request.getUserInformation().add(ViispUserInformation.COMPANY_NAME);
-        request.getUserInformation().add(ViispUserInformation.NATIONALITY);
-        request.getUserInformation().add(ViispUserInformation.PROXY_TYPE);
-        request.getUserInformation().add(ViispUserInformation.PROXY_SOURCE);
-
-        // Add proxy authentication attributes
-        request.getProxyAuthenticationAttribute()
-                .add(ViispAuthenticationAttribute.LT_PERSONAL_CODE);
-        request.getProxyAuthenticationAttribute().add(ViispAuthenticationAttribute.LT_COMPANY_CODE);
-        request.getProxyAuthenticationAttribute()
-                .add(ViispAuthenticationAttribute.LT_GOVERNMENT_EMPLOYEE_CODE);
-        request.getProxyAuthenticationAttribute().add(ViispAuthenticationAttribute.EIDAS_EID);
-        request.getProxyAuthenticationAttribute().add(ViispAuthenticationAttribute.LOGIN);
-        request.getProxyAuthenticationAttribute()
-                .add(ViispAuthenticationAttribute.ILTU_PERSONAL_CODE);
-
-        request.getProxyUserInformation().add(ViispUserInformation.ID);
-        request.getUserInformation().add(ViispUserInformation.FIRST_NAME);
-        request.getUserInformation().add(ViispUserInformation.LAST_NAME);
-        request.getUserInformation().add(ViispUserInformation.ADDRESS);
-        request.getUserInformation().add(ViispUserInformation.EMAIL);
-        request.getUserInformation().add(ViispUserInformation.PHONE_NUMBER);
-        request.getUserInformation().add(ViispUserInformation.BIRTHDAY);
-        request.getUserInformation().add(ViispUserInformation.NATIONALITY);
-
-        Document doc = (Document) marshal(request);
+        ViispAuthenticationRequestTemplate template =
+                ViispAuthenticationRequestTemplate.forService(
+                        serviceId != null ? serviceId : TEST_PID, ViispServiceTarget.CITIZEN);
+        ViispKeyMaterial keyMaterial = keyMaterial();
+        ViispTemplateSigner signer =
+                config.getRequestSigner() == ViispRequestSigner.TEMPLATE
+                        ? template.signer(
+                                keyMaterial,
+                                ViispXmlSigner.Algorithms.fromConfig(config, keyMaterial))
+                        : null;
+        if (signer != null && signer.accepts(callbackUrl, customData)) {
+            return timed(ViispPhase.SIGN, () -> signer.sign(callbackUrl, customData));
+        }
+        Document doc =
+                timed(ViispPhase.MARSHAL, () -> template.newDocument(callbackUrl, customData));
         setIdAttribute(doc.getChildNodes().item(0));
-        return getSignedXml(doc.getFirstChild(), "#" + request.getId());
+        return timed(
+                ViispPhase.SIGN, () -> getSignedXml(doc.getFirstChild(), "#" + SIGNED_NODE_ID));
     }
 
-    private String buildAuthDataRequest(String ticket) throws Exception {
+    /** Builds the signed authentication data request, timing its MARSHAL and SIGN phases. */
+    String buildAuthDataRequest(String ticket) throws Exception {
         ViispAuthenticationDataRequest dataRequest = new ViispAuthenticationDataRequest();
         dataRequest.setId(SIGNED_NODE_ID);
         dataRequest.setPid(config.getServiceId() != null ? config.getServiceId() : TEST_PID);
         dataRequest.setIncludeSourceData(true);
         dataRequest.setTicket(ticket);
 
-        Document doc = (Document) marshal(dataRequest);
+        Document doc = timed(ViispPhase.MARSHAL, () -> ViispXmlMarshaller.marshal(dataRequest));
         setIdAttribute(doc.getChildNodes().item(0));
+        return timed(
+                ViispPhase.SIGN,
+                () -> getSignedXml(doc.getFirstChild(), "#" + dataRequest.getId()));
+    }
 
-        return getSignedXml(doc.getFirstChild(), "#" + dataRequest.getId());
+    private <T> T timed(ViispPhase phase, Callable<T> call) throws Exception {
+        long start = ViispMetrics.start();
+        String outcome = ViispMetrics.OUTCOME_FAILURE;
+        Span span = tracing.startPhase(phase);
+        ViispFlightEvents.PhaseEvent event = ViispFlightEvents.forPhase(phase);
+        if (event != null) {
+            event.begin();
+        }
+        T result = null;
+        try (Scope scope = span.makeCurrent()) {
+            result = call.call();
+            outcome = ViispMetrics.OUTCOME_SUCCESS;
+            return result;
+        } catch (Exception e) {
+            ViispTracing.error(span, e);
+            throw e;
+        } finally {
+            metrics.record(phase, outcome, start);
+            span.end();
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.idp = config.getAlias();
+                    event.outcome = outcome;
+                    event.setResult(result);
+                    event.commit();
+                }
+            }
+        }
     }
 
     public String requestAuthenticationTicket(
             String callbackUrl, String serviceId, String authServiceURL, String customData)
             throws Exception {
-        String authRequest = buildAuthRequest(serviceId, callbackUrl, customData);
-        String ticketData = sendAuthRequest(authRequest, authServiceURL);
-        return parseTicketFromXml(ticketData);
+        return requestAuthenticationTicket(
+                callbackUrl, serviceId, List.of(authServiceURL), customData);
+    }
+
+    /** Requests a ticket from one of several equivalent auth service URLs. */
+    public String requestAuthenticationTicket(
+            String callbackUrl, String serviceId, List<String> authServiceURLs, String customData)
+            throws Exception {
+        String authRequest =
+                stage(
+                        ViispPhase.REQUEST_BUILD,
+                        () -> buildAuthRequest(serviceId, callbackUrl, customData));
+        String ticketData = await(sendAuthRequestAsync(authRequest, authServiceURLs));
+        return stage(ViispPhase.RESPONSE_PARSE, () -> parseTicket(ticketData));
     }
 
     public ViispUserInfo getUserInfo(String ticket, String authServiceURL) throws Exception {
-        String authDataRequest = buildAuthDataRequest(ticket);
-        LOG.info("Auth data request content: {}", authDataRequest);
-        String authDataResponse = sendAuthDataRequest(authDataRequest, authServiceURL);
-        LOG.info("Auth data response content: {}", authDataResponse);
-        return parseUserDataFromXml(authDataResponse);
+        return getUserInfo(ticket, List.of(authServiceURL));
+    }
+
+    /** Retrieves the user data from one of several equivalent auth service URLs. */
+    public ViispUserInfo getUserInfo(String ticket, List<String> authServiceURLs) throws Exception {
+        String authDataRequest =
+                stage(ViispPhase.REQUEST_BUILD, () -> buildAuthDataRequest(ticket));
+        // Only the sizes are logged, the response carries the personal data of the user
+        LOG.debug("Auth data request built, {} characters", authDataRequest.length());
+        String authDataResponse = await(sendAuthDataRequestAsync(authDataRequest, authServiceURLs));
+        LOG.debug("Auth data response received, {} characters", authDataResponse.length());
+        return stage(ViispPhase.RESPONSE_PARSE, () -> parseUserDataFromXml(authDataResponse));
     }
 
-    private Node marshal(Object data) throws Exception {
-        LOG.info("Marshalling the object of class {}", data.getClass().getName());
+    /**
+     * Non-blocking variant of {@link #requestAuthenticationTicket}. The request is built and signed
+     * on the calling thread, the response is parsed once it arrives.
+     */
+    public CompletableFuture<String> requestAuthenticationTicketAsync(
+            String callbackUrl, String serviceId, String authServiceURL, String customData) {
+        return requestAuthenticationTicketAsync(
+                callbackUrl, serviceId, List.of(authServiceURL), customData);
+    }
 
-        XmlMapper xmlMapper = new XmlMapper();
-        String xmlString = xmlMapper.writeValueAsString(data);
+    public CompletableFuture<String> requestAuthenticationTicketAsync(
+            String callbackUrl, String serviceId, List<String> authServiceURLs, String customData) {
+        return stageAsync(
+                        ViispPhase.REQUEST_BUILD,
+                        () -> buildAuthRequest(serviceId, callbackUrl, customData))
+                .thenCompose(authRequest -> sendAuthRequestAsync(authRequest, authServiceURLs))
+                .thenCompose(
+                        ticketData ->
+                                stageAsync(
+                                        ViispPhase.RESPONSE_PARSE, () -> parseTicket(ticketData)));
+    }
 
-        // Parse the XML string back to DOM Document
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document document = builder.parse(new InputSource(new StringReader(xmlString)));
+    /**
+     * Non-blocking variant of {@link #getUserInfo}. The request is built and signed on the calling
+     * thread, the response is parsed once it arrives.
+     */
+    public CompletableFuture<ViispUserInfo> getUserInfoAsync(String ticket, String authServiceURL) {
+        return getUserInfoAsync(ticket, List.of(authServiceURL));
+    }
+
+    public CompletableFuture<ViispUserInfo> getUserInfoAsync(
+            String ticket, List<String> authServiceURLs) {
+        return stageAsync(ViispPhase.REQUEST_BUILD, () -> buildAuthDataRequest(ticket))
+                .thenCompose(
+                        authDataRequest -> {
+                            LOG.debug(
+                                    "Auth data request built, {} characters",
+                                    authDataRequest.length());
+                            return sendAuthDataRequestAsync(authDataRequest, authServiceURLs);
+                        })
+                .thenCompose(
+                        authDataResponse -> {
+                            LOG.debug(
+                                    "Auth data response received, {} characters",
+                                    authDataResponse.length());
+                            return stageAsync(
+                                    ViispPhase.RESPONSE_PARSE,
+                                    () -> parseUserDataFromXml(authDataResponse));
+                        });
+    }
 
-        // Add namespace declarations to the root element
-        Element rootElement = document.getDocumentElement();
-        rootElement.setAttributeNS(
-                "http://www.w3.org/2000/xmlns/", "xmlns:ns2", "http://www.w3.org/2000/09/xmldsig#");
+    /** Waits for the future, rethrowing the failure of the call itself. */
+    private static <T> T await(CompletableFuture<T> future)
+            throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = ViispRetryPolicy.unwrap(e);
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException(cause);
+        }
+    }
 
-        rootElement.setAttributeNS(
-                "http://www.w3.org/2000/xmlns/",
-                "xmlns:ns3",
-                "http://www.w3.org/2001/10/xml-exc-c14n#");
-        return document;
+    /** Runs a CPU-bound stage on the crypto executor if one is configured, else right here. */
+    private <T> T stage(ViispPhase phase, Callable<T> stage) throws Exception {
+        return crypto != null ? await(crypto.submit(phase, stage)) : stage.call();
     }
 
-    private static String parseTicketFromXml(String xmlContent)
-            throws ParserConfigurationException, IOException, SAXException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
+    private <T> CompletableFuture<T> stageAsync(ViispPhase phase, Callable<T> stage) {
+        return crypto != null ? crypto.submit(phase, stage) : callAsync(stage);
+    }
 
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document document = builder.parse(new InputSource(new StringReader(xmlContent)));
+    private static <T> CompletableFuture<T> callAsync(Callable<T> stage) {
+        try {
+            return CompletableFuture.completedFuture(stage.call());
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
+    ViispUserInfo parseUserDataFromXml(String xmlContent) throws Exception {
+        long start = ViispMetrics.start();
+        Span span = tracing.startPhase(ViispPhase.RESPONSE_PARSE);
+        ViispFlightEvents.Parse event = new ViispFlightEvents.Parse();
+        event.begin();
+        boolean verify = config.getResponseVerification() != ViispResponseVerification.OFF;
+        // A verified response is read from the DOM its signature was checked on
+        ViispResponseParser parser = verify ? ViispResponseParser.DOM : config.getResponseParser();
+        ViispUserInfo userInfo;
+        long parseNanos;
+        try {
+            long parseStart = System.nanoTime();
+            userInfo =
+                    verify
+                            ? userDataFrom(verifiedResponse(ViispXmlSupport.parse(xmlContent)))
+                            : parseUserData(parser, xmlContent);
+            parseNanos = System.nanoTime() - parseStart;
+        } catch (Exception e) {
+            metrics.record(ViispPhase.RESPONSE_PARSE, ViispMetrics.OUTCOME_FAILURE, start);
+            ViispTracing.error(span, e);
+            span.end();
+            commitParse(event, parser, xmlContent, ViispMetrics.OUTCOME_FAILURE, null);
+            throw e;
+        }
+        metrics.record(ViispPhase.RESPONSE_PARSE, ViispMetrics.OUTCOME_SUCCESS, start);
+        if (userInfo.getAuthProvider() != null) {
+            span.setAttribute(ViispTracing.AUTH_PROVIDER, userInfo.getAuthProvider());
+        }
+        span.end();
+        commitParse(
+                event,
+                parser,
+                xmlContent,
+                ViispMetrics.OUTCOME_SUCCESS,
+                userInfo.getAuthProvider());
+        if (shadowParser.sample()) {
+            shadowParser.compareAsync(xmlContent, userInfo, parseNanos);
+        }
+        return userInfo;
+    }
+
+    static ViispUserInfo parseUserData(ViispResponseParser parser, String xmlContent)
+            throws Exception {
+        if (parser == ViispResponseParser.DOM) {
+            return parseUserDataFromDom(xmlContent);
+        }
+        return ViispStreamingUserDataParser.parse(xmlContent);
+    }
+
+    private void commitParse(
+            ViispFlightEvents.Parse event,
+            ViispResponseParser parser,
+            String xmlContent,
+            String outcome,
+            String authProvider) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.idp = config.getAlias();
+            event.outcome = outcome;
+            event.parser = parser.value();
+            event.responseLength = xmlContent != null ? xmlContent.length() : 0;
+            event.authProvider = authProvider;
+            event.commit();
+        }
+    }
+
+    /** Reads the ticket of a response, verifying its signature if verification is enabled. */
+    String parseTicket(String xmlContent) throws Exception {
+        if (config.getResponseVerification() == ViispResponseVerification.OFF) {
+            return parseTicketFromXml(xmlContent);
+        }
+        return ticketFrom(verifiedResponse(ViispXmlSupport.parse(xmlContent)));
+    }
+
+    /**
+     * Verifies the signature of a parsed response and returns the element to read it from: the
+     * signed element, or the whole document if the signature is not enforced and not valid.
+     */
+    private Element verifiedResponse(Document document) throws Exception {
+        ViispResponseVerifier verifier = ViispResponseVerifier.forConfig(config);
+        try {
+            return timed(ViispPhase.RESPONSE_VERIFY, () -> verifier.verify(document));
+        } catch (XMLSignatureException e) {
+            if (config.getResponseVerification() == ViispResponseVerification.ENFORCE) {
+                throw e;
+            }
+            LOG.warn("Using a VIISP response with an invalid signature: {}", e.getMessage());
+            return document.getDocumentElement();
+        }
+    }
+
+    static String parseTicketFromXml(String xmlContent)
+            throws ParserConfigurationException, IOException, SAXException {
+        return ticketFrom(ViispXmlSupport.parse(xmlContent).getDocumentElement());
+    }
+
+    private static String ticketFrom(Element response) {
         NodeList ticketNodes =
-                document.getElementsByTagNameNS(
+                response.getElementsByTagNameNS(
                         "http://www.epaslaugos.lt/services/authentication", "ticket");
         if (ticketNodes.getLength() > 0) {
             return ticketNodes.item(0).getTextContent().trim();
@@ -325,15 +705,15 @@ public class ViispXMLClient {
         return null;
     }
 
-    private static ViispUserInfo parseUserDataFromXml(String xmlContent)
+    static ViispUserInfo parseUserDataFromDom(String xmlContent)
             throws ParserConfigurationException, IOException, SAXException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document document = builder.parse(new InputSource(new StringReader(xmlContent)));
+        return userDataFrom(ViispXmlSupport.parse(xmlContent).getDocumentElement());
+    }
 
+    /** Reads the user data from the elements of a response. */
+    private static ViispUserInfo userDataFrom(Element response) {
         NodeList authenticationProviderNodes =
-                document.getElementsByTagNameNS(
+                response.getElementsByTagNameNS(
                         "http://www.epaslaugos.lt/services/authentication",
                         "authenticationProvider");
 
@@ -347,7 +727,7 @@ public class ViispXMLClient {
 
         // Extract authentication attributes (lt-personal-code)
         NodeList authAttributeNodes =
-                document.getElementsByTagNameNS(
+                response.getElementsByTagNameNS(
                         "http://www.epaslaugos.lt/services/authentication",
                         "authenticationAttribute");
 
@@ -381,7 +761,7 @@ public class ViispXMLClient {
 
         // Extract user information (firstName, lastName, email)
         NodeList userInformationNodes =
-                document.getElementsByTagNameNS(
+                response.getElementsByTagNameNS(
                         "http://www.epaslaugos.lt/services/authentication", "userInformation");
 
         for (int i = 0; i < userInformationNodes.getLength(); i++) {
@@ -451,51 +831,18 @@ public class ViispXMLClient {
         return userInfo;
     }
 
-    private String getSignedXml(Node node, String referenceUri) throws Exception {
+    String getSignedXml(Node node, String referenceUri) throws Exception {
         signNode(node, referenceUri);
-
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer trans = tf.newTransformer();
-
-        // Omit the XML declaration
-        trans.setOutputProperty(javax.xml.transform.OutputKeys.OMIT_XML_DECLARATION, "yes");
-
-        final ByteArrayOutputStream output = new ByteArrayOutputStream();
-        trans.transform(new DOMSource(node), new StreamResult(output));
-
-        return new String(output.toByteArray(), Charset.forName("UTF-8"));
+        return ViispXmlSupport.serialize(node);
     }
 
-    private void signNode(Node node, String uri) throws Exception {
-        DOMSignContext dsc = new DOMSignContext(privateKey, node);
-        XMLSignatureFactory fac = XML_SIGNATURE_FACTORY;
-
-        List<String> prefixList = new ArrayList<>();
-        prefixList.add(node.getPrefix());
-        C14NMethodParameterSpec spec = new ExcC14NParameterSpec(prefixList);
-        List<Transform> transforms = new ArrayList<>();
-        transforms.add(
-                fac.newTransform(CanonicalizationMethod.ENVELOPED, (TransformParameterSpec) null));
-        transforms.add(fac.newTransform(CanonicalizationMethod.EXCLUSIVE, spec));
-
-        Reference ref =
-                fac.newReference(
-                        uri, fac.newDigestMethod(DigestMethod.SHA1, null), transforms, null, null);
-        SignedInfo si =
-                fac.newSignedInfo(
-                        fac.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE, spec),
-                        fac.newSignatureMethod(SignatureMethod.RSA_SHA1, null),
-                        Collections.singletonList(ref));
-
-        KeyInfoFactory kif = fac.getKeyInfoFactory();
-        KeyValue kv = kif.newKeyValue(publicKey);
-        KeyInfo ki = kif.newKeyInfo(Collections.singletonList(kv));
-
-        XMLSignature signature = fac.newXMLSignature(si, ki);
-        signature.sign(dsc);
+    void signNode(Node node, String uri) throws Exception {
+        ViispKeyMaterial keyMaterial = keyMaterial();
+        ViispXmlSigner.sign(
+                node, uri, keyMaterial, ViispXmlSigner.Algorithms.fromConfig(config, keyMaterial));
     }
 
-    private void setIdAttribute(Node node) {
+    void setIdAttribute(Node node) {
         Node idAttribute = node.getAttributes().getNamedItem("id");
         if (idAttribute != null) {
             ((Element) node).setIdAttribute("id", true);
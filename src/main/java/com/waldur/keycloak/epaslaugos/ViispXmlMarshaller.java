@@ -0,0 +1,109 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Writes the VIISP request models directly into a signable DOM document.
+ *
+ * <p>The produced tree is equivalent to serializing the Jackson XML annotated models and parsing
+ * the result back, without the intermediate string and the second XML pass.
+ */
+public final class ViispXmlMarshaller {
+
+    public static final String NAMESPACE = "http://www.epaslaugos.lt/services/authentication";
+
+    private static final String XMLNS_NAMESPACE = "http://www.w3.org/2000/xmlns/";
+    private static final String XMLDSIG_NAMESPACE = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String EXC_C14N_NAMESPACE = "http://www.w3.org/2001/10/xml-exc-c14n#";
+
+    private static final DOMImplementation DOM_IMPLEMENTATION = domImplementation();
+
+    private ViispXmlMarshaller() {}
+
+    public static Document marshal(ViispAuthenticationRequest request) {
+        Document document = newDocument("authenticationRequest", request.getId());
+        Element root = document.getDocumentElement();
+
+        appendElement(root, "pid", request.getPid());
+        appendElement(
+                root,
+                "serviceTarget",
+                request.getServiceTarget() != null ? request.getServiceTarget().value() : null);
+        for (ViispAuthenticationProvider provider : request.getAuthenticationProvider()) {
+            appendElement(root, "authenticationProvider", provider.value());
+        }
+        appendAttributes(root, "authenticationAttribute", request.getAuthenticationAttribute());
+        appendInformation(root, "userInformation", request.getUserInformation());
+        appendAttributes(
+                root, "proxyAuthenticationAttribute", request.getProxyAuthenticationAttribute());
+        appendInformation(root, "proxyUserInformation", request.getProxyUserInformation());
+        appendElement(root, "postbackUrl", request.getPostbackUrl());
+        appendElement(root, "customData", request.getCustomData());
+        return document;
+    }
+
+    public static Document marshal(ViispAuthenticationDataRequest request) {
+        Document document = newDocument("authenticationDataRequest", request.getId());
+        Element root = document.getDocumentElement();
+
+        appendElement(root, "pid", request.getPid());
+        appendElement(root, "ticket", request.getTicket());
+        appendElement(
+                root,
+                "includeSourceData",
+                request.isIncludeSourceData() != null
+                        ? request.isIncludeSourceData().toString()
+                        : null);
+        return document;
+    }
+
+    private static Document newDocument(String rootName, String id) {
+        Document document = DOM_IMPLEMENTATION.createDocument(NAMESPACE, rootName, null);
+        Element root = document.getDocumentElement();
+        root.setAttributeNS(XMLNS_NAMESPACE, "xmlns", NAMESPACE);
+        // Namespace declarations of the signature elements
+        root.setAttributeNS(XMLNS_NAMESPACE, "xmlns:ns2", XMLDSIG_NAMESPACE);
+        root.setAttributeNS(XMLNS_NAMESPACE, "xmlns:ns3", EXC_C14N_NAMESPACE);
+        if (id != null) {
+            root.setAttributeNS(null, "id", id);
+        }
+        return document;
+    }
+
+    private static void appendAttributes(
+            Element parent, String localName, List<ViispAuthenticationAttribute> attributes) {
+        for (ViispAuthenticationAttribute attribute : attributes) {
+            appendElement(parent, localName, attribute.value());
+        }
+    }
+
+    private static void appendInformation(
+            Element parent, String localName, List<ViispUserInformation> information) {
+        for (ViispUserInformation item : information) {
+            appendElement(parent, localName, item.value());
+        }
+    }
+
+    private static void appendElement(Element parent, String localName, String value) {
+        Element element = parent.getOwnerDocument().createElementNS(NAMESPACE, localName);
+        if (value != null) {
+            element.setTextContent(value);
+        }
+        parent.appendChild(element);
+    }
+
+    private static DOMImplementation domImplementation() {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().getDOMImplementation();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("No XML document builder available", e);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.security.KeyException;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.ExcC14NParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import org.w3c.dom.Node;
+
+/**
+ * Enveloped XML signature of VIISP requests.
+ *
+ * <p>Transform, canonicalization, digest and signature method objects are looked up through the
+ * provider framework and keep internal, thread-unsafe state (canonicalizers, {@link
+ * java.security.Signature} instances), so they are created once per thread and reused. The {@link
+ * KeyInfo} only depends on the public key and is precomputed per key in {@link ViispKeyMaterial}.
+ * References and SignedInfo carry the digest of one document and are created per signature.
+ *
+ * <p>Signature and digest algorithms are configured per identity provider, see {@link Algorithms};
+ * without configuration RSA keys sign with RSA-SHA1 and SHA-1, as VIISP expects.
+ */
+public final class ViispXmlSigner {
+
+    private static final XMLSignatureFactory XML_SIGNATURE_FACTORY =
+            XMLSignatureFactory.getInstance("DOM");
+
+    private static final ThreadLocal<Map<MethodsKey, SigningMethods>> SIGNING_METHODS =
+            ThreadLocal.withInitial(HashMap::new);
+
+    private ViispXmlSigner() {}
+
+    /**
+     * Signs the node with an enveloped signature over the given reference URI, with the default
+     * algorithms of the key.
+     */
+    public static void sign(Node node, String referenceUri, ViispKeyMaterial keyMaterial)
+            throws Exception {
+        sign(node, referenceUri, keyMaterial, Algorithms.forKey(keyMaterial), false);
+    }
+
+    /** Signs the node with an enveloped signature over the given reference URI. */
+    public static void sign(
+            Node node, String referenceUri, ViispKeyMaterial keyMaterial, Algorithms algorithms)
+            throws Exception {
+        sign(node, referenceUri, keyMaterial, algorithms, false);
+    }
+
+    /**
+     * Signs like {@link #sign(Node, String, ViispKeyMaterial)} and keeps the canonical forms of the
+     * signed node and of the SignedInfo, available through {@link Reference#getDigestInputStream()}
+     * and {@link SignedInfo#getCanonicalizedData()} of the returned signature.
+     */
+    static XMLSignature signRetainingCanonicalForms(
+            Node node, String referenceUri, ViispKeyMaterial keyMaterial, Algorithms algorithms)
+            throws Exception {
+        return sign(node, referenceUri, keyMaterial, algorithms, true);
+    }
+
+    private static XMLSignature sign(
+            Node node,
+            String referenceUri,
+            ViispKeyMaterial keyMaterial,
+            Algorithms algorithms,
+            boolean cacheReference)
+            throws Exception {
+        SigningMethods methods = signingMethods(node.getPrefix(), algorithms);
+        XMLSignatureFactory fac = XML_SIGNATURE_FACTORY;
+
+        Reference ref =
+                fac.newReference(
+                        referenceUri, methods.digestMethod, methods.newTransforms(), null, null);
+        SignedInfo si =
+                fac.newSignedInfo(
+                        methods.canonicalizationMethod,
+                        methods.signatureMethod,
+                        Collections.singletonList(ref));
+
+        XMLSignature signature = fac.newXMLSignature(si, keyMaterial.getKeyInfo());
+        DOMSignContext context = new DOMSignContext(keyMaterial.getPrivateKey(), node);
+        if (cacheReference) {
+            context.setProperty("javax.xml.crypto.dsig.cacheReference", Boolean.TRUE);
+        }
+        signature.sign(context);
+        return signature;
+    }
+
+    /** Creates the KeyInfo element content for a public key. */
+    public static KeyInfo newKeyInfo(PublicKey publicKey) throws KeyException {
+        KeyInfoFactory kif = XML_SIGNATURE_FACTORY.getKeyInfoFactory();
+        return kif.newKeyInfo(Collections.singletonList(kif.newKeyValue(publicKey)));
+    }
+
+    private static SigningMethods signingMethods(String prefix, Algorithms algorithms)
+            throws Exception {
+        Map<MethodsKey, SigningMethods> methods = SIGNING_METHODS.get();
+        MethodsKey key = new MethodsKey(prefix, algorithms);
+        SigningMethods result = methods.get(key);
+        if (result == null) {
+            result = new SigningMethods(prefix, algorithms);
+            methods.put(key, result);
+        }
+        return result;
+    }
+
+    /** Resolved signature and digest algorithms of a signature. */
+    public record Algorithms(ViispSignatureAlgorithm signature, ViispDigestAlgorithm digest) {
+
+        /** The configured algorithms, for the key of the keystore. */
+        public static Algorithms fromConfig(
+                ViispIdentityProviderConfig config, ViispKeyMaterial keyMaterial) {
+            return new Algorithms(
+                    config.getSignatureAlgorithm().forKey(keyMaterial.getPrivateKey()),
+                    config.getDigestAlgorithm());
+        }
+
+        /** The algorithms of the key when none are configured. */
+        public static Algorithms forKey(ViispKeyMaterial keyMaterial) {
+            return new Algorithms(
+                    ViispSignatureAlgorithm.AUTO.forKey(keyMaterial.getPrivateKey()),
+                    ViispDigestAlgorithm.SHA1);
+        }
+    }
+
+    private record MethodsKey(String prefix, Algorithms algorithms) {}
+
+    /**
+     * Signature building blocks of one thread, for the exclusive prefix list of one prefix and one
+     * pair of algorithms.
+     */
+    private static final class SigningMethods {
+
+        final C14NMethodParameterSpec spec;
+        final CanonicalizationMethod canonicalizationMethod;
+        final DigestMethod digestMethod;
+        final SignatureMethod signatureMethod;
+
+        SigningMethods(String prefix, Algorithms algorithms) throws Exception {
+            XMLSignatureFactory fac = XML_SIGNATURE_FACTORY;
+
+            this.spec = new ExcC14NParameterSpec(Collections.singletonList(prefix));
+            this.canonicalizationMethod =
+                    fac.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE, spec);
+            this.digestMethod = fac.newDigestMethod(algorithms.digest().uri(), null);
+            this.signatureMethod = fac.newSignatureMethod(algorithms.signature().uri(), null);
+        }
+
+        List<Transform> newTransforms() throws Exception {
+            XMLSignatureFactory fac = XML_SIGNATURE_FACTORY;
+            return List.of(
+                    fac.newTransform(
+                            CanonicalizationMethod.ENVELOPED, (TransformParameterSpec) null),
+                    fac.newTransform(CanonicalizationMethod.EXCLUSIVE, spec));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Cached XML parsing and serialization components.
+ *
+ * <p>Factories are looked up once per class loader; the thread-unsafe {@link DocumentBuilder} and
+ * {@link Transformer} instances are kept per thread and reused by consecutive requests.
+ */
+public final class ViispXmlSupport {
+
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = documentBuilderFactory();
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER =
+            ThreadLocal.withInitial(ViispXmlSupport::newDocumentBuilder);
+    private static final ThreadLocal<Transformer> TRANSFORMER =
+            ThreadLocal.withInitial(ViispXmlSupport::newTransformer);
+
+    private ViispXmlSupport() {}
+
+    /** Parses a string into a namespace-aware DOM document. */
+    public static Document parse(String xmlContent) throws IOException, SAXException {
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
+        builder.reset();
+        return builder.parse(new InputSource(new StringReader(xmlContent)));
+    }
+
+    /** Serializes a node to a string, without an XML declaration. */
+    public static String serialize(Node node) throws TransformerException {
+        Transformer transformer = TRANSFORMER.get();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(4096);
+        transformer.transform(new DOMSource(node), new StreamResult(output));
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    private static DocumentBuilderFactory documentBuilderFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory;
+    }
+
+    private static DocumentBuilder newDocumentBuilder() {
+        // Factories are not guaranteed to be thread-safe
+        synchronized (DOCUMENT_BUILDER_FACTORY) {
+            try {
+                return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException("No XML document builder available", e);
+            }
+        }
+    }
+
+    private static Transformer newTransformer() {
+        synchronized (TRANSFORMER_FACTORY) {
+            try {
+                Transformer transformer = TRANSFORMER_FACTORY.newTransformer();
+                // Omit the XML declaration
+                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                return transformer;
+            } catch (TransformerConfigurationException e) {
+                throw new IllegalStateException("No XML transformer available", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.time.Duration;
+import junit.framework.TestCase;
+
+/** Checks the sharing and state transitions of circuit breakers. */
+public class ViispCircuitBreakerTest extends TestCase {
+
+    private static final ViispCircuitBreaker.Settings SETTINGS =
+            new ViispCircuitBreaker.Settings(50, Duration.ofSeconds(10), Duration.ofMinutes(1), 4);
+
+    public void testProvidersWithOtherSettingsDoNotResetTheBreaker() {
+        String url = "https://breaker-settings.example.com/auth";
+        ViispCircuitBreaker breaker = ViispCircuitBreaker.forUrl(url, SETTINGS);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(breaker.tryAcquirePermission());
+            breaker.onFailure();
+        }
+        assertTrue(breaker.isOpen());
+
+        ViispCircuitBreaker.Settings other =
+                new ViispCircuitBreaker.Settings(
+                        80, Duration.ofSeconds(10), Duration.ofMinutes(1), 4);
+        ViispCircuitBreaker otherBreaker = ViispCircuitBreaker.forUrl(url, other);
+        assertNotSame(breaker, otherBreaker);
+        assertFalse(otherBreaker.isOpen());
+
+        assertSame(breaker, ViispCircuitBreaker.forUrl(url, SETTINGS));
+        assertSame(breaker, ViispCircuitBreaker.find(url, SETTINGS));
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+
+    public void testBreakerClosesAfterSuccessfulTrialCall() throws Exception {
+        ViispCircuitBreaker breaker =
+                ViispCircuitBreaker.forUrl(
+                        "https://breaker-trial.example.com/auth",
+                        new ViispCircuitBreaker.Settings(
+                                50, Duration.ofSeconds(10), Duration.ofMillis(1), 2));
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(ViispCircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(5);
+        assertTrue(breaker.tryAcquirePermission());
+        assertFalse(breaker.tryAcquirePermission());
+        breaker.onSuccess(0);
+        assertEquals(ViispCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
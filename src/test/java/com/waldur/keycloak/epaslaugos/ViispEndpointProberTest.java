@@ -0,0 +1,83 @@
+package com.waldur.keycloak.epaslaugos;
+
+import junit.framework.TestCase;
+
+/** Checks that identity providers only start and stop the probers they use. */
+public class ViispEndpointProberTest extends TestCase {
+
+    private static final String URL = "https://prober.invalid/services/auth";
+
+    public void testProvidersOnlyReleaseTheirOwnProbers() {
+        ViispIdentityProviderConfig first = config("prober-first", ViispProbeMode.CONNECT);
+        ViispIdentityProviderConfig second = config("prober-second", ViispProbeMode.CONNECT);
+        ViispIdentityProviderConfig none = config("prober-none", ViispProbeMode.NONE);
+        ViispEndpointProber.schedule(first, null);
+        ViispEndpointProber.schedule(second, null);
+        ViispEndpointProber prober = ViispEndpointProber.find(first, URL);
+        assertNotNull(prober);
+        assertSame(prober, ViispEndpointProber.find(second, URL));
+
+        ViispEndpointProber.schedule(none, null);
+        assertNull(ViispEndpointProber.find(none, URL));
+        assertSame(prober, ViispEndpointProber.find(first, URL));
+
+        ViispEndpointProber.schedule(config("prober-first", ViispProbeMode.NONE), null);
+        assertNull(ViispEndpointProber.find(first, URL));
+        assertSame(prober, ViispEndpointProber.find(second, URL));
+        assertTrue(ViispEndpointProber.all().contains(prober));
+
+        ViispEndpointProber.schedule(config("prober-second", ViispProbeMode.NONE), null);
+        assertFalse(ViispEndpointProber.all().contains(prober));
+    }
+
+    public void testProvidersWithOtherSettingsGetTheirOwnProber() {
+        ViispIdentityProviderConfig slow = config("prober-slow", ViispProbeMode.CONNECT);
+        ViispIdentityProviderConfig fast = config("prober-fast", ViispProbeMode.CONNECT);
+        fast.setProbeIntervalMs(30_000);
+        ViispEndpointProber.schedule(slow, null);
+        ViispEndpointProber.schedule(fast, null);
+        ViispEndpointProber slowProber = ViispEndpointProber.find(slow, URL);
+        ViispEndpointProber fastProber = ViispEndpointProber.find(fast, URL);
+        assertNotSame(slowProber, fastProber);
+
+        // Scheduling again, as every created provider does, keeps the probers
+        ViispEndpointProber.schedule(slow, null);
+        ViispEndpointProber.schedule(fast, null);
+        assertSame(slowProber, ViispEndpointProber.find(slow, URL));
+        assertSame(fastProber, ViispEndpointProber.find(fast, URL));
+
+        ViispEndpointProber.schedule(config("prober-slow", ViispProbeMode.NONE), null);
+        ViispEndpointProber.schedule(config("prober-fast", ViispProbeMode.NONE), null);
+    }
+
+    public void testTicketProbersPostBackToTheirOwnProvider() {
+        ViispIdentityProviderConfig a = config("prober-ticket-a", ViispProbeMode.TICKET);
+        ViispIdentityProviderConfig b = config("prober-ticket-b", ViispProbeMode.TICKET);
+        ViispEndpointProber.schedule(a, "https://kc.example.com/realms/a/broker/a/endpoint");
+        ViispEndpointProber.schedule(b, "https://kc.example.com/realms/b/broker/b/endpoint");
+        assertNotSame(ViispEndpointProber.find(a, URL), ViispEndpointProber.find(b, URL));
+
+        // Providers created outside of an HTTP request keep their ticket probers
+        ViispEndpointProber prober = ViispEndpointProber.find(a, URL);
+        ViispEndpointProber.schedule(a, null);
+        assertSame(prober, ViispEndpointProber.find(a, URL));
+
+        // but without a postback URL no new ticket probe can start
+        ViispIdentityProviderConfig c = config("prober-ticket-c", ViispProbeMode.TICKET);
+        ViispEndpointProber.schedule(c, null);
+        assertNull(ViispEndpointProber.find(c, URL));
+
+        ViispEndpointProber.schedule(config("prober-ticket-a", ViispProbeMode.NONE), null);
+        ViispEndpointProber.schedule(config("prober-ticket-b", ViispProbeMode.NONE), null);
+        assertFalse(ViispEndpointProber.all().contains(prober));
+    }
+
+    private static ViispIdentityProviderConfig config(String alias, ViispProbeMode mode) {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setAlias(alias);
+        config.setAuthServiceUrl(URL);
+        config.setProbeMode(mode);
+        config.setProbeIntervalMs(60_000);
+        return config;
+    }
+}
@@ -0,0 +1,45 @@
+package com.waldur.keycloak.epaslaugos;
+
+import junit.framework.TestCase;
+
+/** Checks which HTTP transports identity providers share and when they are shut down. */
+public class ViispHttpTransportTest extends TestCase {
+
+    private static final String URL = "https://transport.invalid/services/auth";
+
+    public void testChangedSettingsReplaceTheTransport() {
+        ViispIdentityProviderConfig a = config("transport-a", 4);
+        ViispIdentityProviderConfig b = config("transport-b", 4);
+        ViispHttpTransport.Settings settings = ViispHttpTransport.Settings.fromConfig(a);
+        ViispHttpTransport shared = ViispHttpTransport.forProvider(a, URL, settings);
+        assertSame(shared, ViispHttpTransport.forProvider(b, URL, settings));
+
+        ViispIdentityProviderConfig changed = config("transport-a", 8);
+        ViispHttpTransport.Settings changedSettings =
+                ViispHttpTransport.Settings.fromConfig(changed);
+        ViispHttpTransport own = ViispHttpTransport.forProvider(changed, URL, changedSettings);
+        assertNotSame(shared, own);
+        assertSame(shared, ViispHttpTransport.find(URL, settings));
+
+        // The last provider with the old settings moves too
+        ViispHttpTransport.forProvider(config("transport-b", 8), URL, changedSettings);
+        assertNull(ViispHttpTransport.find(URL, settings));
+        assertSame(own, ViispHttpTransport.find(URL, changedSettings));
+        assertFalse(ViispHttpTransport.all().contains(shared));
+    }
+
+    public void testThreadsAreAtLeastOne() {
+        assertEquals(1, ViispHttpTransport.Settings.fromConfig(config("threads", 0)).maxThreads());
+        assertEquals(
+                1, ViispHttpTransport.Settings.fromConfig(config("threads", -3)).maxThreads());
+        assertEquals(6, ViispHttpTransport.Settings.fromConfig(config("threads", 6)).maxThreads());
+    }
+
+    private static ViispIdentityProviderConfig config(String alias, int maxThreads) {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setAlias(alias);
+        config.setAuthServiceUrl(URL);
+        config.setHttpMaxThreads(maxThreads);
+        return config;
+    }
+}
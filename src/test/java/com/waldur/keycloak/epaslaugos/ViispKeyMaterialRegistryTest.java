@@ -0,0 +1,139 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import junit.framework.TestCase;
+
+/** Checks which key pair of a keystore with two of them signs, and when keystores are dropped. */
+public class ViispKeyMaterialRegistryTest extends TestCase {
+
+    private static final String PASSWORD = "viisp-test";
+
+    private Path file;
+    private String path;
+    private String firstAlias;
+    private String secondAlias;
+
+    @Override
+    protected void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        copyKey("/keystore-test.jks", "viisp-test", keyStore);
+        copyKey("/keystore-ec-test.jks", "viisp-ec-test", keyStore);
+        file = Files.createTempFile("viisp-rotation", ".jks");
+        try (OutputStream output = Files.newOutputStream(file)) {
+            keyStore.store(output, PASSWORD.toCharArray());
+        }
+        // File system keystore paths are given without the leading slash
+        path = file.toAbsolutePath().toString().substring(1);
+
+        KeyStore stored = KeyStore.getInstance("JKS");
+        try (InputStream input = Files.newInputStream(file)) {
+            stored.load(input, PASSWORD.toCharArray());
+        }
+        firstAlias = stored.aliases().nextElement();
+        secondAlias = firstAlias.equals("viisp-test") ? "viisp-ec-test" : "viisp-test";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    public void testFirstKeySignsWithoutRotation() {
+        assertEquals(firstAlias, ViispKeyMaterialRegistry.get(path, PASSWORD).getAlias());
+        assertEquals(firstAlias, ViispKeyMaterialRegistry.find(path, PASSWORD, null).getAlias());
+        assertNull(ViispKeyMaterialRegistry.findNext(path, PASSWORD, null));
+    }
+
+    public void testNextKeySignsFromItsActivation() {
+        Instant now = Instant.now();
+        ViispKeyMaterialRegistry.Rotation pending =
+                new ViispKeyMaterialRegistry.Rotation(secondAlias, now.plus(1, ChronoUnit.DAYS));
+        assertEquals(firstAlias, ViispKeyMaterialRegistry.get(path, PASSWORD, pending).getAlias());
+        assertEquals(
+                secondAlias, ViispKeyMaterialRegistry.findNext(path, PASSWORD, pending).getAlias());
+
+        ViispKeyMaterialRegistry.Rotation active =
+                new ViispKeyMaterialRegistry.Rotation(secondAlias, now.minusSeconds(1));
+        assertEquals(secondAlias, ViispKeyMaterialRegistry.get(path, PASSWORD, active).getAlias());
+        assertNull(ViispKeyMaterialRegistry.findNext(path, PASSWORD, active));
+
+        ViispKeyMaterialRegistry.Rotation immediate =
+                new ViispKeyMaterialRegistry.Rotation(secondAlias, null);
+        assertEquals(
+                secondAlias, ViispKeyMaterialRegistry.get(path, PASSWORD, immediate).getAlias());
+    }
+
+    public void testMissingNextKeyKeepsTheFirstKey() {
+        ViispKeyMaterialRegistry.Rotation missing =
+                new ViispKeyMaterialRegistry.Rotation("no-such-alias", null);
+        assertEquals(firstAlias, ViispKeyMaterialRegistry.get(path, PASSWORD, missing).getAlias());
+        assertNull(ViispKeyMaterialRegistry.findNext(path, PASSWORD, missing));
+    }
+
+    public void testRotationIsReadFromTheConfig() {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        assertNull(ViispKeyMaterialRegistry.Rotation.fromConfig(config));
+        config.setNextKeyAlias("next");
+        config.setNextKeyActivation(Instant.parse("2026-11-01T06:00:00Z"));
+        assertEquals(
+                new ViispKeyMaterialRegistry.Rotation(
+                        "next", Instant.parse("2026-11-01T06:00:00Z")),
+                ViispKeyMaterialRegistry.Rotation.fromConfig(config));
+        config.getConfig().put("nextKeyActivation", "tomorrow");
+        try {
+            config.getNextKeyActivation();
+            fail("Not an instant");
+        } catch (IllegalArgumentException expected) {
+            // Reported on the login that would sign
+        }
+    }
+
+    public void testKeystoreNobodyUsesIsDropped() {
+        ViispIdentityProviderConfig a = config("keystore-a", path);
+        ViispIdentityProviderConfig b = config("keystore-b", path);
+        assertEquals(firstAlias, ViispKeyMaterialRegistry.forProvider(a).getAlias());
+        assertEquals(firstAlias, ViispKeyMaterialRegistry.forProvider(b).getAlias());
+
+        ViispKeyMaterialRegistry.forProvider(config("keystore-a", null));
+        assertNotNull(ViispKeyMaterialRegistry.find(path, PASSWORD, null));
+
+        // Not reloaded with the old password once the last provider moved away
+        ViispIdentityProviderConfig changed = config("keystore-b", path);
+        changed.setKeystorePassword("changed");
+        try {
+            ViispKeyMaterialRegistry.forProvider(changed);
+            fail("Wrong password");
+        } catch (RuntimeException expected) {
+            // The keystore cannot be loaded with the new password
+        }
+        assertNull(ViispKeyMaterialRegistry.find(path, PASSWORD, null));
+    }
+
+    private static ViispIdentityProviderConfig config(String alias, String keystorePath) {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setAlias(alias);
+        if (keystorePath != null) {
+            config.setKeystorePath(keystorePath);
+            config.setKeystorePassword(PASSWORD);
+        }
+        return config;
+    }
+
+    private static void copyKey(String resource, String alias, KeyStore target) throws Exception {
+        KeyStore source = KeyStore.getInstance("JKS");
+        try (InputStream input = ViispKeyMaterialRegistryTest.class.getResourceAsStream(resource)) {
+            source.load(input, PASSWORD.toCharArray());
+        }
+        target.setEntry(
+                alias,
+                source.getEntry(alias, new KeyStore.PasswordProtection(PASSWORD.toCharArray())),
+                new KeyStore.PasswordProtection(PASSWORD.toCharArray()));
+    }
+}
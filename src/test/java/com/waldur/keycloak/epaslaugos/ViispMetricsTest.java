@@ -0,0 +1,96 @@
+package com.waldur.keycloak.epaslaugos;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import junit.framework.TestCase;
+
+/** Checks the tags and histograms of the phase timers. */
+public class ViispMetricsTest extends TestCase {
+
+    private SimpleMeterRegistry registry;
+    /** Distribution settings the timers were registered with, by provider alias. */
+    private final Map<String, DistributionStatisticConfig> distributions =
+            new ConcurrentHashMap<>();
+
+    @Override
+    protected void setUp() {
+        registry = new SimpleMeterRegistry();
+        registry.config()
+                .meterFilter(
+                        new MeterFilter() {
+                            @Override
+                            public DistributionStatisticConfig configure(
+                                    Meter.Id id, DistributionStatisticConfig config) {
+                                if (id.getTag("idp") != null) {
+                                    distributions.put(id.getTag("idp"), config);
+                                }
+                                return config;
+                            }
+                        });
+        Metrics.addRegistry(registry);
+    }
+
+    @Override
+    protected void tearDown() {
+        Metrics.removeRegistry(registry);
+        ViispServerOptions.set(ViispServerOptions.defaults());
+    }
+
+    public void testPhaseTimersHaveNoHistogramOrAuthProvider() {
+        ViispMetrics.forProvider("realm", "metrics-plain")
+                .recordDuration(ViispPhase.SIGN, ViispMetrics.OUTCOME_SUCCESS, 1_000_000);
+        Timer timer = registry.get(ViispMetrics.PHASE_TIMER).tag("idp", "metrics-plain").timer();
+        assertEquals(1, timer.count());
+        assertNull(timer.getId().getTag("auth_provider"));
+        assertEquals(0, timer.takeSnapshot().histogramCounts().length);
+        assertEquals(Boolean.FALSE, distributions.get("metrics-plain").isPercentileHistogram());
+    }
+
+    public void testHistogramsCanBeEnabledOnTheServer() {
+        Path tmp = Path.of(System.getProperty("java.io.tmpdir"));
+        ViispServerOptions.set(
+                new ViispServerOptions(
+                        false, false, tmp.resolve("x"), false, tmp.resolve("y"), true));
+        ViispMetrics.forProvider("realm", "metrics-histogram")
+                .recordDuration(ViispPhase.SIGN, ViispMetrics.OUTCOME_SUCCESS, 1_000_000);
+        assertEquals(1, phase("metrics-histogram", ViispPhase.SIGN).count());
+        // The simple registry keeps no buckets, exporters such as Prometheus publish them
+        assertEquals(
+                Boolean.TRUE, distributions.get("metrics-histogram").isPercentileHistogram());
+    }
+
+    public void testRequestBuildingIsOnlyTimedByItsPhases() throws Exception {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setAlias("metrics-build");
+        ViispXMLClient client =
+                new ViispXMLClient(
+                        config,
+                        ViispMetrics.forProvider("realm", "metrics-build"),
+                        ViispTracing.noop(),
+                        (url, soapMessage, phase) -> {
+                            throw new UnsupportedOperationException();
+                        });
+        client.buildAuthDataRequest("ticket");
+        assertEquals(1, phase("metrics-build", ViispPhase.MARSHAL).count());
+        assertEquals(1, phase("metrics-build", ViispPhase.SIGN).count());
+        assertNull(
+                registry.find(ViispMetrics.PHASE_TIMER)
+                        .tag("idp", "metrics-build")
+                        .tag("phase", ViispPhase.REQUEST_BUILD.value())
+                        .timer());
+    }
+
+    private Timer phase(String alias, ViispPhase phase) {
+        return registry.get(ViispMetrics.PHASE_TIMER)
+                .tag("idp", alias)
+                .tag("phase", phase.value())
+                .timer();
+    }
+}
@@ -0,0 +1,114 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import junit.framework.TestCase;
+
+/** Checks that recorded exchanges keep the protocol values only and are replayed when changed. */
+public class ViispRecordingTransportTest extends TestCase {
+
+    public void testAuthenticationDataResponseIsRedacted() throws Exception {
+        String response = corpus("small");
+        String redacted = ViispRecordingTransport.redact(response);
+        for (String personal :
+                List.of(
+                        "39001010000",
+                        "JONAS",
+                        "JONAITIS",
+                        "jonas@example.lt",
+                        "1990-01-01",
+                        "Gedimino",
+                        "+37060000000",
+                        "VK_0",
+                        "value-0",
+                        "AAAA")) {
+            assertFalse(personal, redacted.contains(personal));
+        }
+        for (String protocol :
+                List.of(
+                        "<authentication:authenticationProvider>auth.lt.bank<",
+                        "<authentication:attribute>lt-personal-code<",
+                        "<authentication:information>firstName<",
+                        "<authentication:type>BANKLINK<",
+                        "id=\"uniqueNodeId\"",
+                        "xmlns:dsig=\"http://www.w3.org/2000/09/xmldsig#\"")) {
+            assertTrue(protocol, redacted.contains(protocol));
+        }
+        assertTrue(redacted.contains(">11111111111<"));
+        assertEquals(response.length(), redacted.length());
+    }
+
+    public void testReplayedFileIsReadAgainWhenItChanges() throws Exception {
+        Path file = Files.createTempFile("viisp-exchanges", ".jsonl");
+        try {
+            Files.writeString(file, exchange("first"));
+            ViispReplayTransport first = ViispReplayTransport.forFile(file, false);
+            assertSame(first, ViispReplayTransport.forFile(file, false));
+
+            Files.writeString(file, exchange("second"));
+            Files.setLastModifiedTime(
+                    file,
+                    FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 60_000));
+            ViispReplayTransport second = ViispReplayTransport.forFile(file, false);
+            assertNotSame(first, second);
+            assertEquals(
+                    "second",
+                    second.postAsync("https://viisp.invalid", "", ViispPhase.TICKET_HTTP)
+                            .join()
+                            .body());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void testTicketIsRedacted() throws Exception {
+        String redacted = ViispRecordingTransport.redact(corpus("ticket"));
+        assertFalse(redacted.contains("a8c5e1d4-2f8b-4c3e-9d71-5b6f0e2a9c13"));
+        assertTrue(redacted.contains(">x1x1x1x1-1x1x-1x1x-1x11-1x1x1x1x1x11<"));
+    }
+
+    public void testCdataAndAttributesAreRedacted() {
+        String redacted =
+                ViispRecordingTransport.redact(
+                        "<a:r xmlns:a=\"urn:a\" id=\"n1\">"
+                                + "<a:value code=\"39001010000\"><![CDATA[Jonas <b>]]></a:value>"
+                                + "<a:pid>VSID000000000113</a:pid>"
+                                + "<!-- Jonas -->"
+                                + "</a:r>");
+        assertFalse(redacted, redacted.contains("39001010000"));
+        assertFalse(redacted, redacted.contains("Jonas"));
+        assertTrue(redacted, redacted.contains("code=\"11111111111\""));
+        assertTrue(redacted, redacted.contains("<![CDATA[xxxxx <x>]]>"));
+        assertTrue(redacted, redacted.contains("<a:pid>VSID000000000113</a:pid>"));
+        assertTrue(redacted, redacted.contains("id=\"n1\""));
+    }
+
+    public void testMalformedContentIsMaskedAsAWhole() {
+        assertEquals(
+                "<xxxx>xxxxx 111 xxx 11111111111",
+                ViispRecordingTransport.redact("<html>Error 503 for 39001010000"));
+        assertNull(ViispRecordingTransport.redact(null));
+    }
+
+    private static String exchange(String response) {
+        return "{\"phase\":\""
+                + ViispPhase.TICKET_HTTP.value()
+                + "\",\"statusCode\":200,\"response\":\""
+                + response
+                + "\",\"durationMs\":1}\n";
+    }
+
+    private static String corpus(String name) throws IOException {
+        try (InputStream input =
+                ViispRecordingTransportTest.class.getResourceAsStream(
+                        "/corpus/" + name + ".xml")) {
+            assertNotNull(name, input);
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/** Checks that the streaming and DOM parsers read the same user data from the corpus. */
+public class ViispResponseParserTest extends TestCase {
+
+    private static final List<String> CORPUS =
+            List.of("small", "company", "edge", "empty", "fault", "ticket");
+
+    public void testParsersAgreeOnTheCorpus() throws Exception {
+        int parsed = 0;
+        for (Map.Entry<String, String> response : corpus().entrySet()) {
+            String xml = response.getValue();
+            ViispUserInfo dom;
+            try {
+                dom = ViispXMLClient.parseUserData(ViispResponseParser.DOM, xml);
+            } catch (Exception e) {
+                try {
+                    ViispXMLClient.parseUserData(ViispResponseParser.STREAMING, xml);
+                    fail(response.getKey() + ": only the DOM parser failed with " + e);
+                } catch (Exception expected) {
+                    // Both parsers reject the response
+                }
+                continue;
+            }
+            ViispUserInfo streaming =
+                    ViispXMLClient.parseUserData(ViispResponseParser.STREAMING, xml);
+            assertEquals(
+                    response.getKey(), List.of(), ViispShadowParser.mismatches(dom, streaming));
+            parsed++;
+        }
+        assertTrue("Parsed " + parsed, parsed >= 4);
+    }
+
+    public void testDomIsTheDefaultParser() {
+        assertEquals(
+                ViispResponseParser.DOM, new ViispIdentityProviderConfig().getResponseParser());
+    }
+
+    private static Map<String, String> corpus() throws IOException {
+        Map<String, String> corpus = new LinkedHashMap<>();
+        for (String name : CORPUS) {
+            corpus.put(name, resource(name));
+        }
+        // Bank link responses with many source parameters, as in the parsing benchmark
+        String company = corpus.get("company");
+        int start = company.indexOf("<authentication:sourceData>");
+        int end = company.indexOf("</authentication:sourceData>");
+        assertTrue(start >= 0 && end > start);
+        StringBuilder sourceData =
+                new StringBuilder("<authentication:sourceData>")
+                        .append("<authentication:type>BANKLINK</authentication:type>");
+        for (int i = 0; i < 500; i++) {
+            sourceData
+                    .append("<authentication:parameter name=\"VK_")
+                    .append(i)
+                    .append("\">value-")
+                    .append(i)
+                    .append("</authentication:parameter>");
+        }
+        corpus.put("medium", company.substring(0, start) + sourceData + company.substring(end));
+        return corpus;
+    }
+
+    private static String resource(String name) throws IOException {
+        try (InputStream input =
+                ViispResponseParserTest.class.getResourceAsStream("/corpus/" + name + ".xml")) {
+            assertNotNull(name, input);
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
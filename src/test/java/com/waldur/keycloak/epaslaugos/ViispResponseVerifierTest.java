@@ -0,0 +1,86 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import junit.framework.TestCase;
+
+/** Checks how response truststores are cached, reloaded and dropped. */
+public class ViispResponseVerifierTest extends TestCase {
+
+    private Path first;
+    private Path second;
+
+    @Override
+    protected void setUp() throws Exception {
+        first = copyCertificate();
+        second = copyCertificate();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(first);
+        Files.deleteIfExists(second);
+    }
+
+    public void testVerifierIsReloadedOnlyWhenTheFileChanges() throws Exception {
+        String path = path(first);
+        ViispResponseVerifier verifier = ViispResponseVerifier.get(path, null);
+        assertEquals(1, verifier.getTrustedKeys().size());
+        assertSame(verifier, ViispResponseVerifier.get(path, null));
+
+        ViispResponseVerifier.reloadChanged();
+        assertSame(verifier, ViispResponseVerifier.get(path, null));
+
+        Files.setLastModifiedTime(first, FileTime.from(Instant.now().plusSeconds(60)));
+        ViispResponseVerifier.reloadChanged();
+        ViispResponseVerifier reloaded = ViispResponseVerifier.get(path, null);
+        assertNotSame(verifier, reloaded);
+        assertEquals(verifier.getTrustedKeys(), reloaded.getTrustedKeys());
+
+        // A file that cannot be loaded keeps the previous keys
+        Files.write(first, new byte[] {1, 2, 3});
+        ViispResponseVerifier.reloadChanged();
+        assertSame(reloaded, ViispResponseVerifier.get(path, null));
+    }
+
+    public void testTruststoreNobodyUsesIsDropped() {
+        ViispIdentityProviderConfig a = config("verifier-a", first);
+        ViispIdentityProviderConfig b = config("verifier-b", first);
+        ViispResponseVerifier verifier = ViispResponseVerifier.forConfig(a);
+        assertSame(verifier, ViispResponseVerifier.forConfig(b));
+
+        ViispResponseVerifier.forConfig(config("verifier-a", second));
+        assertSame(verifier, ViispResponseVerifier.find(path(first), null));
+
+        ViispIdentityProviderConfig off = config("verifier-b", first);
+        off.setResponseVerification(ViispResponseVerification.OFF);
+        assertNull(ViispResponseVerifier.forConfig(off));
+        assertNull(ViispResponseVerifier.find(path(first), null));
+        assertNotNull(ViispResponseVerifier.find(path(second), null));
+    }
+
+    private static ViispIdentityProviderConfig config(String alias, Path truststore) {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setAlias(alias);
+        config.setResponseVerification(ViispResponseVerification.ENFORCE);
+        config.setResponseTruststorePath(path(truststore));
+        return config;
+    }
+
+    private static Path copyCertificate() throws Exception {
+        Path file = Files.createTempFile("viisp-truststore", ".cer");
+        try (InputStream input =
+                ViispResponseVerifierTest.class.getResourceAsStream("/viisp-test-public.cer")) {
+            Files.write(file, input.readAllBytes());
+        }
+        return file;
+    }
+
+    /** File system truststore paths are given without the leading slash. */
+    private static String path(Path file) {
+        return file.toAbsolutePath().toString().substring(1);
+    }
+}
@@ -0,0 +1,81 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletionException;
+import junit.framework.TestCase;
+
+/** Checks that identity providers cannot use the file transports unless the server allows it. */
+public class ViispServerOptionsTest extends TestCase {
+
+    @Override
+    protected void tearDown() {
+        ViispServerOptions.set(ViispServerOptions.defaults());
+    }
+
+    public void testRecordAndReplayAreRefusedByDefault() {
+        for (ViispTransportMode mode : ViispTransportMode.values()) {
+            ViispIdentityProviderConfig config = config(mode);
+            if (mode == ViispTransportMode.HTTP) {
+                assertNotNull(ViispTransport.forConfig(config));
+                continue;
+            }
+            // The provider is created, its requests fail
+            try {
+                ViispTransport.forConfig(config)
+                        .postAsync("https://viisp.invalid", "", ViispPhase.TICKET_HTTP)
+                        .join();
+                fail(mode.value() + " must not be allowed");
+            } catch (CompletionException expected) {
+                assertTrue(expected.getCause() instanceof IllegalStateException);
+                String message = expected.getCause().getMessage();
+                assertTrue(message, message.contains(mode.value()));
+            }
+        }
+    }
+
+    public void testReplayUsesTheFileOfTheServer() throws Exception {
+        Path file = Files.createTempFile("viisp-exchanges", ".jsonl");
+        try {
+            ViispServerOptions.set(
+                    new ViispServerOptions(
+                            false, true, file, false, file.resolveSibling("x"), false));
+            assertTrue(
+                    ViispTransport.forConfig(config(ViispTransportMode.REPLAY))
+                            instanceof ViispReplayTransport);
+            try {
+                ViispTransport.forConfig(config(ViispTransportMode.RECORD))
+                        .postAsync("https://viisp.invalid", "", ViispPhase.TICKET_HTTP)
+                        .join();
+                fail("record must not be allowed");
+            } catch (CompletionException expected) {
+                // Only replay is enabled
+                assertTrue(expected.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void testFileTracingIsDisabledByDefault() {
+        ViispIdentityProviderConfig config = config(ViispTransportMode.HTTP);
+        config.setTracingExporter(ViispTracingExporter.FILE);
+        assertSame(ViispTracing.noop(), ViispTracing.forProvider(null, "realm", config));
+        assertTrue(ViispServerOptions.get().isAllowed(ViispTracingExporter.MEMORY));
+        assertFalse(ViispServerOptions.get().isAllowed(ViispTracingExporter.FILE));
+    }
+
+    public void testDefaultFilesAreInTheTemporaryDirectory() {
+        Path tmp = Path.of(System.getProperty("java.io.tmpdir"));
+        ViispServerOptions defaults = ViispServerOptions.defaults();
+        assertEquals(tmp.resolve("viisp-exchanges.jsonl"), defaults.getTransportFile());
+        assertEquals(tmp.resolve("viisp-spans.jsonl"), defaults.getTracingFile());
+    }
+
+    private static ViispIdentityProviderConfig config(ViispTransportMode mode) {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setAlias("viisp");
+        config.setTransportMode(mode);
+        return config;
+    }
+}
@@ -0,0 +1,39 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/** Checks when responses are shadow parsed and that it happens off the calling thread. */
+public class ViispShadowParserTest extends TestCase {
+
+    public void testVerifiedResponsesAreNotShadowParsed() {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setShadowParsePercent(100);
+        assertTrue(ViispShadowParser.fromConfig(config, ViispMetrics.noop()).sample());
+
+        config.setResponseVerification(ViispResponseVerification.REPORT);
+        assertFalse(ViispShadowParser.fromConfig(config, ViispMetrics.noop()).sample());
+    }
+
+    public void testComparisonRunsInTheBackground() throws Exception {
+        String xml;
+        try (InputStream input =
+                ViispShadowParserTest.class.getResourceAsStream("/corpus/small.xml")) {
+            xml = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        ViispUserInfo userInfo = ViispXMLClient.parseUserData(ViispResponseParser.DOM, xml);
+        ViispShadowParser parser =
+                new ViispShadowParser(ViispResponseParser.DOM, 100, ViispMetrics.noop());
+        CompletableFuture<Void> comparison = parser.compareAsync(xml, userInfo, 1_000_000);
+        assertNotNull(comparison);
+        comparison.get(10, TimeUnit.SECONDS);
+        boolean background = false;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            background |= thread.getName().equals("viisp-shadow-parse");
+        }
+        assertTrue(background);
+    }
+}
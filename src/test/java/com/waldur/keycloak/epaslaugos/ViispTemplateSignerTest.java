@@ -0,0 +1,126 @@
+package com.waldur.keycloak.epaslaugos;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/** Checks that the template signer produces the requests of the generic signer, byte for byte. */
+public class ViispTemplateSignerTest extends TestCase {
+
+    /** Values the template signer signs itself. */
+    private static final List<String[]> TEMPLATE_VALUES =
+            List.of(
+                    new String[] {"https://keycloak.example.com/realms/a/broker/viisp", "x"},
+                    new String[] {"https://kc.example.com/cb?a=1&b=2", "state&code"},
+                    new String[] {"https://kc.example.com/cb?q=<script>", "a<b>c"},
+                    new String[] {"https://kc.example.com/cb?q=\"'", "it's \"quoted\""},
+                    new String[] {"https://kc.example.com/cb#]]>", "]]> & <![CDATA[x]]>"},
+                    new String[] {"https://kc.example.com/cb?amp=&amp;", "&#13;&lt;"});
+
+    /** Values it leaves to the generic signer. */
+    private static final List<String[]> FALLBACK_VALUES =
+            List.of(
+                    new String[] {"https://kc.example.com/cb", "line\r\nbreak"},
+                    new String[] {"https://kc.example.com/cb", "tab\there"},
+                    new String[] {"https://kc.example.com/cb", "Žemaitė ąčęėįšųūž"},
+                    new String[] {"https://kc.example.com/cb?q=ä&r=<", "€ 😀 &\r"},
+                    new String[] {"https://kc.example.com/cb", ""});
+
+    public void testTemplateValuesAreSignedByTheTemplate() throws Exception {
+        ViispKeyMaterial keyMaterial = ViispKeyMaterialRegistry.get(null, null);
+        ViispTemplateSigner signer =
+                ViispAuthenticationRequestTemplate.forService(
+                                ViispXMLClient.TEST_PID, ViispServiceTarget.CITIZEN)
+                        .signer(keyMaterial, ViispXmlSigner.Algorithms.forKey(keyMaterial));
+        assertNotNull(signer);
+        for (String[] values : TEMPLATE_VALUES) {
+            assertTrue(values[1], signer.accepts(values));
+        }
+        for (String[] values : FALLBACK_VALUES) {
+            assertFalse(values[1], signer.accepts(values));
+        }
+    }
+
+    public void testSignersOfDifferentAlgorithmsAreKeptSideBySide() throws Exception {
+        ViispKeyMaterial keyMaterial = ViispKeyMaterialRegistry.get(null, null);
+        // A service of its own, whose signers other tests do not evict
+        ViispAuthenticationRequestTemplate template =
+                ViispAuthenticationRequestTemplate.forService(
+                        "VSID-side-by-side", ViispServiceTarget.CITIZEN);
+        ViispXmlSigner.Algorithms sha1 =
+                new ViispXmlSigner.Algorithms(
+                        ViispSignatureAlgorithm.RSA_SHA1, ViispDigestAlgorithm.SHA1);
+        ViispXmlSigner.Algorithms sha256 =
+                new ViispXmlSigner.Algorithms(
+                        ViispSignatureAlgorithm.RSA_SHA256, ViispDigestAlgorithm.SHA256);
+        ViispTemplateSigner first = template.signer(keyMaterial, sha1);
+        ViispTemplateSigner second = template.signer(keyMaterial, sha256);
+        assertNotSame(first, second);
+        assertSame(first, template.signer(keyMaterial, sha1));
+        assertSame(second, template.signer(keyMaterial, sha256));
+    }
+
+    public void testLeastRecentlyUsedSignersAreEvicted() throws Exception {
+        ViispKeyMaterial keyMaterial = ViispKeyMaterialRegistry.get(null, null);
+        ViispAuthenticationRequestTemplate template =
+                ViispAuthenticationRequestTemplate.forService(
+                        "VSID-eviction", ViispServiceTarget.CITIZEN);
+        ViispXmlSigner.Algorithms sha1 =
+                new ViispXmlSigner.Algorithms(
+                        ViispSignatureAlgorithm.RSA_SHA1, ViispDigestAlgorithm.SHA1);
+        ViispTemplateSigner inUse = template.signer(keyMaterial, sha1);
+        List<ViispXmlSigner.Algorithms> others = new ArrayList<>();
+        List<ViispTemplateSigner> otherSigners = new ArrayList<>();
+        for (ViispSignatureAlgorithm signature :
+                List.of(
+                        ViispSignatureAlgorithm.RSA_SHA1,
+                        ViispSignatureAlgorithm.RSA_SHA256,
+                        ViispSignatureAlgorithm.RSA_SHA512)) {
+            for (ViispDigestAlgorithm digest : ViispDigestAlgorithm.values()) {
+                ViispXmlSigner.Algorithms algorithms =
+                        new ViispXmlSigner.Algorithms(signature, digest);
+                if (!algorithms.equals(sha1)) {
+                    others.add(algorithms);
+                    otherSigners.add(template.signer(keyMaterial, algorithms));
+                    template.signer(keyMaterial, sha1);
+                }
+            }
+        }
+        assertEquals(ViispAuthenticationRequestTemplate.MAX_SIGNERS, others.size());
+        assertSame(inUse, template.signer(keyMaterial, sha1));
+        assertNotSame(otherSigners.get(0), template.signer(keyMaterial, others.get(0)));
+        assertSame(
+                otherSigners.get(others.size() - 1),
+                template.signer(keyMaterial, others.get(others.size() - 1)));
+    }
+
+    public void testTemplateAndGenericRequestsAreIdentical() throws Exception {
+        for (String algorithms :
+                List.of("rsa-sha1/sha1", "rsa-sha256/sha256", "rsa-sha512/sha512")) {
+            ViispXMLClient template = client(ViispRequestSigner.TEMPLATE, algorithms);
+            ViispXMLClient generic = client(ViispRequestSigner.GENERIC, algorithms);
+            for (List<String[]> valueSet : List.of(TEMPLATE_VALUES, FALLBACK_VALUES)) {
+                for (String[] values : valueSet) {
+                    assertEquals(
+                            algorithms + " " + values[1],
+                            generic.buildAuthRequest(null, values[0], values[1]),
+                            template.buildAuthRequest(null, values[0], values[1]));
+                }
+            }
+        }
+    }
+
+    private static ViispXMLClient client(ViispRequestSigner signer, String algorithms) {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setAlias("viisp");
+        config.setRequestSigner(signer);
+        String[] parts = algorithms.split("/");
+        config.setSignatureAlgorithm(ViispSignatureAlgorithm.fromValue(parts[0]));
+        config.setDigestAlgorithm(ViispDigestAlgorithm.fromValue(parts[1]));
+        return new ViispXMLClient(
+                config,
+                ViispMetrics.noop(),
+                ViispTracing.noop(),
+                new ViispInMemoryTransport((phase, request) -> null));
+    }
+}
@@ -0,0 +1,40 @@
+package com.waldur.keycloak.epaslaugos;
+
+import junit.framework.TestCase;
+
+/** Checks how the client handles failing transports. */
+public class ViispXMLClientTest extends TestCase {
+
+    public void testTransportThrowingReleasesPermits() throws Exception {
+        String url = "unsupported://viisp.example.com/services/auth";
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setAlias("viisp-transport-throwing");
+        config.setMaxConcurrentRequests(1);
+        config.setMaxRetries(0);
+        ViispXMLClient client =
+                new ViispXMLClient(
+                        config,
+                        ViispMetrics.noop(),
+                        ViispTracing.noop(),
+                        (target, soapMessage, phase) -> {
+                            throw new IllegalArgumentException("Unsupported scheme");
+                        });
+        for (int i = 0; i < 3; i++) {
+            try {
+                client.requestAuthenticationTicket(
+                        "https://kc.example.com/cb", ViispXMLClient.TEST_PID, url, "state");
+                fail("The transport failed");
+            } catch (Exception e) {
+                assertFalse(
+                        "Bulkhead permit leaked: " + e,
+                        e instanceof ViispServiceUnavailableException);
+            }
+        }
+        ViispBulkhead bulkhead = ViispBulkhead.find(config);
+        assertTrue(bulkhead.tryAcquire());
+        bulkhead.release();
+        ViispCircuitBreaker breaker =
+                ViispCircuitBreaker.find(url, ViispCircuitBreaker.Settings.fromConfig(config));
+        assertEquals(3, breaker.getStats().recordedCalls());
+    }
+}
@@ -0,0 +1,66 @@
+package com.waldur.keycloak.epaslaugos;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import java.io.StringReader;
+import javax.xml.parsers.DocumentBuilderFactory;
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/** Checks that the direct DOM writer produces the XML of the Jackson annotated models. */
+public class ViispXmlMarshallerTest extends TestCase {
+
+    public void testAuthenticationRequestMatchesJackson() throws Exception {
+        ViispAuthenticationRequest request =
+                ViispAuthenticationRequestTemplate.createRequest(
+                        "VSID000000000113", ViispServiceTarget.CITIZEN);
+        request.setPostbackUrl("https://kc.example.com/realms/a/broker/viisp/endpoint?x=1&y=2");
+        request.setCustomData("state <\"ąčęėįšųūž\"> & 'more'");
+        assertSameXml(jackson(request), ViispXmlMarshaller.marshal(request));
+    }
+
+    public void testAuthenticationRequestWithoutOptionalValuesMatchesJackson() throws Exception {
+        ViispAuthenticationRequest request = new ViispAuthenticationRequest();
+        request.setId(ViispXMLClient.SIGNED_NODE_ID);
+        request.setPid("VSID000000000113");
+        request.setServiceTarget(ViispServiceTarget.BUSINESS);
+        request.getAuthenticationProvider().add(ViispAuthenticationProvider.AUTH_LT_BANK);
+        request.setPostbackUrl("https://kc.example.com/endpoint");
+        assertSameXml(jackson(request), ViispXmlMarshaller.marshal(request));
+    }
+
+    public void testAuthenticationDataRequestMatchesJackson() throws Exception {
+        ViispAuthenticationDataRequest request = new ViispAuthenticationDataRequest();
+        request.setId(ViispXMLClient.SIGNED_NODE_ID);
+        request.setPid("VSID000000000113");
+        request.setIncludeSourceData(true);
+        request.setTicket("6e2e6ea5-8a1f-4a5b-9d3c-&<>");
+        assertSameXml(jackson(request), ViispXmlMarshaller.marshal(request));
+
+        request.setIncludeSourceData(false);
+        assertSameXml(jackson(request), ViispXmlMarshaller.marshal(request));
+    }
+
+    private static void assertSameXml(Document expected, Document actual) throws Exception {
+        assertEquals(ViispXmlSupport.serialize(expected), ViispXmlSupport.serialize(actual));
+        assertTrue(expected.getDocumentElement().isEqualNode(actual.getDocumentElement()));
+    }
+
+    /** The previous marshalling: serialized by Jackson and parsed back into a DOM. */
+    private static Document jackson(Object request) throws Exception {
+        String xml = new XmlMapper().writeValueAsString(request);
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document =
+                factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        Element root = document.getDocumentElement();
+        root.setAttributeNS(
+                "http://www.w3.org/2000/xmlns/", "xmlns:ns2", "http://www.w3.org/2000/09/xmldsig#");
+        root.setAttributeNS(
+                "http://www.w3.org/2000/xmlns/",
+                "xmlns:ns3",
+                "http://www.w3.org/2001/10/xml-exc-c14n#");
+        return document;
+    }
+}
@@ -0,0 +1,116 @@
+package com.waldur.keycloak.epaslaugos;
+
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/** Signs requests with every algorithm and checks that the signatures verify. */
+public class ViispXmlSignerTest extends TestCase {
+
+    private static final String RSA_KEYSTORE = "/keystore-test.jks";
+    private static final String EC_KEYSTORE = "/keystore-ec-test.jks";
+    private static final String PASSWORD = "viisp-test";
+
+    public void testEverySignatureAndDigestAlgorithmVerifies() throws Exception {
+        for (ViispSignatureAlgorithm signature : ViispSignatureAlgorithm.values()) {
+            for (ViispDigestAlgorithm digest : ViispDigestAlgorithm.values()) {
+                for (String keystore : keystores(signature)) {
+                    for (ViispRequestSigner signer : ViispRequestSigner.values()) {
+                        String name =
+                                signature.value()
+                                        + "/"
+                                        + digest.value()
+                                        + " "
+                                        + keystore
+                                        + " "
+                                        + signer.value();
+                        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+                        config.setAlias("viisp-signer");
+                        config.setKeystorePath(keystore);
+                        config.setKeystorePassword(PASSWORD);
+                        config.setRequestSigner(signer);
+                        config.setSignatureAlgorithm(signature);
+                        config.setDigestAlgorithm(digest);
+                        ViispXMLClient client =
+                                new ViispXMLClient(
+                                        config,
+                                        ViispMetrics.noop(),
+                                        ViispTracing.noop(),
+                                        new ViispInMemoryTransport((phase, request) -> null));
+                        ViispKeyMaterial key = ViispKeyMaterialRegistry.get(keystore, PASSWORD);
+                        ViispSignatureAlgorithm expected =
+                                signature.forKey(key.getPrivateKey());
+
+                        String xml =
+                                client.buildAuthRequest(
+                                        null, "https://kc.example.com/endpoint", "state & <more>");
+                        Document signed = ViispXmlSupport.parse(xml);
+                        assertEquals(name, expected.uri(), algorithm(signed, "SignatureMethod"));
+                        assertEquals(name, digest.uri(), algorithm(signed, "DigestMethod"));
+                        assertTrue(name, validates(signed, key));
+                        // The response verifier accepts the signature shape as well
+                        ViispResponseVerifier verifier =
+                                ViispResponseVerifier.get(keystore, PASSWORD);
+                        assertNotNull(name, verifier.verify(ViispXmlSupport.parse(xml)));
+
+                        Document data =
+                                ViispXmlSupport.parse(client.buildAuthDataRequest("ticket"));
+                        assertTrue(name, validates(data, key));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testTamperedRequestDoesNotVerify() throws Exception {
+        ViispIdentityProviderConfig config = new ViispIdentityProviderConfig();
+        config.setAlias("viisp-signer");
+        config.setKeystorePath(EC_KEYSTORE);
+        config.setKeystorePassword(PASSWORD);
+        ViispXMLClient client =
+                new ViispXMLClient(
+                        config,
+                        ViispMetrics.noop(),
+                        ViispTracing.noop(),
+                        new ViispInMemoryTransport((phase, request) -> null));
+        Document signed =
+                ViispXmlSupport.parse(
+                        client.buildAuthDataRequest("ticket")
+                                .replace(">ticket<", ">other<"));
+        assertFalse(validates(signed, ViispKeyMaterialRegistry.get(EC_KEYSTORE, PASSWORD)));
+    }
+
+    /** RSA and EC keys for AUTO, the keys of its type for the other algorithms. */
+    private static String[] keystores(ViispSignatureAlgorithm signature) {
+        switch (signature) {
+            case AUTO:
+                return new String[] {RSA_KEYSTORE, EC_KEYSTORE};
+            case ECDSA_SHA256:
+                return new String[] {EC_KEYSTORE};
+            default:
+                return new String[] {RSA_KEYSTORE};
+        }
+    }
+
+    private static String algorithm(Document signed, String localName) {
+        return ((Element) signed.getElementsByTagNameNS(XMLSignature.XMLNS, localName).item(0))
+                .getAttribute("Algorithm");
+    }
+
+    private static boolean validates(Document signed, ViispKeyMaterial key) throws Exception {
+        signed.getDocumentElement().setIdAttribute("id", true);
+        Element signatureElement =
+                (Element) signed.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature").item(0);
+        DOMValidateContext context =
+                new DOMValidateContext(
+                        KeySelector.singletonKeySelector(key.getPublicKey()), signatureElement);
+        context.setProperty("org.jcp.xml.dsig.secureValidation", false);
+        return XMLSignatureFactory.getInstance("DOM")
+                .unmarshalXMLSignature(context)
+                .validate(context);
+    }
+}